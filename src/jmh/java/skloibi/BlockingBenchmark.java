@@ -0,0 +1,172 @@
+package skloibi;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import org.openjdk.jmh.annotations.*;
+import skloibi.utils.BlockingExecutor;
+import skloibi.utils.LatencyHistogram;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares the execution models of blocking (JDBC) work that is issued by an
+ * event loop: Vert.x' shared worker pool ({@code executeBlocking}) and a
+ * {@link BlockingExecutor} with platform or virtual threads (the latter only
+ * on Java 21 or later, otherwise it falls back to platform threads).
+ * <p>
+ * {@link #burst()} issues a burst of calls that each block for a database
+ * round trip, and is complete as soon as all results are back on the event
+ * loop, i.e. it measures the maximum throughput (about 16k calls per second
+ * with the default parameters, {@code concurrency / roundTrip}); the sample
+ * mode shows the tail latency of a burst.
+ * <p>
+ * {@link #paced()} issues the calls at a fixed arrival rate instead (10k
+ * calls per second by default, like a busy chat), which shows whether the
+ * model keeps up with that load (the throughput stays a little below the
+ * rate, as every operation waits for its last call). The latencies of the
+ * single calls (from their planned arrival until the result is back on the
+ * event loop, so a delayed event loop counts as well) are printed after
+ * every iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockingBenchmark {
+
+    private static final int CALLS = 100;
+
+    @Param({"worker", "platform", "virtual"})
+    private String model;
+
+    /**
+     * The maximum number of concurrent calls (of the executors).
+     */
+    @Param({"16"})
+    private int concurrency;
+
+    /**
+     * The duration of a single call (in microseconds).
+     */
+    @Param({"1000"})
+    private long roundTrip;
+
+    /**
+     * The arrival rate of the paced calls (per second).
+     */
+    @Param({"10000"})
+    private int rate;
+
+    /**
+     * The latencies of the paced calls (in microseconds).
+     */
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private Vertx            vertx;
+    private Context          context;
+    private BlockingExecutor executor;
+
+    @Setup
+    public void setup() {
+        vertx = Vertx.vertx();
+        context = vertx.getOrCreateContext();
+
+        if (!model.equals("worker"))
+            executor = new BlockingExecutor("benchmark", concurrency, CALLS,
+                    BlockingExecutor.Mode.valueOf(model.toUpperCase()));
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+        if (latencies.count() == 0)
+            return;
+
+        System.out.printf("%n%d calls/s: p50 %d us, p99 %d us, p99.9 %d us, max %d us%n", rate,
+                latencies.percentile(0.5), latencies.percentile(0.99), latencies.percentile(0.999),
+                latencies.max());
+        latencies.reset();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (executor != null)
+            executor.close();
+        vertx.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public Object burst() throws Exception {
+        var done = new CompletableFuture<Object>();
+
+        context.runOnContext(__ -> {
+            var pending = new int[]{CALLS};
+
+            for (var i = 0; i < CALLS; i++)
+                submit(r -> {
+                    if (--pending[0] == 0)
+                        done.complete(r.result());
+                });
+        });
+
+        return done.get(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public Object paced() throws Exception {
+        var done = new CompletableFuture<Object>();
+        var interval = TimeUnit.SECONDS.toNanos(1) / rate;
+
+        context.runOnContext(__ -> {
+            var start = System.nanoTime();
+            var issued = new int[]{0};
+            var pending = new int[]{CALLS};
+
+            // the timers of the event loop have a resolution of a
+            // millisecond, so every tick issues all calls that are due
+            vertx.setPeriodic(1, timer -> {
+                var now = System.nanoTime();
+
+                for (; issued[0] < CALLS && start + issued[0] * interval <= now; issued[0]++) {
+                    var arrival = start + issued[0] * interval;
+
+                    submit(r -> {
+                        latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - arrival));
+                        if (--pending[0] == 0)
+                            done.complete(r.result());
+                    });
+                }
+
+                if (issued[0] == CALLS)
+                    vertx.cancelTimer(timer);
+            });
+        });
+
+        return done.get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Issues a single call with the model of the benchmark.
+     */
+    private void submit(Handler<AsyncResult<Long>> result) {
+        if (executor == null)
+            vertx.executeBlocking(f -> f.complete(call()), false, result);
+        else
+            executor.submit(context, this::call, result);
+    }
+
+    /**
+     * A simulated database call.
+     */
+    private long call() {
+        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(roundTrip));
+        return System.nanoTime();
+    }
+}
@@ -0,0 +1,114 @@
+package skloibi;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.mqtt.MqttClientOptions;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.reactivex.mqtt.MqttClient;
+import org.openjdk.jmh.annotations.*;
+import skloibi.broker.Admission;
+import skloibi.broker.Broker;
+import skloibi.broker.BrokerVerticle;
+import skloibi.broker.LimitPolicy;
+import skloibi.broker.Session;
+import skloibi.utils.Topics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static skloibi.props.Properties.*;
+
+/**
+ * End-to-end benchmark of the broker: a message is published by one client
+ * and the operation is complete as soon as every subscriber of the channel
+ * received it (everything runs in-process over the loopback interface).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BrokerBenchmark {
+
+    private static final int PORT = 18830;
+
+    @Param({"1", "10", "100"})
+    private int subscribers;
+
+    @Param({"2"})
+    private int instances;
+
+    private Vertx            vertx;
+    private List<MqttClient> clients;
+    private MqttClient       publisher;
+
+    private final AtomicReference<CountDownLatch> received = new AtomicReference<>(new CountDownLatch(0));
+
+    private final Buffer payload = Buffer.buffer("hello everyone, how are you doing?");
+    private final String topic   = Topics.publishTo(Topics.ALL, "publisher");
+
+    @Setup
+    public void setup() throws Exception {
+        vertx = Vertx.vertx();
+
+        var broker = new Broker(
+                RETAINED_MAX_BYTES,
+                new Session.Settings(
+                        INFLIGHT_MAX, OFFLINE_MAX_BYTES, RETRANSMIT_TIMEOUT,
+                        OUTBOUND_MAX_BYTES, OUTBOUND_POLICY, SPILL_MAX_BYTES
+                )
+        );
+
+        // no limits, the benchmark publishes as fast as possible
+        var admission = new Admission(new Admission.Settings(0, 0, 0, 0, 0, 0, LimitPolicy.DROP), broker.metrics());
+
+        var deployed = new CompletableFuture<String>();
+        vertx.getDelegate().deployVerticle(
+                () -> new BrokerVerticle(broker, admission, PORT, instances),
+                new DeploymentOptions().setInstances(instances),
+                r -> deployed.complete(r.result()));
+        deployed.get(10, TimeUnit.SECONDS);
+
+        clients = new ArrayList<>();
+        for (var i = 0; i < subscribers; i++) {
+            var client = MqttClient.create(vertx, new MqttClientOptions().setClientId("subscriber" + i));
+            var subscribed = new CompletableFuture<Integer>();
+
+            client.publishHandler(__ -> received.get().countDown());
+            client.connect(PORT, BROKER, __ ->
+                    client.subscribe(Topics.listenTo(Topics.ALL), QOS_MESSAGE.value(), r -> subscribed.complete(r.result())));
+            subscribed.get(10, TimeUnit.SECONDS);
+
+            clients.add(client);
+        }
+
+        publisher = MqttClient.create(vertx, new MqttClientOptions().setClientId("publisher"));
+        var connected = new CompletableFuture<Void>();
+        publisher.connect(PORT, BROKER, __ -> connected.complete(null));
+        connected.get(10, TimeUnit.SECONDS);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        var closed = new CompletableFuture<Void>();
+        vertx.close(__ -> closed.complete(null));
+        closed.get(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void publishAndFanOut() throws InterruptedException {
+        var latch = new CountDownLatch(subscribers);
+        received.set(latch);
+
+        publisher.publish(topic, payload, MqttQoS.AT_MOST_ONCE, false, false);
+
+        if (!latch.await(5, TimeUnit.SECONDS))
+            throw new IllegalStateException("message was not delivered to all subscribers");
+    }
+}
@@ -0,0 +1,86 @@
+package skloibi;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.*;
+import io.vertx.reactivex.core.buffer.Buffer;
+import org.openjdk.jmh.annotations.*;
+import skloibi.broker.PublishFrame;
+import skloibi.utils.Topics;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes a single message for every subscriber of a channel, once with
+ * Netty's MQTT encoder (a copy of the topic and the payload per subscriber)
+ * and once with a shared {@link PublishFrame}.
+ * The allocated bytes per operation (see the gc profiler) show the
+ * difference.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({"5000"})
+    private int subscribers;
+
+    @Param({"1024"})
+    private int size;
+
+    private final String topic = Topics.publishTo(Topics.ALL, "publisher");
+
+    private Buffer          payload;
+    private EmbeddedChannel channel;
+
+    @Setup
+    public void setup() {
+        var bytes = new byte[size];
+        Arrays.fill(bytes, (byte) 'x');
+
+        payload = Buffer.newInstance(io.vertx.core.buffer.Buffer.buffer(bytes));
+        channel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public long encoder() {
+        var bytes = 0L;
+
+        for (var i = 0; i < subscribers; i++) {
+            channel.writeOutbound(new MqttPublishMessage(
+                    new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                    new MqttPublishVariableHeader(topic, i + 1),
+                    payload.getDelegate().getByteBuf().retain()
+            ));
+            bytes += release(channel.readOutbound());
+        }
+
+        return bytes;
+    }
+
+    @Benchmark
+    public long sharedFrame() {
+        var frame = new PublishFrame(topic, payload);
+        var bytes = 0L;
+
+        for (var i = 0; i < subscribers; i++)
+            bytes += release(frame.encode(MqttQoS.AT_LEAST_ONCE, false, false, i + 1));
+
+        return bytes;
+    }
+
+    private static int release(ByteBuf packet) {
+        var bytes = packet.readableBytes();
+        packet.release();
+        return bytes;
+    }
+}
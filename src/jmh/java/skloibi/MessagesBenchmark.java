@@ -0,0 +1,35 @@
+package skloibi;
+
+import org.openjdk.jmh.annotations.*;
+import skloibi.props.Command;
+import skloibi.props.Messages;
+import skloibi.utils.T;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the command parsing that is applied to every line the user
+ * enters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessagesBenchmark {
+
+    private String command = ":goto general";
+    private String message = "hello everyone, how are you doing?";
+
+    @Benchmark
+    public T._2<Command, String> getCommand() {
+        return Messages.getCommand(command).blockingGet();
+    }
+
+    @Benchmark
+    public T._2<Command, String> getCommandOfMessage() {
+        // a plain message does not emit a value, i.e. this returns null
+        return Messages.getCommand(message).blockingGet();
+    }
+}
@@ -0,0 +1,54 @@
+package skloibi;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.*;
+import skloibi.broker.SubscriptionTrie;
+import skloibi.utils.Topics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the subscription lookup of the broker with a realistic
+ * number of users and channels (every user listens to one channel and to
+ * his personal topic; one bot listens to everything).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+
+    @Param({"1000", "10000"})
+    private int users;
+
+    @Param({"10"})
+    private int channels;
+
+    private SubscriptionTrie<String> subscriptions;
+
+    @Setup
+    public void setup() {
+        subscriptions = new SubscriptionTrie<>();
+
+        for (var i = 0; i < users; i++) {
+            var user = "user" + i;
+            subscriptions.subscribe(Topics.listenTo("channel" + (i % channels)), user, MqttQoS.AT_MOST_ONCE);
+            subscriptions.subscribe(Topics.listenToOwn(user), user, MqttQoS.AT_LEAST_ONCE);
+        }
+
+        subscriptions.subscribe(Topics.LISTEN_TO_ALL, "LogBot", MqttQoS.EXACTLY_ONCE);
+    }
+
+    @Benchmark
+    public Map<String, MqttQoS> matchChannel() {
+        return subscriptions.match(Topics.publishTo("channel0", "user0"));
+    }
+
+    @Benchmark
+    public Map<String, MqttQoS> matchWhisper() {
+        return subscriptions.match(Topics.publishToPersonal("user0", "user1"));
+    }
+}
@@ -0,0 +1,54 @@
+package skloibi;
+
+import org.openjdk.jmh.annotations.*;
+import skloibi.utils.Topics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the topic utilities that are called for every sent or
+ * received chat message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopicsBenchmark {
+
+    private String channel = "general";
+    private String user    = "alice";
+    private String target  = "bob";
+    private String topic   = "mqtt-chat/general/alice";
+
+    @Benchmark
+    public String userFromTopic() {
+        return Topics.userFromTopic(topic);
+    }
+
+    @Benchmark
+    public String shortName() {
+        return Topics.shortName(topic);
+    }
+
+    @Benchmark
+    public String publishTo() {
+        return Topics.publishTo(channel, user);
+    }
+
+    @Benchmark
+    public String publishToPersonal() {
+        return Topics.publishToPersonal(user, target);
+    }
+
+    @Benchmark
+    public String listenTo() {
+        return Topics.listenTo(channel);
+    }
+
+    @Benchmark
+    public String[] levels() {
+        return Topics.levels(topic);
+    }
+}
@@ -0,0 +1,100 @@
+package skloibi;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.mqtt.MqttClient;
+import skloibi.props.Config;
+import skloibi.utils.Envelope;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Coalesces the messages of a client into envelopes (see {@link Envelope}),
+ * one per topic. An envelope is published as soon as it reaches the maximum
+ * size or the linger time has passed since its first message.
+ * <p>
+ * Must only be used on the context of the client.
+ */
+public class Batcher {
+
+    private final Vertx      vertx;
+    private final MqttClient client;
+    private final int        maxBytes;
+    private final long       linger;
+    private final MqttQoS    qos;
+
+    private final Map<String, Envelope.Batch> batches = new HashMap<>();
+
+    /**
+     * The timer of the next flush; {@code -1} if nothing is pending.
+     */
+    private long timer = -1;
+
+    /**
+     * @param vertx    The Vert.x instance of the client
+     * @param client   The client that publishes the envelopes
+     * @param maxBytes The maximum size of an envelope
+     * @param linger   The maximum time (in milliseconds) a message is held back
+     * @param qos      The MQTT Quality-of-Service of the envelopes
+     */
+    public Batcher(Vertx vertx, MqttClient client, int maxBytes, long linger, MqttQoS qos) {
+        this.vertx = vertx;
+        this.client = client;
+        this.maxBytes = maxBytes;
+        this.linger = linger;
+        this.qos = qos;
+    }
+
+    /**
+     * Adds a message to the envelope of the topic (compressed if it is large,
+     * see {@link Config#compressThreshold}).
+     *
+     * @param topic   The topic to publish to
+     * @param sender  The user that sent the message
+     * @param message The actual message
+     */
+    public void add(String topic, String sender, String message) {
+        var batch = batches.computeIfAbsent(topic, __ -> new Envelope.Batch(maxBytes));
+        var now = System.currentTimeMillis();
+        var text = Envelope.compress(message, Config.current().compressThreshold);
+
+        if (!batch.add(sender, now, text)) {
+            publish(topic, batch);
+            batch.add(sender, now, text);
+        }
+
+        if (batch.bytes() >= maxBytes)
+            publish(topic, batch);
+        else if (timer < 0)
+            timer = vertx.setTimer(linger, __ -> {
+                timer = -1;
+                flush();
+            });
+    }
+
+    /**
+     * Publishes all pending envelopes.
+     */
+    public void flush() {
+        if (timer >= 0) {
+            vertx.cancelTimer(timer);
+            timer = -1;
+        }
+
+        batches.forEach(this::publish);
+        // topics that are not used anymore do not keep their batches
+        batches.clear();
+    }
+
+    private void publish(String topic, Envelope.Batch batch) {
+        if (batch.count() == 0)
+            return;
+
+        var envelope = batch.take();
+        // the messages of a disconnected client are lost (as single ones);
+        // chat messages are never retained (see Client#publish)
+        if (client.isConnected())
+            client.publish(topic, envelope, qos, false, false);
+    }
+}
@@ -1,40 +1,125 @@
 package skloibi;
 
-import io.vertx.mqtt.MqttServerOptions;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.VertxOptions;
 import io.vertx.reactivex.core.Vertx;
-import io.vertx.reactivex.mqtt.MqttServer;
-import io.vertx.reactivex.mqtt.MqttTopicSubscription;
 import org.apache.commons.cli.*;
+import skloibi.broker.Admission;
+import skloibi.broker.Broker;
+import skloibi.broker.BrokerMetrics;
+import skloibi.broker.BrokerVerticle;
+import skloibi.broker.Cluster;
+import skloibi.broker.ClusterVerticle;
+import skloibi.broker.OverflowPolicy;
+import skloibi.broker.Presence;
+import skloibi.broker.SubscriptionTrie;
+import skloibi.props.Config;
+import skloibi.props.ConfigWatcher;
 import skloibi.utils.T;
-import skloibi.utils.TFunction;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
-import static skloibi.props.Properties.MQTT_PORT;
-import static skloibi.props.Properties.SERVER_COMMAND;
+import static skloibi.props.Properties.*;
 
 /**
- * Possible skeleton for a future MQTT broker implementation.
- * NOTE: This implementation currently only listens to incoming messages
- * and does not support subscription, forwarding or other MQTT mechanics.
+ * Simple MQTT broker implementation.
+ * The broker deploys one {@link BrokerVerticle} per event loop, all of which
+ * share the listening port and a single {@link Broker} that holds the
+ * subscriptions (see {@link SubscriptionTrie}) and connected sessions.
+ * Every published message is forwarded to all endpoints with a matching
+ * subscription, regardless of the event loop they are connected to.
+ * Retained messages are kept (up to a memory limit) and sent to new
+ * subscribers. Sessions of clients that connect without a clean session
+ * survive a disconnect (for {@link Config#sessionExpiry})
+ * and queue their QoS 1/2 messages in the meantime. Outgoing QoS 1/2
+ * messages are tracked in a bounded in-flight window per client and
+ * retransmitted until they are acknowledged. Messages for clients that do
+ * not keep up are held back in a bounded outbound queue per client, which
+ * drops them, spills them to disk or disconnects the client when it is full
+ * (see {@link OverflowPolicy}).
+ * <p>
+ * New connections are refused if there are too many of them (or if clients
+ * connect too fast), and the messages of each client and topic are rate
+ * limited (see {@link Admission}).
+ * <p>
+ * The broker also tracks the members of every channel (see {@link Presence}),
+ * announces the changes periodically to the channel and answers the member
+ * requests ({@code :who}) of the users.
+ * <p>
+ * Several chat servers (e.g. on the same host) form a cluster if they are
+ * started with a cluster port and the addresses of the other nodes (see
+ * {@link Cluster}); messages are then only forwarded to the nodes with
+ * matching subscribers.
+ * <p>
+ * The server is configured by a properties file, environment variables and
+ * the options of the command line (see {@link Config}). Changes of the file
+ * are picked up at runtime; the limits of the sessions and outbound queues
+ * take effect immediately, all other settings after a restart.
+ * <p>
+ * The {@link BrokerMetrics} are registered as MBean and can also be fetched
+ * as plain text from a local HTTP endpoint (e.g.
+ * {@code curl localhost:9883}).
  */
 public class ChatServer {
 
     private static final Logger LOGGER = Logger.getLogger(ChatServer.class.getName());
 
-    public final  int        port;
-    private final MqttServer instance;
-
-    private ChatServer(int port, MqttServer instance) {
-        this.port = port;
+    /**
+     * Parent logger of all broker components (keeps the configured level).
+     */
+    private static final Logger ROOT_LOGGER = Logger.getLogger(ChatServer.class.getPackageName());
+
+    /**
+     * The interval in which the configuration file is checked for changes.
+     */
+    private static final long CONFIG_CHECK_INTERVAL = 2000;
+
+    /**
+     * The settings (see {@link Config}) of the options of the command line.
+     */
+    private static final Map<String, String> OPTIONS = Map.of(
+            "p", Config.MQTT_PORT_KEY,
+            "i", Config.EVENT_LOOPS_KEY,
+            "r", Config.RETAINED_MAX_KEY,
+            "w", Config.INFLIGHT_MAX_KEY,
+            "m", Config.METRICS_PORT_KEY,
+            "o", Config.OUTBOUND_MAX_KEY,
+            "s", Config.OUTBOUND_POLICY_KEY,
+            "c", Config.CLUSTER_PORT_KEY,
+            "n", Config.CLUSTER_NODES_KEY
+    );
+
+    public final  Config              config;
+    private final Path                file;
+    private final Map<String, String> overrides;
+    private final Vertx               instance;
+
+    private ChatServer(Config config, Path file, Map<String, String> overrides, Vertx instance) {
+        this.config = config;
+        this.file = file;
+        this.overrides = overrides;
         this.instance = instance;
     }
 
-    public ChatServer(int port) {
-        this(port, null);
+    /**
+     * @param config    The configuration of the server
+     * @param file      The configuration file, which is watched for changes;
+     *                  {@code null} if there is none
+     * @param overrides The options of the command line (which always take
+     *                  precedence over the file)
+     */
+    public ChatServer(Config config, Path file, Map<String, String> overrides) {
+        this(config, file, overrides, null);
     }
 
     private static Optional<ChatServer> init(String[] args) throws ParseException {
@@ -45,8 +130,77 @@ public class ChatServer {
                 .type(Number.class)
                 .build();
 
+        Option instancesOpt = Option.builder("i")
+                .longOpt("instances")
+                .desc("The number of server instances (event loops); defaults to the number of cores")
+                .hasArg(true)
+                .type(Number.class)
+                .build();
+
+        Option retainedOpt = Option.builder("r")
+                .longOpt("retained-limit")
+                .desc("The maximum memory (in bytes) of all retained messages")
+                .hasArg(true)
+                .type(Number.class)
+                .build();
+
+        Option inflightOpt = Option.builder("w")
+                .longOpt("inflight-window")
+                .desc("The maximum number of unacknowledged QoS 1/2 messages per client")
+                .hasArg(true)
+                .type(Number.class)
+                .build();
+
+        Option metricsOpt = Option.builder("m")
+                .longOpt("metrics-port")
+                .desc("The (local) port of the metrics endpoint; 0 to disable it")
+                .hasArg(true)
+                .type(Number.class)
+                .build();
+
+        Option outboundOpt = Option.builder("o")
+                .longOpt("outbound-limit")
+                .desc("The maximum size (in bytes) of the outbound queue per client")
+                .hasArg(true)
+                .type(Number.class)
+                .build();
+
+        Option policyOpt = Option.builder("s")
+                .longOpt("slow-consumer")
+                .desc("What happens if the outbound queue of a client is full: drop (QoS 0 messages), disconnect or spill (to disk)")
+                .hasArg(true)
+                .build();
+
+        Option clusterOpt = Option.builder("c")
+                .longOpt("cluster-port")
+                .desc("The port for the other nodes of the cluster to connect to (enables the cluster mode)")
+                .hasArg(true)
+                .type(Number.class)
+                .build();
+
+        Option nodesOpt = Option.builder("n")
+                .longOpt("nodes")
+                .desc("The comma separated addresses (host:port) of the other nodes of the cluster")
+                .hasArg(true)
+                .build();
+
+        Option configOpt = Option.builder("f")
+                .longOpt("config")
+                .desc("The configuration file, which is reloaded as soon as it changes (see Config)")
+                .hasArg(true)
+                .build();
+
         Options cliOptions = new Options()
                 .addOption(opt)
+                .addOption(instancesOpt)
+                .addOption(retainedOpt)
+                .addOption(inflightOpt)
+                .addOption(metricsOpt)
+                .addOption(outboundOpt)
+                .addOption(policyOpt)
+                .addOption(clusterOpt)
+                .addOption(nodesOpt)
+                .addOption(configOpt)
                 .addOption("h", "help", false, "Print command help")
                 .addOption("v", "verbose", false, "Print detailed logging information");
 
@@ -57,26 +211,39 @@ public class ChatServer {
                         return Optional.empty();
                     }
 
-                    int port = Optional.of(cmd)
-                            .filter(c -> c.hasOption('h'))
-                            .map((TFunction<CommandLine, Object>) c ->
-                                    (Number) c.getParsedOptionValue("h"))
-                            .map(Number.class::cast)
-                            .map(Number::intValue)
-                            .orElse(MQTT_PORT);
+                    // the options of the command line override the
+                    // configuration file and the environment
+                    var overrides = new HashMap<String, String>();
+                    OPTIONS.forEach((name, key) ->
+                            Optional.ofNullable(cmd.getOptionValue(name))
+                                    .ifPresent(value -> overrides.put(key, value)));
+
+                    var file = Config.file(Optional.ofNullable(cmd.getOptionValue('f'))
+                            .map(Paths::get)
+                            .orElse(null));
+
+                    Config config;
+                    try {
+                        config = Config.init(file, overrides);
+                    } catch (IOException | IllegalArgumentException e) {
+                        LOGGER.severe("Invalid configuration: " + e.getMessage());
+                        return Optional.empty();
+                    }
 
                     Level level = Optional.of(cmd)
                             .filter(c -> c.hasOption('v'))
                             .map(__ -> Level.ALL)
                             .orElse(Level.INFO);
 
-                    return Optional.of(T.of(port, level));
+                    return Optional.of(T.of(new ChatServer(config, file, Map.copyOf(overrides)), level));
                 })
                 .map(p -> {
-                    LOGGER.setLevel(p._2);
+                    ROOT_LOGGER.setLevel(p._2);
+                    // the console handler filters fine messages on its own
+                    for (var handler : Logger.getLogger("").getHandlers())
+                        handler.setLevel(p._2);
                     return p._1;
-                })
-                .map(ChatServer::new);
+                });
     }
 
     public static void main(String[] args) throws ParseException {
@@ -98,98 +265,99 @@ public class ChatServer {
         if (instance != null)
             return this;
 
-        Vertx vertx = Vertx.vertx();
-
-        MqttServerOptions options = new MqttServerOptions()
-                .setPort(MQTT_PORT);
-
-        MqttServer server = MqttServer.create(vertx, options)
-                .endpointHandler(endpoint -> {
-                    // shows main connect info
-                    LOGGER.info("MQTT client [" + endpoint.clientIdentifier() + "] request to connect, clean session = " + endpoint.isCleanSession());
+        var instances = config.eventLoops;
 
-                    Optional.ofNullable(endpoint.will())
-                            .ifPresent(will ->
-                                    LOGGER.info("[will topic = " + will.willTopic() + " msg = " + will.willMessage() +
-                                            " QoS = " + will.willQos() + " isRetain = " + will.isWillRetain() + "]")
-                            );
+        // provide (at least) one event loop per server instance
+        Vertx vertx = Vertx.vertx(new VertxOptions()
+                .setEventLoopPoolSize(Math.max(instances, VertxOptions.DEFAULT_EVENT_LOOP_POOL_SIZE)));
 
-                    LOGGER.info("[keep alive timeout = " + endpoint.keepAliveTimeSeconds() + "]");
+        // state that is shared by all server instances
+        var broker = new Broker(config.retainedMaxBytes, config.sessionSettings());
+        var admission = new Admission(config.admissionSettings(), broker.metrics());
 
-                    endpoint.subscribeHandler(subscription -> endpoint.subscribeAcknowledge(
-                            subscription.messageId(),
-                            subscription.topicSubscriptions().stream()
-                                    .peek(t ->
-                                            System.out.println("subscription of topic " + t.topicName()))
-                                    .map(MqttTopicSubscription::qualityOfService)
-                                    .collect(Collectors.toList())
-                    ));
+        // periodically remove persistent sessions of clients that did not
+        // come back in time (the expiry may change at runtime)
+        vertx.setPeriodic(Math.max(1, config.sessionExpiry / 10), __ ->
+                broker.expireSessions(Config.current().sessionExpiry));
 
-                    endpoint.unsubscribeHandler(unsubscribe -> {
+        // the joined / left members of every channel are announced in
+        // batches rather than one by one
+        vertx.setPeriodic(config.presenceLinger, __ ->
+                broker.announcePresence(Config.current().qosPresence));
 
-                        unsubscribe.topics().stream()
-                                .map(t -> "Unsubscribe for " + t)
-                                .forEach(System.out::println);
+        registerMetrics(vertx, broker.metrics());
 
-                        // ack the unsubscribe request
-                        endpoint.unsubscribeAcknowledge(unsubscribe.messageId());
-                    });
-
-                    endpoint.publishHandler(message -> {
+        if (file != null)
+            new ConfigWatcher(vertx, file, System.getenv(), overrides, next -> {
+                broker.configure(next.sessionSettings());
+                admission.configure(next.admissionSettings());
+            }).start(CONFIG_CHECK_INTERVAL);
 
-                        System.out.println("Just received message [" + message.payload().toString() + "] with QoS [" + message.qosLevel() + "]");
+        if (config.clusterPort > 0) {
+            var cluster = new Cluster(CLUSTER_HOST, config.clusterPort, config.clusterNodes, broker.metrics());
+            broker.join(cluster);
 
-                        switch (message.qosLevel()) {
-                            case AT_LEAST_ONCE:
-                                endpoint.publishAcknowledge(message.messageId());
-                                break;
-                            case EXACTLY_ONCE:
-                                endpoint.publishRelease(message.messageId());
-                                break;
-                            default:
-                                break;
+            vertx.getDelegate().deployVerticle(
+                    new ClusterVerticle(cluster, broker, CLUSTER_HOST, config.clusterPort),
+                    result -> {
+                        if (result.failed()) {
+                            LOGGER.info("Error on joining the cluster");
+                            result.cause().printStackTrace();
                         }
+                    });
+        }
 
-                        endpoint.publish(
-                                message.topicName(),
-                                message.payload(),
-                                message.qosLevel(),
-                                message.isDup(),
-                                message.isRetain()
-                        );
-                    }).publishReleaseHandler(endpoint::publishComplete);
-
-//                    endpoint
-//                            .publishAcknowledgeHandler(messageId ->
-//                                    System.out.println("Received ack for message = " + messageId))
-//                            .publishReceivedHandler(endpoint::publishRelease)
-//                            .publishCompletionHandler(messageId ->
-//                                    System.out.println("Received ack for message = " + messageId));
-
-                    endpoint.disconnectHandler(__ ->
-                            System.out.println("Received disconnect from client"));
-
-                    // accept connection from the remote client
-                    endpoint.accept(false);
-                })
-                .exceptionHandler(e -> {
-                    LOGGER.info("[critical] " + e.getMessage());
-                    e.printStackTrace();
-                })
-                .listen(result -> {
+        vertx.getDelegate().deployVerticle(
+                () -> new BrokerVerticle(broker, admission, config.mqttPort, instances),
+                new DeploymentOptions().setInstances(instances),
+                result -> {
                     if (result.succeeded())
-                        LOGGER.info("MQTT server is listening on port " + result.result().actualPort());
+                        LOGGER.info("Deployed " + instances + " server instances");
                     else {
                         LOGGER.info("Error on starting the server");
                         result.cause().printStackTrace();
                     }
                 });
 
-        return new ChatServer(port, server);
+        return new ChatServer(config, file, overrides, vertx);
+    }
+
+    /**
+     * Exposes the metrics through JMX and (if enabled) a local HTTP endpoint
+     * that returns them as plain text.
+     */
+    private void registerMetrics(Vertx vertx, BrokerMetrics metrics) {
+        try {
+            var name = new ObjectName("skloibi:type=ChatServer,port=" + config.mqttPort);
+            var server = ManagementFactory.getPlatformMBeanServer();
+
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+
+            server.registerMBean(metrics, name);
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Could not register the metrics MBean", e);
+        }
+
+        var metricsPort = config.metricsPort;
+
+        if (metricsPort <= 0)
+            return;
+
+        vertx.createHttpServer()
+                .requestHandler(request -> request.response()
+                        .putHeader("Content-Type", "text/plain; charset=utf-8")
+                        .end(metrics.dump()))
+                .listen(metricsPort, METRICS_HOST, result -> {
+                    if (result.succeeded())
+                        LOGGER.info("Metrics are available at http://" + METRICS_HOST + ":" + metricsPort);
+                    else
+                        LOGGER.log(Level.WARNING, "Could not start the metrics endpoint", result.cause());
+                });
     }
 
     public ChatServer stop() {
         this.instance.close(result -> LOGGER.info("Shutting down chat server"));
-        return new ChatServer(port);
+        return new ChatServer(config, file, overrides);
     }
 }
@@ -9,26 +9,39 @@ import io.vertx.reactivex.core.AbstractVerticle;
 import io.vertx.reactivex.core.Vertx;
 import io.vertx.reactivex.core.buffer.Buffer;
 import io.vertx.reactivex.mqtt.MqttClient;
+import skloibi.persistence.HistoryRing;
+import skloibi.props.Config;
 import skloibi.props.Messages;
 import skloibi.props.Properties;
+import skloibi.utils.BlockingExecutor;
+import skloibi.utils.Envelope;
 import skloibi.utils.Topics;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class Client extends AbstractVerticle {
 
-    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm:ss");
+    /**
+     * The console output (see {@link Console}).
+     */
+    static final Console console = new Console(Properties.CONSOLE_CAPACITY, Properties.CONSOLE_SCREEN);
 
     private static final Logger logger = Logger.getLogger(Client.class.getName());
 
     /**
      * Utility to publish MQTT messages with predefined options.
+     * Chat messages are not retained (only state like the status of the
+     * {@link LogBot} is), so users that enter the channel later on do not
+     * see stale messages. Large messages are compressed (see
+     * {@link Config#compressThreshold}).
      *
      * @param client   The client that manages the connection
      * @param channel  The channel name to publish the message into
@@ -38,10 +51,10 @@ public class Client extends AbstractVerticle {
      * @param qos      The MQTT Quality-of-Service to use
      * @return the client instance
      */
-    private MqttClient publish(MqttClient client, String channel, String username, String message, MqttQoS qos) {
+    static MqttClient publish(MqttClient client, String channel, String username, String message, MqttQoS qos) {
         return client.publish(
                 Topics.publishTo(channel, username),
-                Buffer.buffer(message),
+                Envelope.compress(message, Config.current().compressThreshold),
                 qos,
                 false,
                 false
@@ -58,7 +71,7 @@ public class Client extends AbstractVerticle {
      * @param message The input message
      * @return the client instance
      */
-    private MqttClient handleInput(MqttClient client, User user, String message) {
+    static MqttClient handleInput(MqttClient client, User user, String message) {
         // retrieve optional command
         Messages.getCommand(message)
                 .subscribe(
@@ -67,7 +80,16 @@ public class Client extends AbstractVerticle {
                             switch (cmd._1) {
                                 case GOTO:
                                     var target = cmd._2.split(" ", 2)[0];
-                                    changeChannel(client, user, target);
+                                    if (target.isEmpty())
+                                        console.println(Messages.INVALID);
+                                    else
+                                        changeChannel(client, user, target);
+                                    break;
+                                case HISTORY:
+                                    requestHistory(client, user, cmd._2.split(" ", 2)[0]);
+                                    break;
+                                case WHO:
+                                    requestMembers(client, user, cmd._2.split(" ", 2)[0]);
                                     break;
                                 case TO:
                                     var params = cmd._2.split(" ", 2);
@@ -75,10 +97,12 @@ public class Client extends AbstractVerticle {
                                         break;
                                     var targetUser = params[0];
                                     var msg = params[1];
+                                    // whispers are delivered at least once, so that
+                                    // they survive a short disconnect of the target
                                     client.publish(
                                             Topics.publishToPersonal(user.getName(), targetUser),
-                                            Buffer.buffer(msg),
-                                            Properties.QOS_MESSAGE,
+                                            Envelope.compress(msg, Config.current().compressThreshold),
+                                            Config.current().qosWhisper,
                                             false,
                                             false
                                     );
@@ -87,9 +111,14 @@ public class Client extends AbstractVerticle {
                             }
                         },
                         // error => invalid command
-                        e -> System.out.println(Messages.INVALID),
+                        e -> console.println(Messages.INVALID),
                         // complete / no value => common message
-                        () -> publish(client, user.getChannel(), user.getName(), message, Properties.QOS_MESSAGE)
+                        // (possibly coalesced with the next ones)
+                        () -> user.getBatcher().ifPresentOrElse(
+                                batcher -> batcher.add(
+                                        Topics.publishTo(user.getChannel(), user.getName()), user.getName(), message),
+                                () -> publish(client, user.getChannel(), user.getName(), message,
+                                        Config.current().qosMessage))
                 );
 
         return client;
@@ -98,47 +127,31 @@ public class Client extends AbstractVerticle {
     /**
      * Utility that changes the given user's main channel to the corresponding
      * target.
+     * The broker announces that the user left the previous channel and
+     * joined the new one (see {@link skloibi.broker.Presence}).
      *
      * @param client The MQTT client that manages the connection
      * @param user   The corresponding user
      * @param next   The target topic
      * @return the client instance
      */
-    private MqttClient changeChannel(MqttClient client, User user, String next) {
+    static MqttClient changeChannel(MqttClient client, User user, String next) {
         // usage of optional to check if user already has a channel
         Optional
                 .ofNullable(user.getChannel())
-                .ifPresent(channel -> {
-                    // if user is already in channel, unsubscribe to it before
-                    // subscribing to the new topic
-                    client.unsubscribe(Topics.listenTo(user.getChannel()));
-                    // publish a goodbye message to the previous channel
-                    publish(
-                            client,
-                            user.getChannel(),
-                            user.getName(),
-                            Messages.LEFT,
-                            Properties.QOS_SYSTEM
-                    );
-                });
+                // if user is already in channel, unsubscribe to it before
+                // subscribing to the new topic
+                .ifPresent(channel -> client.unsubscribe(Topics.listenTo(channel)));
 
         // subscribe to new topic
         return client.subscribe(
                 Topics.listenTo(next),
-                Properties.QOS_MESSAGE.value(),
+                Config.current().qosMessage.value(),
                 sub -> sub
                         // on success of subscription
                         .map(s -> {
                             // set the new channel
                             user.setChannel(next);
-                            // send notification about new user to channel
-                            publish(
-                                    client,
-                                    next,
-                                    user.getName(),
-                                    Messages.JOINED,
-                                    Properties.QOS_SYSTEM
-                            );
                             return s;
                         })
                         // error handler if subscription fails
@@ -149,10 +162,129 @@ public class Client extends AbstractVerticle {
         );
     }
 
+    /**
+     * Asks the history service for the last messages of the user's current
+     * channel. The reply is received on the personal channel.
+     *
+     * @param client The MQTT client that manages the connection
+     * @param user   The corresponding user
+     * @param count  The number of messages
+     */
+    private static void requestHistory(MqttClient client, User user, String count) {
+        try {
+            var messages = Integer.parseInt(count);
+
+            if (messages <= 0 || user.getChannel() == null) {
+                console.println(Messages.INVALID);
+                return;
+            }
+
+            client.publish(
+                    Topics.publishToPersonal(user.getName(), Topics.HISTORY),
+                    Buffer.buffer(messages + " " + user.getChannel()),
+                    Config.current().qosWhisper,
+                    false,
+                    false
+            );
+        } catch (NumberFormatException e) {
+            console.println(Messages.INVALID);
+        }
+    }
+
+    /**
+     * Asks the broker for the members of the given channel (or the user's
+     * current channel). The reply is received on the personal channel.
+     *
+     * @param client  The MQTT client that manages the connection
+     * @param user    The corresponding user
+     * @param channel The channel; empty for the current one
+     */
+    private static void requestMembers(MqttClient client, User user, String channel) {
+        var target = channel.isEmpty() ? user.getChannel() : channel;
+
+        if (target == null) {
+            console.println(Messages.INVALID);
+            return;
+        }
+
+        client.publish(
+                Topics.publishToPersonal(user.getName(), Topics.PRESENCE),
+                Buffer.buffer(target),
+                Config.current().qosWhisper,
+                false,
+                false
+        );
+    }
+
+    /**
+     * Queues a received message for the console; it is only parsed and
+     * formatted on the render thread, so the event loop does not wait.
+     *
+     * @param topic   The full topic name
+     * @param payload The message
+     */
+    private static void print(String topic, Buffer payload) {
+        var received = System.currentTimeMillis();
+
+        console.print(out -> render(out, received, topic, payload));
+    }
+
+    /**
+     * Writes a received message (or all messages of a history reply).
+     *
+     * @param out      The console output
+     * @param received The time the message was received
+     * @param topic    The full topic name
+     * @param payload  The message
+     */
+    private static void render(PrintWriter out, long received, String topic, Buffer payload) {
+        if (Topics.isPersonal(topic) && Topics.HISTORY.equals(Topics.userFromTopic(topic))) {
+            // [channel length][channel][records]
+            var channelLength = payload.getShort(0);
+            var channel = payload.getString(2, 2 + channelLength);
+
+            HistoryRing.read(payload, 2 + channelLength, (user, timestamp, message) ->
+                    render(out, timestamp, channel, user, message));
+        } else if (Topics.isPersonal(topic) && Topics.PRESENCE.equals(Topics.userFromTopic(topic))) {
+            // [channel] [member]*
+            var members = payload.toString().split(" ");
+
+            render(out, received, members[0], Topics.PRESENCE,
+                    String.join(", ", Arrays.asList(members).subList(1, members.length)));
+        } else if (Topics.PRESENCE.equals(Topics.userFromTopic(topic))) {
+            // one line per kind of change, e.g. ":joined alice bob"
+            for (var change : payload.toString().split("\n")) {
+                var names = change.split(" ");
+
+                render(out, received, Topics.shortName(topic),
+                        String.join(", ", Arrays.asList(names).subList(1, names.length)), names[0]);
+            }
+        } else {
+            var channel = Topics.shortName(topic);
+
+            // a single message or an envelope of several ones
+            Envelope.read(payload, Topics.userFromTopic(topic), received, (user, timestamp, message) ->
+                    render(out, timestamp, channel, user, message));
+        }
+    }
+
+    private static void render(PrintWriter out, long time, String channel, String user, Buffer message) {
+        render(out, time, channel, user, Envelope.text(message));
+    }
+
+    private static void render(PrintWriter out, long time, String channel, String user, String message) {
+        out.printf("[%s] /%-5s %s: %s\n", console.time(time), channel, user, message);
+    }
+
     @Override
     public void start(Future<Void> startFuture) {
         final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
 
+        // the console is read by a single (platform or virtual) thread
+        // instead of the unbounded IO scheduler
+        final var input = Schedulers.from(new BlockingExecutor("console-input", 1, Properties.BLOCKING_CAPACITY,
+                Config.current().blockingMode));
+
         // observable that "blocks" / does not emit values until
         // the user enters his name
         Observable
@@ -170,16 +302,24 @@ public class Client extends AbstractVerticle {
                 // map to user object an initialize current topic with null
                 // (is set when the channel is entered)
                 .map(username -> new User(username, null))
-                // use IO scheduler to allow blocking operation
-                .subscribeOn(Schedulers.io())
+                // use the input thread to allow blocking operation
+                .subscribeOn(input)
                 .subscribe(user -> {
 
+                    // the session is kept by the broker, so that whispers
+                    // are not lost during a short disconnect
                     var opts = new MqttClientOptions()
                             .setClientId(user.getName())
+                            .setCleanSession(false)
                             .setAutoKeepAlive(true);
 
                     var client = MqttClient.create(vertx, opts);
 
+                    // bots (or impatient users) may coalesce their messages
+                    if (Config.current().batchLinger > 0)
+                        user.setBatcher(new Batcher(vertx, client, Config.current().batchMaxBytes,
+                                Config.current().batchLinger, Config.current().qosMessage));
+
                     // This generator usage basically blocks until user
                     // input and then passes it on.
                     // If the user enters "exit", the observable is completed
@@ -192,40 +332,33 @@ public class Client extends AbstractVerticle {
                                 else if (!in.isEmpty())
                                     gen.onNext(in);
                             })
-                            // again IO scheduler for blocking operation
-                            .subscribeOn(Schedulers.io())
+                            // again the input thread for blocking operation
+                            .subscribeOn(input)
                             .subscribe(
-                                    msg -> handleInput(client, user, msg),
+                                    // the client is only used on its own context, as
+                                    // publishing from the IO thread can deadlock with
+                                    // the acknowledgement of an incoming message
+                                    msg -> context.runOnContext(__ -> handleInput(client, user, msg)),
                                     e -> logger.log(Level.SEVERE, "Subscription error", e),
-                                    () -> {
-                                        publish(
-                                                client,
-                                                user.getChannel(),
-                                                user.getName(),
-                                                Messages.LEFT,
-                                                Properties.QOS_SYSTEM
-                                        );
+                                    // the broker announces that the user left
+                                    () -> context.runOnContext(__ -> {
                                         logger.info("Closing connection");
-                                    });
+                                        user.getBatcher().ifPresent(Batcher::flush);
+                                        client.disconnect();
+                                    }));
 
                     // attempt connect
-                    client.connect(Properties.MQTT_PORT, Properties.BROKER, ch -> {
+                    client.connect(Config.current().mqttPort, Config.current().brokerHost, ch -> {
                         // set publish callback (for each message in a subscribed topic)
                         client
                                 // subscribe to personal profiles
-                                .subscribe(Topics.listenToOwn(user.getName()), Properties.QOS_MESSAGE.value());
+                                .subscribe(Topics.listenToOwn(user.getName()), Config.current().qosWhisper.value());
                         // subscribe to global channel
                         // here I use the helper function that also signals
                         // a user's presence ("previous" topic here of course is null)
                         changeChannel(client, user, Topics.ALL)
                                 .subscribeCompletionHandler(__ ->
-                                        client.publishHandler(msg -> System.out.printf(
-                                                "[%s] /%-5s %s: %s\n",
-                                                formatter.format(LocalDateTime.now()),
-                                                Topics.shortName(msg.topicName()),
-                                                Topics.userFromTopic(msg.topicName()),
-                                                msg.payload())
-                                        )
+                                        client.publishHandler(msg -> print(msg.topicName(), msg.payload()))
                                 );
 
                         startFuture.complete();
@@ -233,7 +366,10 @@ public class Client extends AbstractVerticle {
                 });
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        // the broker address and the QoS levels (see Config)
+        Config.init(null, Map.of());
+
         Vertx vertx = Vertx.vertx();
 
         vertx.deployVerticle(Client.class.getCanonicalName());
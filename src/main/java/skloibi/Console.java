@@ -0,0 +1,139 @@
+package skloibi;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Render stage of the console output, so the event loop never waits for the
+ * terminal.
+ * <p>
+ * Lines are only queued by {@link #print(Line)} (a bounded queue, which drops
+ * the oldest lines if it is full) and written by a dedicated thread. The
+ * thread writes all pending lines as a single batch through a buffered
+ * writer, which is flushed once per batch. If the user falls behind, i.e.
+ * more than a screen of lines is pending, only the newest screen is written
+ * after a {@code "... N more messages"} marker.
+ */
+public class Console {
+
+    private static final Logger logger = Logger.getLogger(Console.class.getName());
+
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    private final BlockingQueue<Line> queue;
+    private final int                 screen;
+    private final PrintWriter         out;
+
+    /**
+     * The number of lines that were dropped (as the queue was full) since the
+     * last batch.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * The last formatted second (only accessed by the render thread).
+     */
+    private long   second = Long.MIN_VALUE;
+    private String time;
+
+    /**
+     * @param capacity The maximum number of pending lines
+     * @param screen   The maximum number of lines that are written at once
+     */
+    public Console(int capacity, int screen) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.screen = screen;
+        // the standard output without the lock of System.out
+        this.out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)), 64 * 1024));
+
+        var thread = new Thread(this::render, "console-render");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a line, which is rendered on the render thread. Never blocks.
+     *
+     * @param line Writes the line(s)
+     */
+    public void print(Line line) {
+        while (!queue.offer(line))
+            // the user fell behind anyway, so drop the oldest line
+            if (queue.poll() != null)
+                dropped.incrementAndGet();
+    }
+
+    /**
+     * Queues a line of text.
+     *
+     * @param text The text
+     */
+    public void println(Object text) {
+        print(writer -> writer.println(text));
+    }
+
+    /**
+     * Formats a time of the day; the result is cached for a second. Must only
+     * be used by a {@link Line}, i.e. on the render thread.
+     *
+     * @param millis The epoch time in milliseconds
+     * @return the formatted time, e.g. {@code 13:37:00}
+     */
+    public String time(long millis) {
+        if (millis / 1000 != second) {
+            second = millis / 1000;
+            time = formatter.format(Instant.ofEpochMilli(millis));
+        }
+
+        return time;
+    }
+
+    private void render() {
+        var batch = new ArrayList<Line>();
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+
+                // collapse everything but the newest screen
+                var skipped = dropped.getAndSet(0) + Math.max(0, batch.size() - screen);
+                if (skipped > 0)
+                    out.printf("... %d more messages\n", skipped);
+
+                for (var i = Math.max(0, batch.size() - screen); i < batch.size(); i++)
+                    batch.get(i).render(out);
+
+                out.flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "could not render line", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes a line (or several lines) on the render thread.
+     */
+    @FunctionalInterface
+    public interface Line {
+        void render(PrintWriter out);
+    }
+}
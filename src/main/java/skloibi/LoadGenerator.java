@@ -0,0 +1,325 @@
+package skloibi;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.VertxOptions;
+import io.vertx.mqtt.MqttClientOptions;
+import io.vertx.reactivex.core.AbstractVerticle;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.reactivex.mqtt.MqttClient;
+import org.apache.commons.cli.*;
+import skloibi.props.Command;
+import skloibi.props.Config;
+import skloibi.props.Messages;
+import skloibi.utils.Envelope;
+import skloibi.utils.LatencyHistogram;
+import skloibi.utils.TFunction;
+import skloibi.utils.Topics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Headless load generator that simulates many chat users against a
+ * (local) {@link ChatServer}.
+ * Every simulated user behaves like an interactive {@link Client} (and in
+ * fact uses the same input handling): it periodically sends a message to its
+ * current channel, occasionally whispers to another user ({@code :to}) or
+ * switches to another channel ({@code :goto}).
+ * <p>
+ * Each payload starts with the time it was sent, which allows to measure the
+ * end-to-end delivery latency of every received message.
+ * The throughput is printed every second, the latency percentiles at the end.
+ */
+public class LoadGenerator extends AbstractVerticle {
+
+    private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+
+    /**
+     * The MQTT client logs every single connect, which is too verbose for
+     * thousands of users (kept here as loggers are only weakly referenced).
+     */
+    private static final Logger MQTT_LOGGER = Logger.getLogger("io.vertx.mqtt");
+
+    private static final String COMMAND = "loadgenerator";
+
+    private final Settings settings;
+    private final Stats    stats;
+    private final int      first;
+    private final int      count;
+
+    private LoadGenerator(Settings settings, Stats stats, int first, int count) {
+        this.settings = settings;
+        this.stats = stats;
+        this.first = first;
+        this.count = count;
+    }
+
+    @Override
+    public void start(Future<Void> startFuture) {
+        // spread the first messages over one period to avoid bursts
+        var period = Math.max(1, Math.round(1000.0 / settings.rate));
+
+        for (var i = first; i < first + count; i++) {
+            var user = new User("load" + i, null);
+
+            var opts = new MqttClientOptions()
+                    .setClientId(user.getName())
+                    .setMaxInflightQueue(Short.MAX_VALUE)
+                    .setAutoKeepAlive(true);
+
+            var client = MqttClient.create(vertx, opts);
+
+            // the batches of the users are configured like those of a client
+            if (Config.current().batchLinger > 0)
+                user.setBatcher(new Batcher(vertx, client, Config.current().batchMaxBytes,
+                        Config.current().batchLinger, Config.current().qosMessage));
+
+            // a single message or an envelope of several ones
+            client.publishHandler(msg -> Envelope.read(msg.payload(), Topics.userFromTopic(msg.topicName()), 0,
+                    (sender, timestamp, text) -> stats.receive(text)));
+
+            client.connect(settings.port, settings.host, ch -> {
+                if (ch.failed()) {
+                    logger.warning("could not connect " + user.getName() + ": " + ch.cause().getMessage());
+                    return;
+                }
+
+                client.subscribe(Topics.listenToOwn(user.getName()), Config.current().qosWhisper.value());
+                Client.changeChannel(client, user, Topics.ALL);
+
+                vertx.setTimer(1 + ThreadLocalRandom.current().nextLong(period), __ ->
+                        vertx.setPeriodic(period, ___ -> act(client, user)));
+            });
+        }
+
+        startFuture.complete();
+    }
+
+    /**
+     * Performs a single random action of the given user.
+     */
+    private void act(MqttClient client, User user) {
+        // wait until the user has entered a channel
+        if (user.getChannel() == null || !client.isConnected())
+            return;
+
+        var random = ThreadLocalRandom.current();
+        var chance = random.nextDouble();
+
+        String input;
+
+        if (chance < settings.gotoChance)
+            input = command(Command.GOTO, "channel" + random.nextInt(settings.channels));
+        else if (chance < settings.gotoChance + settings.whisperChance)
+            input = command(Command.TO, "load" + random.nextInt(settings.users) + " " + payload());
+        else
+            input = payload();
+
+        Client.handleInput(client, user, input);
+        stats.sent.increment();
+    }
+
+    private static String command(Command command, String params) {
+        return Messages.COMMAND_PREFIX + command.name().toLowerCase() + " " + params;
+    }
+
+    /**
+     * @return a message with the current time and the configured size
+     */
+    private String payload() {
+        var text = new StringBuilder(settings.size)
+                .append(System.nanoTime())
+                .append(' ');
+
+        while (text.length() < settings.size)
+            text.append('x');
+
+        return text.toString();
+    }
+
+    private static Optional<Settings> init(String[] args) throws ParseException {
+        Options cliOptions = new Options()
+                .addOption(number("u", "users", "The number of simulated users"))
+                .addOption(number("l", "loops", "The number of event loops"))
+                .addOption(number("r", "rate", "The number of messages per second and user"))
+                .addOption(number("s", "size", "The size of each message (in bytes)"))
+                .addOption(number("c", "channels", "The number of channels to switch between"))
+                .addOption(number("g", "goto", "The chance of a channel switch per action (0 - 1)"))
+                .addOption(number("w", "whisper", "The chance of a whisper per action (0 - 1)"))
+                .addOption(number("d", "duration", "The duration of the test (in seconds)"))
+                .addOption(number("p", "port", "The port of the broker"))
+                .addOption(Option.builder("b")
+                        .longOpt("broker")
+                        .desc("The host of the broker")
+                        .hasArg(true)
+                        .build())
+                .addOption("h", "help", false, "Print command help");
+
+        return Optional.of(new DefaultParser().parse(cliOptions, args))
+                .flatMap(cmd -> {
+                    if (cmd.hasOption('h')) {
+                        new HelpFormatter().printHelp(COMMAND, cliOptions);
+                        return Optional.empty();
+                    }
+
+                    return Optional.of(new Settings(
+                            value(cmd, "u", 1000).intValue(),
+                            value(cmd, "l", Runtime.getRuntime().availableProcessors()).intValue(),
+                            value(cmd, "r", 1).doubleValue(),
+                            value(cmd, "s", 64).intValue(),
+                            value(cmd, "c", 10).intValue(),
+                            value(cmd, "g", 0.01).doubleValue(),
+                            value(cmd, "w", 0.1).doubleValue(),
+                            value(cmd, "d", 60).intValue(),
+                            Optional.ofNullable(cmd.getOptionValue('b')).orElse(Config.current().brokerHost),
+                            value(cmd, "p", Config.current().mqttPort).intValue()
+                    ));
+                });
+    }
+
+    private static Option number(String opt, String longOpt, String desc) {
+        return Option.builder(opt)
+                .longOpt(longOpt)
+                .desc(desc)
+                .hasArg(true)
+                .type(Number.class)
+                .build();
+    }
+
+    private static Number value(CommandLine cmd, String opt, Number defaultValue) {
+        return Optional.of(cmd)
+                .filter(c -> c.hasOption(opt))
+                .map((TFunction<CommandLine, Object>) c -> c.getParsedOptionValue(opt))
+                .map(Number.class::cast)
+                .orElse(defaultValue);
+    }
+
+    public static void main(String[] args) throws ParseException, IOException {
+        MQTT_LOGGER.setLevel(Level.WARNING);
+        // the defaults of the broker address and the QoS levels
+        Config.init(null, Map.of());
+
+        init(args).ifPresent(settings -> {
+            var vertx = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(settings.loops));
+            var stats = new Stats();
+            var next = new AtomicInteger();
+            var perLoop = (settings.users + settings.loops - 1) / settings.loops;
+
+            // one verticle (i.e. event loop) per group of users
+            vertx.getDelegate().deployVerticle(
+                    () -> {
+                        var first = next.getAndAdd(perLoop);
+                        return new LoadGenerator(settings, stats, first, Math.max(0, Math.min(perLoop, settings.users - first)));
+                    },
+                    new DeploymentOptions().setInstances(settings.loops)
+            );
+
+            vertx.setPeriodic(1000, __ -> stats.printThroughput());
+
+            vertx.setTimer(TimeUnit.SECONDS.toMillis(settings.duration), __ -> {
+                stats.printLatency();
+                vertx.close();
+            });
+        });
+    }
+
+    /**
+     * The parameters of a load test.
+     */
+    private static final class Settings {
+        final int    users;
+        final int    loops;
+        final double rate;
+        final int    size;
+        final int    channels;
+        final double gotoChance;
+        final double whisperChance;
+        final int    duration;
+        final String host;
+        final int    port;
+
+        Settings(int users, int loops, double rate, int size, int channels, double gotoChance, double whisperChance, int duration, String host, int port) {
+            this.users = users;
+            this.loops = loops;
+            this.rate = rate;
+            this.size = size;
+            this.channels = channels;
+            this.gotoChance = gotoChance;
+            this.whisperChance = whisperChance;
+            this.duration = duration;
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    /**
+     * Statistics that are shared by all event loops.
+     */
+    private static final class Stats {
+        final LongAdder        sent     = new LongAdder();
+        final LongAdder        received = new LongAdder();
+        final LatencyHistogram latency  = new LatencyHistogram();
+
+        long lastSent     = 0;
+        long lastReceived = 0;
+
+        /**
+         * Records a received message. The embedded timestamp is parsed
+         * directly from the payload bytes; notifications without a timestamp
+         * (e.g. joined / left) are ignored.
+         */
+        void receive(Buffer payload) {
+            var now = System.nanoTime();
+            // large messages are compressed
+            var bytes = Envelope.isCompressed(payload)
+                    ? io.vertx.core.buffer.Buffer.buffer(Envelope.text(payload))
+                    : payload.getDelegate();
+            var sent = 0L;
+            var i = 0;
+
+            for (; i < bytes.length(); i++) {
+                var b = bytes.getByte(i);
+                if (b < '0' || b > '9')
+                    break;
+                sent = sent * 10 + (b - '0');
+            }
+
+            if (i == 0)
+                return;
+
+            received.increment();
+            latency.record(now - sent);
+        }
+
+        void printThroughput() {
+            var s = sent.sum();
+            var r = received.sum();
+
+            System.out.printf("sent %8d msg/s   received %8d msg/s%n", s - lastSent, r - lastReceived);
+
+            lastSent = s;
+            lastReceived = r;
+        }
+
+        void printLatency() {
+            System.out.printf(
+                    "sent %d, received %d messages%nlatency p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms%n",
+                    sent.sum(),
+                    received.sum(),
+                    latency.percentile(0.5) / 1e6,
+                    latency.percentile(0.99) / 1e6,
+                    latency.percentile(0.999) / 1e6,
+                    latency.max() / 1e6
+            );
+        }
+    }
+}
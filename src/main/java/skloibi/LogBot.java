@@ -1,21 +1,45 @@
 package skloibi;
 
-import com.github.davidmoten.rx.jdbc.ConnectionProvider;
-import com.github.davidmoten.rx.jdbc.ConnectionProviderFromUrl;
-import com.github.davidmoten.rx.jdbc.Database;
 import io.vertx.core.Future;
 import io.vertx.mqtt.MqttClientOptions;
 import io.vertx.reactivex.core.AbstractVerticle;
 import io.vertx.reactivex.core.Vertx;
 import io.vertx.reactivex.core.buffer.Buffer;
 import io.vertx.reactivex.mqtt.MqttClient;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 import rx.Observable;
-import skloibi.props.Properties;
-import skloibi.utils.T;
+import rx.Subscription;
+import skloibi.persistence.BatchWriter;
+import skloibi.persistence.ConnectionPool;
+import skloibi.persistence.Journal;
+import skloibi.persistence.JournalStore;
+import skloibi.persistence.HistoryRing;
+import skloibi.persistence.MessageSchema;
+import skloibi.persistence.MessageStore;
+import skloibi.props.Config;
+import skloibi.props.Messages;
+import skloibi.utils.BlockingExecutor;
+import skloibi.utils.Envelope;
 import skloibi.utils.Topics;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
 import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,6 +49,14 @@ import static skloibi.props.Properties.*;
  * Simple chat "bot" that logs all messages on every topic, saves them in a
  * database and periodically prints a summary of each user and his number of
  * published messages.
+ * <p>
+ * Instead of the database, the messages can be saved in a local journal
+ * (see {@link JournalStore}), which keeps up with high message rates and does
+ * not need a database server at all.
+ * <p>
+ * The bot also keeps the recent messages of every channel (see
+ * {@link HistoryRing}) and replays them on request, so users that enter a
+ * channel can catch up with the conversation.
  */
 public class LogBot extends AbstractVerticle {
     private static final Logger logger = Logger.getLogger(LogBot.class.getName());
@@ -45,20 +77,158 @@ public class LogBot extends AbstractVerticle {
     private static final long INTERVAL = 10;
 
     /**
-     * Initiate connection.
+     * Pool of the database connections; {@code null} if the messages are
+     * saved in the journal.
      */
-    private static ConnectionProvider connectionProvider = new ConnectionProviderFromUrl(
-            DB_URL,
-            DB_USER,
-            DB_PASS
-    );
+    private ConnectionPool connectionProvider;
+
+    /**
+     * The directory of the journal; {@code null} if the messages are saved in
+     * the database.
+     */
+    private final Path journal;
+
+    /**
+     * Storage of the received messages (e.g. a write-behind buffer that
+     * persists them in batches).
+     */
+    private MessageStore store;
+
+    /**
+     * Runs the blocking work of the store (e.g. the JDBC calls) with a
+     * bounded concurrency toward the database.
+     */
+    private BlockingExecutor blocking;
+
+    /**
+     * Number of published messages per user.
+     * Updated on the event loop and read by the periodic summary.
+     */
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+    /**
+     * The recent messages per channel (only accessed on the event loop).
+     */
+    private final Map<String, HistoryRing> histories = new HashMap<>();
+
+    /**
+     * The periodic creation of the upcoming partitions of the message table.
+     */
+    private long partitions = -1;
+
+    /**
+     * The periodic summary.
+     */
+    private Subscription summary;
+
+    /**
+     * Saves the messages in the database.
+     */
+    public LogBot() {
+        this(null);
+    }
+
+    /**
+     * @param journal The directory of the journal the messages are saved in;
+     *                {@code null} for the database
+     */
+    public LogBot(Path journal) {
+        this.journal = journal;
+    }
 
     @Override
     public void start(Future<Void> startFuture) {
+        var config = Config.current();
+
+        blocking = new BlockingExecutor(NAME, config.dbConcurrency, BLOCKING_CAPACITY, config.blockingMode);
+        logger.info("blocking work runs on " + blocking.mode().name().toLowerCase() + " threads");
+
+        if (journal == null) {
+            connectionProvider = new ConnectionPool(config.poolSettings());
+            store = new BatchWriter(vertx, blocking,
+                    connectionProvider, config.dbBatchSize, config.dbBatchLinger, config.dbQueueCapacity);
+
+            // the schema has to exist before anything is counted or written
+            blocking.<Void>submit(context, () -> {
+                schema(true);
+                return null;
+            }, __ -> seed(startFuture));
+
+            partitions = vertx.setPeriodic(DB_PARTITION_INTERVAL, __ ->
+                    blocking.<Void>submit(context, () -> {
+                        schema(false);
+                        return null;
+                    }, done -> {
+                    }));
+            return;
+        }
+
+        // opening the journal recovers its segments, so it is blocking
+        vertx.<Journal>executeBlocking(f -> {
+            try {
+                f.complete(Journal.open(journal, JOURNAL_SEGMENT_SIZE, JOURNAL_INDEX_INTERVAL));
+            } catch (IOException e) {
+                f.fail(e);
+            }
+        }, opened -> {
+            if (opened.failed()) {
+                logger.log(Level.SEVERE, "could not open the journal", opened.cause());
+                startFuture.fail(opened.cause());
+                return;
+            }
+
+            store = new JournalStore(vertx, opened.result(), JOURNAL_FLUSH_INTERVAL);
+            seed(startFuture);
+        });
+    }
+
+    /**
+     * Creates the message table (see {@link MessageSchema}) or only its
+     * upcoming partitions.
+     * Blocking, so it must be called by the blocking executor.
+     *
+     * @param bootstrap Whether the whole schema should be created
+     */
+    private void schema(boolean bootstrap) {
+        var today = LocalDate.now(ZoneOffset.UTC);
+
+        try (var connection = connectionProvider.get()) {
+            if (bootstrap)
+                MessageSchema.bootstrap(connection, today, DB_PARTITIONS_AHEAD);
+            else
+                MessageSchema.createPartitions(connection, today, DB_PARTITIONS_AHEAD);
+        } catch (SQLException | RuntimeException e) {
+            logger.log(Level.SEVERE, "could not create the message schema", e);
+        }
+    }
+
+    /**
+     * Seeds the counters once with the number of messages that were already
+     * logged.
+     * This has to be finished before any new message is counted, therefore
+     * the connection is only established afterwards.
+     *
+     * @param startFuture Completed as soon as the connection is established
+     */
+    private void seed(Future<Void> startFuture) {
+        blocking.<Void>submit(context, () -> {
+            store.counts((user, count) -> counter(user).add(count));
+            return null;
+        }, seeded -> {
+            if (seeded.failed())
+                logger.log(Level.SEVERE, "could not load message counts", seeded.cause());
 
-        // the database manager that is used throughout the workflow
-        var db = Database.from(connectionProvider);
+            connect(startFuture);
+        });
+    }
 
+    /**
+     * Connects to the broker, starts logging all messages and periodically
+     * prints the summary.
+     *
+     * @param startFuture Completed as soon as the connection is established
+     */
+    private void connect(Future<Void> startFuture) {
         // simply set the client ID and other options (not mandatory)
         var opts = new MqttClientOptions()
                 .setClientId(LogBot.class.getSimpleName())
@@ -67,80 +237,195 @@ public class LogBot extends AbstractVerticle {
         var client = MqttClient.create(vertx, opts);
 
         // attempt to connect
-        client.connect(Properties.MQTT_PORT, Properties.BROKER, ch -> {
+        client.connect(Config.current().mqttPort, Config.current().brokerHost, ch -> {
             // this handler is called upon successful connection
             // (and after every successful retry)
             client
                     // subscribe to "all" topics (all under the main topic)
-                    .subscribe(Topics.LISTEN_TO_ALL, Properties.QOS_SYSTEM.value())
+                    .subscribe(Topics.LISTEN_TO_ALL, Config.current().qosSystem.value())
                     // callback when subscription is complete
                     .subscribeCompletionHandler(__ -> {
                         logger.info("now listening");
                         // send notification to users
+                        // (retained, so users that join later see it as well)
                         client.publish(
                                 PUBLISH_TOPIC,
                                 Buffer.buffer("LogBot available"),
-                                QOS_SYSTEM,
+                                Config.current().qosSystem,
                                 false,
-                                false);
+                                true);
                     })
                     .publishHandler(msg -> {
-                        logger.info("recevied");
+                        logger.fine("received");
+                        var topic = msg.topicName();
                         // retrieve the user from the topic
-                        var user = Topics.userFromTopic(msg.topicName());
-                        db
-                                .update(String.format(
-                                        "INSERT INTO messages VALUES ('%s', '%s', '%s')",
-                                        user,
-                                        Instant.now(),
-                                        msg.payload()))
-                                // as I want to track when the insert is complete
-                                // and "execute" only returns an exit code,
-                                // I use count which returns an Observable
-                                .count()
-                                // this is basically a Single, therefore a
-                                // onComplete observer does not make much sense
-                                .subscribe(
-                                        __ -> logger.info("message saved"),
-                                        e -> logger.log(Level.SEVERE, "logging failed", e)
-                                );
+                        var user = Topics.userFromTopic(topic);
+
+                        // history requests are answered instead of logged
+                        if (Topics.isPersonal(topic) && Topics.HISTORY.equals(Topics.shortName(topic))) {
+                            replay(client, user, msg.payload().toString());
+                            return;
+                        }
+
+                        // the presence notifications of the broker and the
+                        // history replies of this bot are no chat messages
+                        if (Topics.PRESENCE.equals(user) || Topics.HISTORY.equals(user))
+                            return;
+
+                        // whispers do not belong to any channel
+                        var channel = Topics.isPersonal(topic) ? null : Topics.shortName(topic);
+
+                        // a single message or an envelope of several ones
+                        // (with their own timestamps; records of any other
+                        // sender than the user of the topic are skipped)
+                        Envelope.read(msg.payload(), user, System.currentTimeMillis(), (sender, timestamp, text) ->
+                                log(sender, channel, timestamp, text));
                     });
 
-            // periodically run a database query
-            Observable
+            // periodically print the summary
+            // (only reads the counters, the database is not involved)
+            summary = Observable
                     .interval(INTERVAL, TimeUnit.SECONDS)
-                    .subscribe(__ -> db
-                            // The cast here is necessary as the auto-mapping is restricted to
-                            // simple types and java.sql.* types.
-                            // Since only the username is used anyway, I simply take the string representation
-                            // of the timestamp to prevent errors.
-                            .select("SELECT username, date :: text, message FROM messages")
-                            // map to target class
-                            .autoMap(MessageLog.class)
-                            .map(MessageLog::getUsername)
-                            .groupBy(m -> m)
-                            // basically a "GROUP BY username" with a "COUNT(*)" column
-                            .flatMap(group ->
-                                    group.count()
-                                            .map(count -> T.of(group.getKey(), count)))
-                            .subscribe(
-                                    p -> System.out.println(p._1 + ": " + p._2),
-                                    e -> logger.log(Level.SEVERE, "highscore query failed", e)
-                            )
-                    );
+                    .subscribe(__ -> counts.forEach((user, count) ->
+                            System.out.println(user + ": " + count.sum())));
 
             startFuture.complete();
         });
     }
 
+    /**
+     * Logs a single received message.
+     *
+     * @param user      The user that sent the message
+     * @param channel   The channel of the message; {@code null} for a whisper
+     * @param timestamp The time the message was sent (in epoch milliseconds)
+     * @param payload   The message (possibly compressed, it is stored and
+     *                  replayed as it is)
+     */
+    private void log(String user, String channel, long timestamp, Buffer payload) {
+        counter(user).increment();
+        // the message is only buffered here and written
+        // (in a batch) as soon as enough messages have
+        // arrived or the linger time has passed
+        store.add(user, channel, Instant.ofEpochMilli(timestamp), payload);
+
+        // channel messages (but no notifications) are kept
+        // for replays
+        if (channel != null && !isCommand(payload))
+            histories
+                    .computeIfAbsent(channel, __ ->
+                            new HistoryRing(HISTORY_MAX_MESSAGES, HISTORY_MAX_AGE, HISTORY_MAX_BYTES))
+                    .add(user, timestamp, payload.getDelegate().getByteBuf());
+    }
+
+    /**
+     * @param payload The message (possibly compressed)
+     * @return {@code true} if the message is a command (see
+     * {@link Messages#isCommand}), which is checked without decoding it
+     */
+    private static boolean isCommand(Buffer payload) {
+        return payload.length() > 0 && payload.getByte(0) == Messages.COMMAND_PREFIX.charAt(0);
+    }
+
+    /**
+     * Sends the recent messages of a channel to the requesting user.
+     * The reply consists of the channel name and the records of the
+     * history ({@code [channel length:short][channel][records]}).
+     *
+     * @param client  The client that manages the connection
+     * @param user    The requesting user
+     * @param request The number of messages and the channel
+     */
+    private void replay(MqttClient client, String user, String request) {
+        var params = request.split(" ", 2);
+
+        if (params.length < 2)
+            return;
+
+        int messages;
+        try {
+            messages = Math.min(Integer.parseInt(params[0]), HISTORY_MAX_MESSAGES);
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        // requests of any client end up here, not only the checked ones
+        if (messages <= 0)
+            return;
+
+        var channel = params[1].getBytes(StandardCharsets.UTF_8);
+        var records = Optional.ofNullable(histories.get(params[1]))
+                .map(history -> history.last(messages, System.currentTimeMillis()))
+                .orElse(new byte[0]);
+
+        var reply = io.vertx.core.buffer.Buffer.buffer(2 + channel.length + records.length)
+                .appendShort((short) channel.length)
+                .appendBytes(channel)
+                .appendBytes(records);
+
+        client.publish(
+                Topics.publishToPersonal(Topics.HISTORY, user),
+                Buffer.newInstance(reply),
+                Config.current().qosWhisper,
+                false,
+                false);
+    }
+
+    /**
+     * Retrieves the message counter of the given user.
+     *
+     * @param user The username
+     * @return the (possibly new) counter
+     */
+    private LongAdder counter(String user) {
+        return counts.computeIfAbsent(user, __ -> new LongAdder());
+    }
+
     @Override
-    public void stop(Future<Void> stopFuture) throws Exception {
-        super.stop(stopFuture);
+    public void stop(Future<Void> stopFuture) {
+        Optional.ofNullable(summary).ifPresent(Subscription::unsubscribe);
+        if (partitions >= 0)
+            vertx.cancelTimer(partitions);
+        // write all pending messages before shutting down
+        var closed = Future.<Void>future();
+        closed.setHandler(__ -> {
+            Optional.ofNullable(connectionProvider).ifPresent(ConnectionPool::close);
+            Optional.ofNullable(blocking).ifPresent(BlockingExecutor::close);
+            stopFuture.complete();
+        });
+        // the store is missing if the start failed
+        Optional.ofNullable(store).ifPresentOrElse(s -> s.close(closed), closed::complete);
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws ParseException, IOException {
+        Options cliOptions = new Options()
+                .addOption(Option.builder("j")
+                        .longOpt("journal")
+                        .desc("Save the messages in a local journal in the given directory (instead of the database)")
+                        .hasArg(true)
+                        .build())
+                .addOption(Option.builder("f")
+                        .longOpt("config")
+                        .desc("The configuration file (see Config)")
+                        .hasArg(true)
+                        .build())
+                .addOption("h", "help", false, "Print command help");
+
+        var cmd = new DefaultParser().parse(cliOptions, args);
+
+        if (cmd.hasOption('h')) {
+            new HelpFormatter().printHelp(NAME, cliOptions);
+            return;
+        }
+
+        var journal = Optional.ofNullable(cmd.getOptionValue('j'))
+                .map(Paths::get)
+                .orElse(null);
+
+        Config.init(Optional.ofNullable(cmd.getOptionValue('f')).map(Paths::get).orElse(null), Map.of());
+
         Vertx vertx = Vertx.vertx();
 
-        vertx.deployVerticle(LogBot.class.getCanonicalName());
+        vertx.getDelegate().deployVerticle(new LogBot(journal));
     }
 }
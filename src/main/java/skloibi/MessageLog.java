@@ -1,12 +1,25 @@
 package skloibi;
 
-public class MessageLog {
-    private String username;
-    private String date;
-    private String message;
+import java.time.Instant;
 
-    public MessageLog(String username, String date, String message) {
+/**
+ * A single logged message.
+ */
+public class MessageLog {
+    private String  username;
+    private String  channel;
+    private Instant date;
+    private String  message;
+
+    /**
+     * @param username The user that sent the message
+     * @param channel  The channel of the message; {@code null} for a whisper
+     * @param date     The time the message was received
+     * @param message  The actual message
+     */
+    public MessageLog(String username, String channel, Instant date, String message) {
         this.username = username;
+        this.channel = channel;
         this.date = date;
         this.message = message;
     }
@@ -19,11 +32,19 @@ public class MessageLog {
         this.username = username;
     }
 
-    public String getDate() {
+    public String getChannel() {
+        return channel;
+    }
+
+    public void setChannel(String channel) {
+        this.channel = channel;
+    }
+
+    public Instant getDate() {
         return date;
     }
 
-    public void setDate(String date) {
+    public void setDate(Instant date) {
         this.date = date;
     }
 
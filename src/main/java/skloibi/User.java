@@ -1,5 +1,7 @@
 package skloibi;
 
+import java.util.Optional;
+
 /**
  * Model of the logged in user.
  */
@@ -15,6 +17,12 @@ public class User {
      */
     private String channel;
 
+    /**
+     * Coalesces the channel messages of the user; {@code null} if every
+     * message is published on its own.
+     */
+    private Batcher batcher;
+
     public User(String name, String channel) {
         this.name = name;
         this.channel = channel;
@@ -31,4 +39,12 @@ public class User {
     public void setChannel(String channel) {
         this.channel = channel;
     }
+
+    public Optional<Batcher> getBatcher() {
+        return Optional.ofNullable(batcher);
+    }
+
+    public void setBatcher(Batcher batcher) {
+        this.batcher = batcher;
+    }
 }
@@ -0,0 +1,350 @@
+package skloibi.broker;
+
+import io.vertx.core.impl.NetSocketInternal;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.mqtt.MqttEndpoint;
+import skloibi.utils.T;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control of the broker, so a misbehaving client cannot starve the
+ * others.
+ * <p>
+ * New connections are refused if the broker already has the maximum number
+ * of connections or if clients connect faster than the configured rate.
+ * These limits are shared by all server instances.
+ * <p>
+ * Published messages are limited per client and per topic (i.e. per channel
+ * or per recipient of whispers) by {@link TokenBucket}s. Each event loop
+ * enforces the limits of its own clients with its own {@link Limiter}, so
+ * there is no shared state on the hot path; a topic limit is split evenly
+ * among the event loops. What happens to messages that exceed a limit is
+ * decided by the {@link LimitPolicy}.
+ * <p>
+ * All limits can be changed at runtime (see {@link #configure(Settings)}).
+ */
+public class Admission {
+
+    /**
+     * Maximum number of topics with their own bucket per event loop. If it
+     * is exceeded, the buckets are simply reset, which keeps the memory
+     * bounded even if an unbounded number of topics is used.
+     */
+    private static final int TOPIC_LIMIT = 4096;
+
+    /**
+     * Minimum number of delayed messages per client. A single read of a
+     * connection may already contain hundreds of (small) messages, which
+     * are held back as well.
+     */
+    private static final int BACKLOG_LIMIT = 1024;
+
+    private final BrokerMetrics metrics;
+
+    /**
+     * The number of accepted connections that are still open.
+     */
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * The bucket of the new connections (guarded by itself).
+     */
+    private final TokenBucket connects = new TokenBucket();
+
+    private volatile Settings settings;
+
+    /**
+     * @param settings The limits
+     * @param metrics  The instrumentation of the broker
+     */
+    public Admission(Settings settings, BrokerMetrics metrics) {
+        this.settings = settings;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Changes the limits; the buckets keep their tokens.
+     *
+     * @param settings The limits
+     */
+    public void configure(Settings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * @return the current limits
+     */
+    public Settings settings() {
+        return settings;
+    }
+
+    /**
+     * Checks whether a new connection may be accepted. An accepted connection
+     * has to be {@link #release()}d as soon as it is closed.
+     *
+     * @return {@code true} if the connection is accepted; {@code false} if it
+     * has to be refused
+     */
+    public boolean admit() {
+        var limits = settings;
+
+        boolean admitted;
+        synchronized (connects) {
+            admitted = connects.tryTake(System.nanoTime(), limits.connectRate, Math.max(1, limits.connectRate));
+        }
+
+        if (admitted) {
+            var open = connections.incrementAndGet();
+
+            if (limits.maxConnections <= 0 || open <= limits.maxConnections)
+                return true;
+
+            connections.decrementAndGet();
+        }
+
+        metrics.refused();
+        return false;
+    }
+
+    /**
+     * Releases an accepted connection that was closed.
+     */
+    public void release() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * @param vertx     The Vert.x instance of the event loop
+     * @param instances The number of event loops (which share the topic
+     *                  limits)
+     * @return the limiter of a single event loop
+     */
+    public Limiter limiter(Vertx vertx, int instances) {
+        return new Limiter(vertx, instances);
+    }
+
+    /**
+     * Enforces the message limits of the clients of a single event loop.
+     * Must only be used on that event loop.
+     */
+    public final class Limiter {
+        private final Vertx                    vertx;
+        private final int                      instances;
+        private final Map<String, TokenBucket> topics = new HashMap<>();
+
+        private Limiter(Vertx vertx, int instances) {
+            this.vertx = vertx;
+            this.instances = instances;
+        }
+
+        /**
+         * @param endpoint The endpoint of a new connection
+         * @return the (constant size) limit state of the connection
+         */
+        public Client client(MqttEndpoint endpoint) {
+            return new Client(endpoint);
+        }
+
+        /**
+         * Checks the limits of a published message and publishes it or
+         * applies the policy if a limit is exceeded.
+         * With {@link LimitPolicy#DELAY}, the message is held back (together
+         * with all further messages of the client, up to a burst) and the
+         * connection is not read from until the client is within its limits
+         * again.
+         *
+         * @param client  The limit state of the publishing connection
+         * @param topic   The topic name of the message
+         * @param now     The arrival time of the message ({@link System#nanoTime()})
+         * @param publish Publishes the message
+         */
+        public void submit(Client client, String topic, long now, Runnable publish) {
+            var limits = settings;
+            // the messages of a delayed client keep their order
+            var delay = client.backlog == null ? delay(client, topic, now, limits) : -1;
+
+            if (delay == 0) {
+                publish.run();
+                return;
+            }
+
+            metrics.limited();
+
+            switch (limits.policy) {
+                case DELAY:
+                    client.defer(topic, publish, delay, limits);
+                    break;
+                case DISCONNECT:
+                    if (client.endpoint.isConnected())
+                        client.endpoint.close();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Takes a token of the client and the topic if both are available.
+         *
+         * @return the time (in nanoseconds) until the message may be
+         * published; {@code 0} if the tokens were taken
+         */
+        private long delay(Client client, String topic, long now, Settings limits) {
+            var clientBurst = Math.max(1, limits.clientBurst);
+            var topicRate = limits.topicRate / instances;
+            var topicBurst = Math.max(1, limits.topicBurst / instances);
+            var bucket = limits.topicRate > 0 ? topic(topic) : null;
+
+            var delay = Math.max(
+                    client.bucket.delay(now, limits.clientRate, clientBurst),
+                    bucket == null ? 0 : bucket.delay(now, topicRate, topicBurst));
+
+            if (delay > 0)
+                return delay;
+
+            client.bucket.tryTake(now, limits.clientRate, clientBurst);
+            if (bucket != null)
+                bucket.tryTake(now, topicRate, topicBurst);
+            return 0;
+        }
+
+        private TokenBucket topic(String topic) {
+            // the topic without the sender (e.g. "mqtt-chat/all")
+            var name = topic.substring(0, Math.max(0, topic.lastIndexOf('/')));
+            var bucket = topics.get(name);
+
+            if (bucket == null) {
+                if (topics.size() >= TOPIC_LIMIT)
+                    topics.clear();
+
+                bucket = new TokenBucket();
+                topics.put(name, bucket);
+            }
+
+            return bucket;
+        }
+
+        /**
+         * The limit state of a single connection.
+         */
+        public final class Client {
+            private final TokenBucket       bucket = new TokenBucket();
+            private final MqttEndpoint      endpoint;
+            private final NetSocketInternal socket;
+
+            /**
+             * The delayed messages (topic and publish action); {@code null}
+             * if the connection is read from.
+             */
+            private ArrayDeque<T._2<String, Runnable>> backlog;
+
+            private Client(MqttEndpoint endpoint) {
+                this.endpoint = endpoint;
+                this.socket = Connection.socket(endpoint);
+            }
+
+            /**
+             * Holds back a message. The messages that were already received
+             * while the connection is paused are held back as well, but at
+             * most a burst of them (or {@link #BACKLOG_LIMIT}); further ones
+             * are dropped.
+             */
+            private void defer(String topic, Runnable publish, long delay, Settings limits) {
+                if (backlog == null) {
+                    backlog = new ArrayDeque<>();
+                    socket.pause();
+                    schedule(delay);
+                }
+
+                if (backlog.size() < Math.max(BACKLOG_LIMIT, limits.clientBurst))
+                    backlog.add(T.of(topic, publish));
+            }
+
+            private void schedule(long nanos) {
+                vertx.setTimer(Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos)), __ -> drain());
+            }
+
+            /**
+             * Publishes the delayed messages as far as the limits allow and
+             * resumes reading as soon as all of them were published.
+             * Nothing is published once the connection was closed.
+             */
+            private void drain() {
+                // the delayed messages of a closed connection are dropped
+                // (instead of being published on its behalf)
+                if (!endpoint.isConnected()) {
+                    backlog = null;
+                    return;
+                }
+
+                var limits = settings;
+
+                while (!backlog.isEmpty()) {
+                    var next = backlog.peek();
+                    var delay = limits.policy == LimitPolicy.DELAY
+                            ? delay(this, next._1, System.nanoTime(), limits)
+                            : 0;
+
+                    if (delay > 0) {
+                        schedule(delay);
+                        return;
+                    }
+
+                    backlog.poll()._2.run();
+                }
+
+                backlog = null;
+                socket.resume();
+            }
+        }
+    }
+
+    /**
+     * The admission limits; a limit of zero (or less) disables it.
+     */
+    public static final class Settings {
+
+        /**
+         * The maximum number of open connections.
+         */
+        public final int maxConnections;
+
+        /**
+         * The maximum number of new connections per second.
+         */
+        public final double connectRate;
+
+        /**
+         * The number of messages per second of a single client (and the
+         * number of messages it may send at once).
+         */
+        public final double clientRate, clientBurst;
+
+        /**
+         * The number of messages per second to a single topic (and the
+         * number of messages it may receive at once).
+         */
+        public final double topicRate, topicBurst;
+
+        /**
+         * What happens to messages that exceed a limit.
+         */
+        public final LimitPolicy policy;
+
+        public Settings(int maxConnections, double connectRate, double clientRate, double clientBurst,
+                        double topicRate, double topicBurst, LimitPolicy policy) {
+            this.maxConnections = maxConnections;
+            this.connectRate = connectRate;
+            this.clientRate = clientRate;
+            this.clientBurst = clientBurst;
+            this.topicRate = topicRate;
+            this.topicBurst = topicBurst;
+            this.policy = policy;
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package skloibi.broker;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.reactivex.core.Context;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.reactivex.mqtt.MqttEndpoint;
+import skloibi.utils.T;
+import skloibi.utils.Topics;
+
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The state that is shared by all server instances (event loops) of a
+ * broker: the subscription index, the registry of (connected and persistent)
+ * sessions, the retained messages and the members of the channels.
+ * All operations are non-blocking and may be called from any event loop.
+ */
+public class Broker {
+
+    private final SubscriptionTrie<Session>     subscriptions = new SubscriptionTrie<>();
+    private final ConcurrentMap<String, Session> sessions      = new ConcurrentHashMap<>();
+    private final RetainedStore                  retained;
+
+    private final BrokerMetrics                  metrics       = new BrokerMetrics();
+    private final Presence                       presence      = new Presence();
+
+    /**
+     * The cluster of this broker; {@code null} if it runs standalone.
+     */
+    private volatile Cluster cluster;
+
+    /**
+     * The limits of each session; replaced as a whole if the configuration
+     * changes at runtime, so the sessions only read a volatile snapshot.
+     */
+    private volatile Session.Settings settings;
+
+    /**
+     * @param retainedMaxBytes The memory limit of the retained messages
+     * @param settings         The limits of each session
+     */
+    public Broker(long retainedMaxBytes, Session.Settings settings) {
+        this.retained = new RetainedStore(retainedMaxBytes);
+        this.settings = settings;
+    }
+
+    /**
+     * Changes the limits of all (existing and future) sessions.
+     * The limits apply to the next message, e.g. a smaller in-flight window
+     * does not affect the messages that are already in flight, and the
+     * offline queues of the sessions keep their previous size.
+     *
+     * @param settings The limits of each session
+     */
+    public void configure(Session.Settings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * @return the current limits of each session
+     */
+    public Session.Settings settings() {
+        return settings;
+    }
+
+    /**
+     * Makes this broker a node of the given cluster.
+     * Must be called before any client connects.
+     *
+     * @param cluster The state of this node
+     */
+    public void join(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * Binds a newly connected endpoint to its session.
+     * A persistent session of the same client is resumed if the endpoint
+     * does not request a clean session; otherwise a new session is created
+     * and the previous one is discarded. In both cases a connection that is
+     * still open with the same client identifier is taken over (i.e. closed).
+     *
+     * @param endpoint The new endpoint
+     * @param context  The context (event loop) of the endpoint
+     * @param wheel    The retransmit scheduler of the event loop
+     * @return the session and whether it was resumed (session present)
+     */
+    public T._2<Session, Boolean> connect(MqttEndpoint endpoint, Context context, RetransmitWheel wheel) {
+        var persistent = !endpoint.isCleanSession();
+        var resumed = new AtomicBoolean(false);
+        var discarded = new AtomicReference<Session>();
+
+        // The session is attached within the atomic update, so it cannot
+        // expire between its lookup and the attachment.
+        var session = sessions.compute(endpoint.clientIdentifier(), (id, previous) -> {
+            if (previous != null && previous.persistent && persistent) {
+                resumed.set(true);
+                previous.attach(endpoint, context, wheel, metrics);
+                return previous;
+            }
+
+            discarded.set(previous);
+
+            var next = new Session(id, persistent, this::settings);
+            next.attach(endpoint, context, wheel, metrics);
+            return next;
+        });
+
+        Optional.ofNullable(discarded.get()).ifPresent(previous -> {
+            previous.close();
+            unsubscribeAll(previous);
+        });
+
+        // the client is back in the channels of its session
+        if (resumed.get())
+            session.getFilters().forEach(f -> joined(session, f));
+
+        return T.of(session, resumed.get());
+    }
+
+    /**
+     * Handles the closed connection of the given endpoint.
+     * The client leaves all of its channels. A clean session is removed with
+     * all of its subscriptions, whereas a persistent session is kept until it
+     * expires.
+     *
+     * @param session  The session
+     * @param endpoint The endpoint whose connection was closed
+     */
+    public void disconnect(Session session, MqttEndpoint endpoint) {
+        // ignore connections that were already taken over
+        if (!session.detach(endpoint))
+            return;
+
+        session.getFilters().forEach(f -> left(session, f));
+
+        if (session.persistent)
+            return;
+
+        sessions.remove(session.clientId, session);
+        unsubscribeAll(session);
+    }
+
+    /**
+     * Removes all persistent sessions whose clients have been offline for
+     * longer than the given time.
+     *
+     * @param expiry The expiry time (in milliseconds)
+     */
+    public void expireSessions(long expiry) {
+        var now = System.currentTimeMillis();
+
+        sessions.values().forEach(session -> {
+            var removed = new AtomicBoolean(false);
+
+            sessions.computeIfPresent(session.clientId, (id, current) -> {
+                if (current != session || !session.isExpired(now, expiry))
+                    return current;
+
+                removed.set(true);
+                return null;
+            });
+
+            if (removed.get())
+                unsubscribeAll(session);
+        });
+    }
+
+    private void unsubscribeAll(Session session) {
+        var filters = session.getFilters();
+
+        filters.forEach(f -> {
+            if (filters.remove(f)) {
+                subscriptions.unsubscribe(f, session);
+                left(session, f);
+                unsubscribed(f);
+            }
+        });
+    }
+
+    /**
+     * Adds a subscription of the given session.
+     * Must be called on the session's own context.
+     *
+     * @param session The subscribing session
+     * @param filter  The topic filter
+     * @param qos     The granted Quality-of-Service
+     */
+    public void subscribe(Session session, String filter, MqttQoS qos) {
+        subscriptions.subscribe(filter, session, qos);
+        joined(session, filter);
+
+        // the channels that were subscribed before the personal one are
+        // joined as soon as the user is known
+        Optional.ofNullable(Topics.userFromFilter(filter))
+                .filter(session::identify)
+                .ifPresent(__ -> session.getFilters().forEach(f -> joined(session, f)));
+
+        if (!session.getFilters().add(filter))
+            return;
+
+        metrics.subscribed();
+        Optional.ofNullable(cluster).ifPresent(c -> c.subscribed(filter));
+    }
+
+    /**
+     * Sends all retained messages that match the given (new) subscription.
+     * Must be called on the session's own context after the subscription
+     * was acknowledged.
+     *
+     * @param session The subscribing session
+     * @param filter  The topic filter
+     * @param qos     The granted Quality-of-Service
+     */
+    public void deliverRetained(Session session, String filter, MqttQoS qos) {
+        retained.match(filter, message -> {
+            metrics.delivered(message.topic);
+            session.deliver(
+                    new PublishFrame(message.topic, message.payload),
+                    MqttQoS.valueOf(Math.min(qos.value(), message.qos.value())),
+                    true,
+                    0
+            );
+        });
+    }
+
+    /**
+     * Retains the given message for future subscribers
+     * (or removes the retained message of the topic if the payload is empty).
+     *
+     * @param topic   The topic name of the message
+     * @param payload The message payload
+     * @param qos     The Quality-of-Service of the published message
+     */
+    public void retain(String topic, Buffer payload, MqttQoS qos) {
+        retained.put(topic, payload, qos);
+    }
+
+    /**
+     * Removes a subscription of the given session.
+     * Must be called on the session's own context.
+     *
+     * @param session The session
+     * @param filter  The topic filter that was used to subscribe
+     */
+    public void unsubscribe(Session session, String filter) {
+        subscriptions.unsubscribe(filter, session);
+        left(session, filter);
+
+        if (session.getFilters().remove(filter))
+            unsubscribed(filter);
+    }
+
+    /**
+     * Adds the user of the session to the channel of the filter.
+     * Members are identified by their "personal" channel rather than the
+     * client identifier; sessions without one (e.g. bots) are not listed.
+     */
+    private void joined(Session session, String filter) {
+        var user = session.getUser();
+        var channel = Topics.channelFromFilter(filter);
+
+        if (user != null && channel != null)
+            presence.join(channel, user);
+    }
+
+    private void left(Session session, String filter) {
+        var user = session.getUser();
+        var channel = Topics.channelFromFilter(filter);
+
+        if (user != null && channel != null)
+            presence.leave(channel, user);
+    }
+
+    /**
+     * Answers a member request of the given session, i.e. a message to the
+     * {@link Topics#PRESENCE} pseudo user that contains a channel name.
+     * The reply (the channel followed by its members, separated by spaces)
+     * is only sent to the requesting session, on the personal channel of the
+     * user that published the request.
+     *
+     * @param session The session that published the message
+     * @param topic   The topic name of the message
+     * @param payload The message payload
+     * @param qos     The Quality-of-Service of the request (and reply)
+     * @return {@code true} if the message was a member request (which must
+     * not be published); {@code false} otherwise
+     */
+    public boolean query(Session session, String topic, Buffer payload, MqttQoS qos) {
+        if (!Topics.isPersonalTo(topic, Topics.PRESENCE))
+            return false;
+
+        var channel = payload.toString().trim();
+        var reply = new StringBuilder(channel);
+
+        presence.members(channel).forEach(member -> reply.append(' ').append(member));
+
+        metrics.delivered(topic);
+        session.deliver(
+                new PublishFrame(Topics.publishToPersonal(Topics.PRESENCE, Topics.userFromTopic(topic)),
+                        Buffer.buffer(reply.toString())),
+                qos,
+                false,
+                0
+        );
+        return true;
+    }
+
+    /**
+     * Publishes the changed members of every channel since the last call
+     * (one notification per channel, see {@link Presence#flush}).
+     *
+     * @param qos The Quality-of-Service of the notifications
+     */
+    public void announcePresence(MqttQoS qos) {
+        presence.flush((channel, notification) -> publish(
+                Topics.publishTo(channel, Topics.PRESENCE),
+                Buffer.buffer(notification),
+                qos,
+                false,
+                System.nanoTime()
+        ));
+    }
+
+    private void unsubscribed(String filter) {
+        metrics.unsubscribed(1);
+        Optional.ofNullable(cluster).ifPresent(c -> c.unsubscribed(filter));
+    }
+
+    /**
+     * Handles a message that was published by a local client: it is
+     * retained (if requested), delivered to all local subscribers and
+     * forwarded to the other nodes of the cluster that have matching
+     * subscribers.
+     *
+     * @param topic   The topic name of the message
+     * @param payload The message payload
+     * @param qos     The Quality-of-Service of the published message
+     * @param retain  Whether the message should be retained
+     * @param ingress The arrival time of the message
+     *                ({@link System#nanoTime()})
+     */
+    public void publish(String topic, Buffer payload, MqttQoS qos, boolean retain, long ingress) {
+        if (retain)
+            retain(topic, payload, qos);
+
+        route(topic, payload, qos, ingress);
+
+        Optional.ofNullable(cluster).ifPresent(c -> c.forward(topic, payload, qos, retain));
+    }
+
+    /**
+     * Handles a message that was forwarded by another node of the cluster
+     * (which is only delivered locally).
+     */
+    void receive(String topic, Buffer payload, MqttQoS qos, boolean retain, long ingress) {
+        metrics.clusterReceived();
+
+        if (retain)
+            retain(topic, payload, qos);
+
+        route(topic, payload, qos, ingress);
+    }
+
+    /**
+     * Forwards a published message to all matching subscribers, regardless
+     * of the event loop they are connected to.
+     * The QoS of each delivery is downgraded to the one that was granted.
+     * All deliveries share a single {@link PublishFrame}, so the payload is
+     * neither copied nor encoded per subscriber.
+     *
+     * @param topic   The topic name of the message
+     * @param payload The message payload
+     * @param qos     The Quality-of-Service of the published message
+     * @param ingress The arrival time of the message
+     *                ({@link System#nanoTime()}), which is used to measure the
+     *                routing latency
+     */
+    public void route(String topic, Buffer payload, MqttQoS qos, long ingress) {
+        var subscribers = subscriptions.match(topic);
+
+        metrics.routed(topic, subscribers.size());
+
+        if (subscribers.isEmpty())
+            return;
+
+        var frame = new PublishFrame(topic, payload);
+
+        subscribers.forEach((subscriber, granted) -> subscriber.deliver(
+                frame,
+                MqttQoS.valueOf(Math.min(granted.value(), qos.value())),
+                false,
+                ingress
+        ));
+    }
+
+    /**
+     * @return the number of sessions (including offline persistent ones)
+     */
+    public int sessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return the instrumentation of this broker
+     */
+    public BrokerMetrics metrics() {
+        return metrics;
+    }
+}
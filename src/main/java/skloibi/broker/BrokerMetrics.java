@@ -0,0 +1,393 @@
+package skloibi.broker;
+
+import skloibi.utils.LatencyHistogram;
+import skloibi.utils.Topics;
+
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instrumentation of a {@link Broker}.
+ * All counters and histograms are lock-free and may be updated from any event
+ * loop; reading them is only weakly consistent (which is fine for
+ * monitoring).
+ * <p>
+ * Messages are additionally counted per topic level, i.e. per top-level
+ * topic below {@link Topics#GLOBAL} (a channel or the personal topics), so
+ * the number of counters does not depend on the number of users.
+ */
+public class BrokerMetrics implements BrokerMetricsMBean {
+
+    /**
+     * Maximum number of distinct topic levels. Messages of further levels
+     * are counted as {@link #OTHER}.
+     */
+    private static final int LEVEL_LIMIT = 256;
+
+    private static final String OTHER = "<other>";
+
+    private final LongAdder connections   = new LongAdder();
+    private final LongAdder subscriptions = new LongAdder();
+    private final LongAdder messagesIn    = new LongAdder();
+    private final LongAdder messagesOut   = new LongAdder();
+    private final LongAdder outboundBytes = new LongAdder();
+    private final LongAdder spilledBytes  = new LongAdder();
+    private final LongAdder dropped       = new LongAdder();
+    private final LongAdder slowConsumers = new LongAdder();
+    private final LongAdder refused       = new LongAdder();
+    private final LongAdder limited       = new LongAdder();
+
+    private final LongAdder clusterForwarded = new LongAdder();
+    private final LongAdder clusterSkipped   = new LongAdder();
+    private final LongAdder clusterReceived  = new LongAdder();
+
+    /**
+     * Incoming / outgoing messages per topic level.
+     */
+    private final ConcurrentMap<String, Level> levels = new ConcurrentHashMap<>();
+
+    private final LatencyHistogram fanOut         = new LatencyHistogram();
+    private final LatencyHistogram routingLatency = new LatencyHistogram();
+    private final LatencyHistogram inflight       = new LatencyHistogram();
+    private final LatencyHistogram outboundDepth  = new LatencyHistogram();
+
+    void connected() {
+        connections.increment();
+    }
+
+    void disconnected() {
+        connections.decrement();
+    }
+
+    void subscribed() {
+        subscriptions.increment();
+    }
+
+    void unsubscribed(int count) {
+        subscriptions.add(-count);
+    }
+
+    /**
+     * Records a published message and the number of subscribers it is
+     * forwarded to.
+     *
+     * @param topic      The topic name of the message
+     * @param recipients The number of matching subscribers
+     */
+    void routed(String topic, int recipients) {
+        var level = level(topic);
+
+        messagesIn.increment();
+        messagesOut.add(recipients);
+        level.in.increment();
+        level.out.add(recipients);
+        fanOut.record(recipients);
+    }
+
+    /**
+     * Records a single delivery that is not the result of a publish
+     * (e.g. a retained message).
+     *
+     * @param topic The topic name of the message
+     */
+    void delivered(String topic) {
+        messagesOut.increment();
+        level(topic).out.increment();
+    }
+
+    /**
+     * Records the time between the arrival of a message and its delivery to
+     * a subscriber.
+     *
+     * @param ingress The arrival time of the message ({@link System#nanoTime()})
+     */
+    void written(long ingress) {
+        routingLatency.record(System.nanoTime() - ingress);
+    }
+
+    /**
+     * Records the size of an in-flight window.
+     *
+     * @param depth The number of unacknowledged messages of a session
+     */
+    void inflight(int depth) {
+        inflight.record(depth);
+    }
+
+    /**
+     * Records a change of the size of all outbound queues.
+     *
+     * @param delta The number of bytes that were queued (or written if
+     *              negative)
+     */
+    void queued(long delta) {
+        outboundBytes.add(delta);
+    }
+
+    /**
+     * Records the number of packets in an outbound queue.
+     *
+     * @param depth The number of queued packets of a connection
+     */
+    void outboundDepth(int depth) {
+        outboundDepth.record(depth);
+    }
+
+    /**
+     * Records a change of the size of all spill files.
+     *
+     * @param delta The number of bytes that were spilled (or read back if
+     *              negative)
+     */
+    void spilled(long delta) {
+        spilledBytes.add(delta);
+    }
+
+    /**
+     * Records a message that was dropped because its client does not keep
+     * up.
+     */
+    void dropped() {
+        dropped.increment();
+    }
+
+    /**
+     * Records a client that was disconnected because it does not keep up.
+     */
+    void slowConsumerDisconnected() {
+        slowConsumers.increment();
+    }
+
+    /**
+     * Records a connection that was refused by the admission control.
+     */
+    void refused() {
+        refused.increment();
+    }
+
+    /**
+     * Records a message that exceeded a rate limit.
+     */
+    void limited() {
+        limited.increment();
+    }
+
+    /**
+     * Records a message that was published on this node of a cluster.
+     *
+     * @param targets The number of nodes it was forwarded to
+     * @param nodes   The number of other nodes
+     */
+    void forwarded(int targets, int nodes) {
+        clusterForwarded.add(targets);
+        clusterSkipped.add(nodes - targets);
+    }
+
+    /**
+     * Records a message that was forwarded by another node of a cluster.
+     */
+    void clusterReceived() {
+        clusterReceived.increment();
+    }
+
+    private Level level(String topic) {
+        // the level ends after the second separator (e.g. "mqtt-chat/all")
+        var start = topic.indexOf(Topics.SEPARATOR);
+        var end = start < 0 ? -1 : topic.indexOf(Topics.SEPARATOR, start + 1);
+        var name = end < 0 ? topic : topic.substring(0, end);
+
+        var level = levels.get(name);
+
+        if (level == null)
+            level = levels.computeIfAbsent(levels.size() < LEVEL_LIMIT ? name : OTHER, __ -> new Level());
+
+        return level;
+    }
+
+    @Override
+    public long getConnections() {
+        return connections.sum();
+    }
+
+    @Override
+    public long getSubscriptions() {
+        return subscriptions.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getOutboundBytes() {
+        return outboundBytes.sum();
+    }
+
+    @Override
+    public long getOutboundDepthP99() {
+        return outboundDepth.percentile(0.99);
+    }
+
+    @Override
+    public long getOutboundDepthMax() {
+        return outboundDepth.max();
+    }
+
+    @Override
+    public long getSpilledBytes() {
+        return spilledBytes.sum();
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return slowConsumers.sum();
+    }
+
+    @Override
+    public long getRefusedConnections() {
+        return refused.sum();
+    }
+
+    @Override
+    public long getLimitedMessages() {
+        return limited.sum();
+    }
+
+    @Override
+    public long getClusterForwarded() {
+        return clusterForwarded.sum();
+    }
+
+    @Override
+    public long getClusterSkipped() {
+        return clusterSkipped.sum();
+    }
+
+    @Override
+    public long getClusterReceived() {
+        return clusterReceived.sum();
+    }
+
+    @Override
+    public long getFanOutP50() {
+        return fanOut.percentile(0.5);
+    }
+
+    @Override
+    public long getFanOutP99() {
+        return fanOut.percentile(0.99);
+    }
+
+    @Override
+    public long getFanOutMax() {
+        return fanOut.max();
+    }
+
+    @Override
+    public long getRoutingLatencyP50() {
+        return micros(routingLatency.percentile(0.5));
+    }
+
+    @Override
+    public long getRoutingLatencyP99() {
+        return micros(routingLatency.percentile(0.99));
+    }
+
+    @Override
+    public long getRoutingLatencyP999() {
+        return micros(routingLatency.percentile(0.999));
+    }
+
+    @Override
+    public long getRoutingLatencyMax() {
+        return micros(routingLatency.max());
+    }
+
+    @Override
+    public long getInflightP50() {
+        return inflight.percentile(0.5);
+    }
+
+    @Override
+    public long getInflightP99() {
+        return inflight.percentile(0.99);
+    }
+
+    @Override
+    public long getInflightMax() {
+        return inflight.max();
+    }
+
+    @Override
+    public String dump() {
+        var text = new StringBuilder()
+                .append("connections ").append(getConnections()).append('\n')
+                .append("connections.refused ").append(getRefusedConnections()).append('\n')
+                .append("subscriptions ").append(getSubscriptions()).append('\n')
+                .append("messages.in ").append(getMessagesIn()).append('\n')
+                .append("messages.out ").append(getMessagesOut()).append('\n')
+                .append("messages.dropped ").append(getDropped()).append('\n')
+                .append("messages.limited ").append(getLimitedMessages()).append('\n')
+                .append("outbound.bytes ").append(getOutboundBytes()).append('\n')
+                .append("outbound.spilled.bytes ").append(getSpilledBytes()).append('\n')
+                .append("outbound.disconnects ").append(getSlowConsumerDisconnects()).append('\n')
+                .append("cluster.forwarded ").append(getClusterForwarded()).append('\n')
+                .append("cluster.skipped ").append(getClusterSkipped()).append('\n')
+                .append("cluster.received ").append(getClusterReceived()).append('\n');
+
+        // sorted by name for a stable output
+        new TreeMap<>(levels).forEach((name, level) -> text
+                .append("messages.in{level=").append(name).append("} ").append(level.in.sum()).append('\n')
+                .append("messages.out{level=").append(name).append("} ").append(level.out.sum()).append('\n'));
+
+        histogram(text, "fanout", fanOut, 1);
+        histogram(text, "routing.latency.us", routingLatency, TimeUnit.MICROSECONDS.toNanos(1));
+        histogram(text, "inflight", inflight, 1);
+        histogram(text, "outbound.depth", outboundDepth, 1);
+
+        return text.toString();
+    }
+
+    private static void histogram(StringBuilder text, String name, LatencyHistogram histogram, long unit) {
+        text
+                .append(name).append(".count ").append(histogram.count()).append('\n')
+                .append(name).append(".p50 ").append(histogram.percentile(0.5) / unit).append('\n')
+                .append(name).append(".p99 ").append(histogram.percentile(0.99) / unit).append('\n')
+                .append(name).append(".p999 ").append(histogram.percentile(0.999) / unit).append('\n')
+                .append(name).append(".max ").append(histogram.max() / unit).append('\n');
+    }
+
+    @Override
+    public void reset() {
+        fanOut.reset();
+        routingLatency.reset();
+        inflight.reset();
+        outboundDepth.reset();
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * Message counters of a single topic level.
+     */
+    private static final class Level {
+        final LongAdder in  = new LongAdder();
+        final LongAdder out = new LongAdder();
+    }
+}
@@ -0,0 +1,83 @@
+package skloibi.broker;
+
+/**
+ * JMX view of the {@link BrokerMetrics}.
+ * Latencies are reported in microseconds.
+ */
+public interface BrokerMetricsMBean {
+
+    long getConnections();
+
+    long getSubscriptions();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getOutboundBytes();
+
+    long getOutboundDepthP99();
+
+    long getOutboundDepthMax();
+
+    long getSpilledBytes();
+
+    long getDropped();
+
+    long getSlowConsumerDisconnects();
+
+    /**
+     * @return the number of connections that were refused by the admission
+     * control
+     */
+    long getRefusedConnections();
+
+    /**
+     * @return the number of messages that exceeded a rate limit (and were
+     * dropped, delayed or caused a disconnect)
+     */
+    long getLimitedMessages();
+
+    /**
+     * @return the number of messages that were forwarded to other nodes
+     */
+    long getClusterForwarded();
+
+    /**
+     * @return the number of times a message was not forwarded to a node as
+     * it did not have a matching subscriber
+     */
+    long getClusterSkipped();
+
+    long getClusterReceived();
+
+    long getFanOutP50();
+
+    long getFanOutP99();
+
+    long getFanOutMax();
+
+    long getRoutingLatencyP50();
+
+    long getRoutingLatencyP99();
+
+    long getRoutingLatencyP999();
+
+    long getRoutingLatencyMax();
+
+    long getInflightP50();
+
+    long getInflightP99();
+
+    long getInflightMax();
+
+    /**
+     * @return all metrics in a human-readable text format
+     */
+    String dump();
+
+    /**
+     * Clears the histograms (counters are kept).
+     */
+    void reset();
+}
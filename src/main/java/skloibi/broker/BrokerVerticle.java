@@ -0,0 +1,213 @@
+package skloibi.broker;
+
+import io.netty.handler.codec.mqtt.MqttConnectReturnCode;
+import io.vertx.core.Future;
+import io.vertx.mqtt.MqttServerOptions;
+import io.vertx.reactivex.core.AbstractVerticle;
+import io.vertx.reactivex.mqtt.MqttServer;
+import io.vertx.reactivex.mqtt.MqttTopicSubscription;
+
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import static skloibi.props.Properties.MESSAGE_MAX_BYTES;
+import static skloibi.props.Properties.RETRANSMIT_SLOTS;
+import static skloibi.props.Properties.RETRANSMIT_TICK;
+
+/**
+ * A single MQTT server instance of the broker.
+ * Multiple instances of this verticle are deployed (one per event loop) and
+ * all of them listen on the same port, so Vert.x distributes the incoming
+ * connections among them. The routing state is shared through the
+ * {@link Broker}. New connections and published messages pass the
+ * {@link Admission} control first.
+ */
+public class BrokerVerticle extends AbstractVerticle {
+
+    private static final Logger LOGGER = Logger.getLogger(BrokerVerticle.class.getName());
+
+    private final Broker    broker;
+    private final Admission admission;
+    private final int       port;
+    private final int       instances;
+
+    private MqttServer server;
+    private long       timer;
+
+    /**
+     * @param broker    The state that is shared by all server instances
+     * @param admission The admission control of all server instances
+     * @param port      The port to listen on
+     * @param instances The number of server instances
+     */
+    public BrokerVerticle(Broker broker, Admission admission, int port, int instances) {
+        this.broker = broker;
+        this.admission = admission;
+        this.port = port;
+        this.instances = instances;
+    }
+
+    @Override
+    public void start(Future<Void> startFuture) {
+        // the context (event loop) of this server instance
+        var context = vertx.getOrCreateContext();
+
+        // a single scheduler for the retransmissions of all sessions on this
+        // event loop
+        var wheel = new RetransmitWheel(RETRANSMIT_SLOTS, RETRANSMIT_TICK);
+        timer = vertx.setPeriodic(wheel.tickMillis(), __ -> wheel.tick());
+
+        // the rate limits of the clients on this event loop
+        var limiter = admission.limiter(vertx, instances);
+
+        // large enough for a channel history reply
+        MqttServerOptions options = new MqttServerOptions()
+                .setPort(port)
+                .setMaxMessageSize(MESSAGE_MAX_BYTES);
+
+        server = MqttServer.create(vertx, options)
+                .endpointHandler(endpoint -> {
+                    // shows main connect info (only with -v, so the messages
+                    // are not even built by default)
+                    LOGGER.fine(() -> "MQTT client [" + endpoint.clientIdentifier() + "] request to connect, clean session = " + endpoint.isCleanSession());
+
+                    Optional.ofNullable(endpoint.will())
+                            .ifPresent(will ->
+                                    LOGGER.fine(() -> "[will topic = " + will.willTopic() + " msg = " + will.willMessage() +
+                                            " QoS = " + will.willQos() + " isRetain = " + will.isWillRetain() + "]")
+                            );
+
+                    LOGGER.fine(() -> "[keep alive timeout = " + endpoint.keepAliveTimeSeconds() + "]");
+
+                    if (!admission.admit()) {
+                        LOGGER.fine(() -> "MQTT client [" + endpoint.clientIdentifier() + "] refused");
+                        endpoint.reject(MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE);
+                        return;
+                    }
+
+                    broker.metrics().connected();
+
+                    var limits = limiter.client(endpoint);
+
+                    var connected = broker.connect(endpoint, context, wheel);
+                    var session = connected._1;
+
+                    endpoint.subscribeHandler(subscription -> {
+                        endpoint.subscribeAcknowledge(
+                                subscription.messageId(),
+                                subscription.topicSubscriptions().stream()
+                                        .peek(t -> {
+                                            LOGGER.fine(() -> "subscription of topic " + t.topicName());
+                                            broker.subscribe(session, t.topicName(), t.qualityOfService());
+                                        })
+                                        .map(MqttTopicSubscription::qualityOfService)
+                                        .collect(Collectors.toList())
+                        );
+
+                        // the retained messages must only be sent after the ack
+                        subscription.topicSubscriptions().forEach(t ->
+                                broker.deliverRetained(session, t.topicName(), t.qualityOfService()));
+                    });
+
+                    endpoint.unsubscribeHandler(unsubscribe -> {
+
+                        unsubscribe.topics().forEach(t -> {
+                            LOGGER.fine(() -> "Unsubscribe for " + t);
+                            broker.unsubscribe(session, t);
+                        });
+
+                        // ack the unsubscribe request
+                        endpoint.unsubscribeAcknowledge(unsubscribe.messageId());
+                    });
+
+                    endpoint.publishHandler(message -> {
+                        var ingress = System.nanoTime();
+
+                        // the hot path, so the guard also avoids the lambda
+                        if (LOGGER.isLoggable(Level.FINE))
+                            LOGGER.fine("Just received message [" + message.payload().toString() + "] with QoS [" + message.qosLevel() + "]");
+
+                        switch (message.qosLevel()) {
+                            case AT_LEAST_ONCE:
+                                endpoint.publishAcknowledge(message.messageId());
+                                break;
+                            case EXACTLY_ONCE:
+                                endpoint.publishReceived(message.messageId());
+                                // a retransmitted message was already routed
+                                if (!session.receive(message.messageId()))
+                                    return;
+                                break;
+                            default:
+                                break;
+                        }
+
+                        // messages that exceed a rate limit are dropped,
+                        // delayed or disconnect the client (see LimitPolicy)
+                        limiter.submit(limits, message.topicName(), ingress, () -> {
+                            // member requests are answered by the broker itself
+                            if (broker.query(session, message.topicName(), message.payload(), message.qosLevel()))
+                                return;
+
+                            // forward the message to every matching subscriber
+                            // (on any event loop and any node of the cluster)
+                            broker.publish(message.topicName(), message.payload(), message.qosLevel(), message.isRetain(), ingress);
+                        });
+                    }).publishReleaseHandler(messageId -> {
+                        session.release(messageId);
+                        endpoint.publishComplete(messageId);
+                    });
+
+                    // acknowledgements of the messages sent to the client
+                    endpoint
+                            .publishAcknowledgeHandler(session::acknowledge)
+                            .publishReceivedHandler(messageId -> {
+                                session.received(messageId);
+                                endpoint.publishRelease(messageId);
+                            })
+                            .publishCompletionHandler(session::acknowledge);
+
+                    endpoint.disconnectHandler(__ ->
+                            LOGGER.fine(() -> "Received disconnect from client " + endpoint.clientIdentifier()));
+
+                    // the connection may also be lost without a disconnect,
+                    // so the session is released once it is closed
+                    endpoint.closeHandler(__ -> {
+                        admission.release();
+                        broker.metrics().disconnected();
+                        broker.disconnect(session, endpoint);
+                    });
+
+                    // accept connection from the remote client
+                    // (and signal whether the previous session was resumed)
+                    endpoint.accept(connected._2);
+
+                    // send everything that was queued while the client was offline
+                    session.resume();
+                })
+                .exceptionHandler(e -> {
+                    LOGGER.info("[critical] " + e.getMessage());
+                    e.printStackTrace();
+                })
+                .listen(result -> {
+                    if (result.succeeded()) {
+                        LOGGER.info("MQTT server is listening on port " + result.result().actualPort());
+                        startFuture.complete();
+                    } else {
+                        LOGGER.info("Error on starting the server");
+                        result.cause().printStackTrace();
+                        startFuture.fail(result.cause());
+                    }
+                });
+    }
+
+    @Override
+    public void stop(Future<Void> stopFuture) {
+        vertx.cancelTimer(timer);
+        server.close(result -> {
+            LOGGER.info("Shutting down server instance");
+            stopFuture.complete();
+        });
+    }
+}
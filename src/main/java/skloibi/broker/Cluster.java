@@ -0,0 +1,310 @@
+package skloibi.broker;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.reactivex.core.Context;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.reactivex.core.net.NetSocket;
+import skloibi.utils.T;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The state of a node in a cluster of brokers.
+ * <p>
+ * Every node tells all other nodes which topic filters its local clients are
+ * subscribed to (a summary that is kept up to date incrementally, i.e. only
+ * the first subscription and the last unsubscription of a filter on a node
+ * are propagated). The filters of the other nodes are kept in a
+ * {@link SubscriptionTrie} of their own, so a published message is only
+ * forwarded to the nodes that actually have a matching subscriber instead of
+ * being flooded to every node. Forwarded messages are delivered to the local
+ * subscribers of the receiving node only (the nodes form a full mesh).
+ * <p>
+ * The network links to the other nodes are managed by the
+ * {@link ClusterVerticle}. Every node sends its own frames through the links
+ * it opens to the other nodes and receives their frames through the links
+ * they open to it.
+ * All methods may be called from any event loop.
+ */
+public class Cluster {
+
+    /**
+     * Announces the node at the beginning of a link
+     * ({@code [type][node id]}).
+     */
+    static final byte HELLO = 1;
+
+    /**
+     * A topic filter that has local subscribers now
+     * ({@code [type][filter]}).
+     */
+    static final byte ADD = 2;
+
+    /**
+     * A topic filter that does not have local subscribers any more
+     * ({@code [type][filter]}).
+     */
+    static final byte REMOVE = 3;
+
+    /**
+     * A forwarded message
+     * ({@code [type][qos][retain][topic length][topic][payload]}).
+     */
+    static final byte PUBLISH = 4;
+
+    /**
+     * The id of this node.
+     */
+    public final String nodeId;
+
+    /**
+     * The other nodes by their id.
+     */
+    private final ConcurrentMap<String, Peer> peers = new ConcurrentHashMap<>();
+
+    /**
+     * The topic filters of the other nodes.
+     */
+    private final SubscriptionTrie<Peer> remote = new SubscriptionTrie<>();
+
+    /**
+     * The number of local subscriptions per topic filter.
+     */
+    private final ConcurrentMap<String, Integer> local = new ConcurrentHashMap<>();
+
+    private final BrokerMetrics metrics;
+
+    /**
+     * @param host    The host of this node's cluster port
+     * @param port    The cluster port of this node
+     * @param nodes   The addresses ({@code host:port}) of the other nodes
+     * @param metrics The instrumentation of the broker
+     */
+    public Cluster(String host, int port, Collection<String> nodes, BrokerMetrics metrics) {
+        this.nodeId = nodeId(host, port);
+        this.metrics = metrics;
+
+        nodes.forEach(this::peer);
+    }
+
+    /**
+     * Normalizes the given address, so the same node always has the same id
+     * (e.g. regardless of "localhost" or "127.0.0.1").
+     *
+     * @param host The host name or address
+     * @param port The cluster port
+     * @return the id of the node
+     */
+    static String nodeId(String host, int port) {
+        var address = new InetSocketAddress(host, port);
+
+        return (address.isUnresolved() ? host : address.getAddress().getHostAddress()) + ":" + port;
+    }
+
+    /**
+     * Retrieves (or registers) the node with the given address.
+     *
+     * @param address The address ({@code host:port}) of the node
+     * @return the node; {@code null} if the address refers to this node
+     * @throws IllegalArgumentException if the address is invalid
+     */
+    Peer peer(String address) {
+        var separator = address.lastIndexOf(':');
+
+        if (separator < 0)
+            throw new IllegalArgumentException("invalid node address (host:port expected): " + address);
+
+        var host = address.substring(0, separator);
+        var port = Integer.parseInt(address.substring(separator + 1));
+        var id = nodeId(host, port);
+
+        if (id.equals(nodeId))
+            return null;
+
+        return peers.computeIfAbsent(id, __ -> new Peer(id, host, port));
+    }
+
+    Collection<Peer> peers() {
+        return peers.values();
+    }
+
+    /**
+     * Records a new local subscription.
+     *
+     * @param filter The topic filter
+     */
+    void subscribed(String filter) {
+        // the change is sent within the atomic update, so the frames of
+        // the same filter cannot overtake each other
+        local.compute(filter, (f, count) -> {
+            if (count != null)
+                return count + 1;
+
+            broadcast(frame(ADD, filter));
+            return 1;
+        });
+    }
+
+    /**
+     * Records a removed local subscription.
+     *
+     * @param filter The topic filter
+     */
+    void unsubscribed(String filter) {
+        local.computeIfPresent(filter, (f, count) -> {
+            if (count > 1)
+                return count - 1;
+
+            broadcast(frame(REMOVE, filter));
+            return null;
+        });
+    }
+
+    private void broadcast(Buffer frame) {
+        peers.values().forEach(peer -> peer.send(frame));
+    }
+
+    /**
+     * Creates the frames that introduce this node to another one: its id and
+     * all topic filters with local subscribers.
+     */
+    Buffer summary() {
+        var frames = frame(HELLO, nodeId);
+        local.keySet().forEach(filter -> frames.appendBuffer(frame(ADD, filter)));
+        return frames;
+    }
+
+    /**
+     * Forwards a message that was published by a local client to all nodes
+     * with a matching subscription.
+     *
+     * @param topic   The topic name of the message
+     * @param payload The message payload
+     * @param qos     The Quality-of-Service of the message
+     * @param retain  Whether the message should be retained
+     */
+    void forward(String topic, Buffer payload, MqttQoS qos, boolean retain) {
+        var targets = remote.match(topic).keySet();
+
+        metrics.forwarded(targets.size(), peers.size());
+
+        if (targets.isEmpty())
+            return;
+
+        // the frame is encoded once and shared by all links
+        var topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        var frame = Buffer.buffer(4 + 5 + topicBytes.length + payload.length())
+                .appendInt(5 + topicBytes.length + payload.length())
+                .appendByte(PUBLISH)
+                .appendByte((byte) qos.value())
+                .appendByte((byte) (retain ? 1 : 0))
+                .appendShort((short) topicBytes.length)
+                .appendString(topic)
+                .appendBuffer(payload);
+
+        targets.forEach(peer -> peer.send(frame));
+    }
+
+    /**
+     * Adds a topic filter of another node.
+     */
+    void add(Peer peer, String filter) {
+        if (peer.filters.add(filter))
+            remote.subscribe(filter, peer, MqttQoS.EXACTLY_ONCE);
+    }
+
+    /**
+     * Removes a topic filter of another node.
+     */
+    void remove(Peer peer, String filter) {
+        if (peer.filters.remove(filter))
+            remote.unsubscribe(filter, peer);
+    }
+
+    /**
+     * Removes all topic filters of another node, e.g. after its link was
+     * closed (they are sent again as soon as it reconnects).
+     */
+    void reset(Peer peer) {
+        peer.filters.forEach(filter -> remove(peer, filter));
+    }
+
+    /**
+     * @return the number of local topic filters
+     */
+    public int localFilters() {
+        return local.size();
+    }
+
+    private static Buffer frame(byte type, String text) {
+        var bytes = text.getBytes(StandardCharsets.UTF_8);
+
+        return Buffer.buffer(4 + 1 + bytes.length)
+                .appendInt(1 + bytes.length)
+                .appendByte(type)
+                .appendString(text);
+    }
+
+    /**
+     * Another node of the cluster.
+     */
+    static final class Peer {
+        final String id;
+        final String host;
+        final int    port;
+
+        /**
+         * The topic filters with subscribers on that node.
+         */
+        final Set<String> filters = ConcurrentHashMap.newKeySet();
+
+        /**
+         * The link to the node and its context; {@code null} while the node
+         * is not reachable.
+         */
+        private volatile T._2<NetSocket, Context> link;
+
+        Peer(String id, String host, int port) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+        }
+
+        void connected(NetSocket socket, Context context) {
+            link = T.of(socket, context);
+        }
+
+        void disconnected() {
+            link = null;
+        }
+
+        boolean isConnected() {
+            return link != null;
+        }
+
+        /**
+         * Sends a frame to the node (on the context of the link).
+         * Frames for an unreachable node are dropped; the node receives a
+         * new summary as soon as it is reachable again.
+         */
+        void send(Buffer frame) {
+            var current = link;
+
+            if (current == null)
+                return;
+
+            var context = current._2;
+
+            if (Vertx.currentContext() != null && Vertx.currentContext().getDelegate() == context.getDelegate())
+                current._1.write(frame);
+            else
+                context.runOnContext(__ -> current._1.write(frame));
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package skloibi.broker;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.Future;
+import io.vertx.core.net.NetClientOptions;
+import io.vertx.core.net.NetServerOptions;
+import io.vertx.reactivex.core.AbstractVerticle;
+import io.vertx.reactivex.core.Context;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.reactivex.core.net.NetClient;
+import io.vertx.reactivex.core.net.NetServer;
+import io.vertx.reactivex.core.net.NetSocket;
+import io.vertx.reactivex.core.parsetools.RecordParser;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import static skloibi.props.Properties.CLUSTER_RECONNECT;
+
+/**
+ * Manages the network links of a {@link Cluster} node.
+ * Listens for the links of the other nodes (which carry their subscription
+ * summaries and forwarded messages) and opens a link to every other node
+ * (which carries the summary and messages of this node). Links to nodes that
+ * are not reachable are retried periodically.
+ * <p>
+ * Every frame is prefixed with its length (see {@link Cluster} for the
+ * frame types).
+ */
+public class ClusterVerticle extends AbstractVerticle {
+
+    private static final Logger LOGGER = Logger.getLogger(ClusterVerticle.class.getName());
+
+    private final Cluster cluster;
+    private final Broker  broker;
+    private final String  host;
+    private final int     port;
+
+    private NetServer server;
+    private NetClient client;
+    private Context   context;
+    private boolean   stopped = false;
+
+    /**
+     * @param cluster The state of this node
+     * @param broker  The local broker
+     * @param host    The host to listen on for the other nodes
+     * @param port    The port to listen on for the other nodes
+     */
+    public ClusterVerticle(Cluster cluster, Broker broker, String host, int port) {
+        this.cluster = cluster;
+        this.broker = broker;
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public void start(Future<Void> startFuture) {
+        context = vertx.getOrCreateContext();
+        client = vertx.createNetClient(new NetClientOptions().setTcpNoDelay(true));
+
+        server = vertx.createNetServer(new NetServerOptions()
+                .setHost(host)
+                .setPort(port)
+                .setTcpNoDelay(true))
+                .connectHandler(this::accept)
+                .listen(result -> {
+                    if (result.succeeded()) {
+                        LOGGER.info("Cluster node " + cluster.nodeId + " is listening on port " + port);
+                        cluster.peers().forEach(this::connect);
+                        startFuture.complete();
+                    } else {
+                        LOGGER.info("Error on starting the cluster node");
+                        startFuture.fail(result.cause());
+                    }
+                });
+    }
+
+    /**
+     * Opens the link to the given node (and keeps it open).
+     */
+    private void connect(Cluster.Peer peer) {
+        client.connect(peer.port, peer.host, result -> {
+            if (result.failed()) {
+                LOGGER.fine(() -> "Cluster node " + peer.id + " is not reachable: " + result.cause().getMessage());
+                reconnect(peer);
+                return;
+            }
+
+            var socket = result.result();
+            LOGGER.info("Connected to cluster node " + peer.id);
+
+            socket.closeHandler(__ -> {
+                LOGGER.info("Lost connection to cluster node " + peer.id);
+                peer.disconnected();
+                reconnect(peer);
+            });
+
+            // the node gets to know every filter with local subscribers
+            // before anything else is sent
+            peer.connected(socket, context);
+            socket.write(cluster.summary());
+        });
+    }
+
+    private void reconnect(Cluster.Peer peer) {
+        if (!stopped)
+            vertx.setTimer(CLUSTER_RECONNECT, __ -> connect(peer));
+    }
+
+    /**
+     * Handles the link of another node.
+     */
+    private void accept(NetSocket socket) {
+        // the sender is only known after its HELLO frame
+        var sender = new AtomicReference<Cluster.Peer>();
+
+        // [length][frame], where the length is read first
+        var parser = RecordParser.newFixed(4);
+        var length = new int[]{-1};
+
+        parser.handler(buffer -> {
+            if (length[0] < 0) {
+                length[0] = buffer.getInt(0);
+                parser.fixedSizeMode(length[0]);
+            } else {
+                length[0] = -1;
+                parser.fixedSizeMode(4);
+                handle(sender, buffer);
+            }
+        });
+
+        socket.handler(parser::handle);
+        socket.closeHandler(__ -> {
+            var peer = sender.get();
+            if (peer != null)
+                cluster.reset(peer);
+        });
+    }
+
+    private void handle(AtomicReference<Cluster.Peer> sender, Buffer frame) {
+        var type = frame.getByte(0);
+
+        if (type == Cluster.HELLO) {
+            hello(sender, frame.getString(1, frame.length()));
+            return;
+        }
+
+        var peer = sender.get();
+
+        if (peer == null)
+            return;
+
+        switch (type) {
+            case Cluster.ADD:
+                cluster.add(peer, frame.getString(1, frame.length()));
+                break;
+            case Cluster.REMOVE:
+                cluster.remove(peer, frame.getString(1, frame.length()));
+                break;
+            case Cluster.PUBLISH:
+                var qos = MqttQoS.valueOf(frame.getByte(1));
+                var retain = frame.getByte(2) != 0;
+                var topicLength = frame.getShort(3);
+                var topic = frame.getString(5, 5 + topicLength);
+                var payload = frame.getBuffer(5 + topicLength, frame.length());
+
+                broker.receive(topic, payload, qos, retain, System.nanoTime());
+                break;
+            default:
+                LOGGER.warning("Unknown frame type " + type + " from cluster node " + peer.id);
+        }
+    }
+
+    private void hello(AtomicReference<Cluster.Peer> sender, String nodeId) {
+        var known = cluster.peers().size();
+        var peer = cluster.peer(nodeId);
+
+        if (peer == null)
+            return;
+
+        // a node that was not configured here joins the cluster
+        if (cluster.peers().size() > known)
+            connect(peer);
+
+        // the node sends its complete summary again
+        cluster.reset(peer);
+        sender.set(peer);
+    }
+
+    @Override
+    public void stop(Future<Void> stopFuture) {
+        stopped = true;
+        client.close();
+        server.close(result -> {
+            LOGGER.info("Shutting down cluster node");
+            stopFuture.complete();
+        });
+    }
+}
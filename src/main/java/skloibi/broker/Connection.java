@@ -0,0 +1,120 @@
+package skloibi.broker;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.impl.NetSocketInternal;
+import io.vertx.mqtt.impl.MqttEndpointImpl;
+import io.vertx.reactivex.core.Context;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.mqtt.MqttEndpoint;
+
+import java.lang.reflect.Field;
+import java.util.function.Supplier;
+
+/**
+ * A single network connection of a {@link Session}.
+ * Bundles the endpoint with the context (event loop) it belongs to and the
+ * retransmit scheduler of that event loop (and the metrics it reports to).
+ * <p>
+ * {@link MqttEndpoint#publish} always assigns a new message id, which makes
+ * it impossible to retransmit a message. Therefore PUBLISH packets are
+ * written directly to the underlying socket of the endpoint, already encoded
+ * by their (shared) {@link PublishFrame}, which passes them through the MQTT
+ * encoder untouched. If the client does not keep up, they are held back by
+ * the {@link OutboundQueue} of the connection.
+ * All methods (except {@link #close()}) must be called on the connection's
+ * context.
+ */
+class Connection {
+
+    /**
+     * The (internal) socket of an endpoint.
+     */
+    private static final Field SOCKET;
+
+    static {
+        try {
+            SOCKET = MqttEndpointImpl.class.getDeclaredField("conn");
+            SOCKET.setAccessible(true);
+        } catch (NoSuchFieldException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    final MqttEndpoint    endpoint;
+    final Context         context;
+    final RetransmitWheel wheel;
+    final BrokerMetrics   metrics;
+
+    private final OutboundQueue outbound;
+
+    Connection(MqttEndpoint endpoint, Context context, RetransmitWheel wheel, Supplier<Session.Settings> settings, BrokerMetrics metrics) {
+        this.endpoint = endpoint;
+        this.context = context;
+        this.wheel = wheel;
+        this.metrics = metrics;
+
+        this.outbound = new OutboundQueue(socket(endpoint), settings, metrics, endpoint::close);
+    }
+
+    /**
+     * @param endpoint An endpoint
+     * @return the underlying socket of the endpoint
+     */
+    static NetSocketInternal socket(MqttEndpoint endpoint) {
+        try {
+            return (NetSocketInternal) SOCKET.get(endpoint.getDelegate());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("cannot access the socket of " + endpoint.clientIdentifier(), e);
+        }
+    }
+
+    boolean isCurrentContext() {
+        return Vertx.currentContext() != null && Vertx.currentContext().getDelegate() == context.getDelegate();
+    }
+
+    boolean isConnected() {
+        return endpoint.isConnected();
+    }
+
+    /**
+     * Writes a PUBLISH packet with the given message id.
+     *
+     * @param frame     The message
+     * @param qos       The Quality-of-Service
+     * @param dup       Whether the packet is a retransmission
+     * @param retain    Whether the message is a retained one
+     * @param messageId The message id (ignored for QoS 0)
+     */
+    void publish(PublishFrame frame, MqttQoS qos, boolean dup, boolean retain, int messageId) {
+        // the channel releases the packet after writing it
+        outbound.write(frame.encode(qos, dup, retain, messageId), qos);
+    }
+
+    /**
+     * Writes a PUBREL packet.
+     *
+     * @param messageId The message id
+     */
+    void release(int messageId) {
+        endpoint.publishRelease(messageId);
+    }
+
+    /**
+     * Closes the connection (on its own context).
+     */
+    void close() {
+        context.runOnContext(__ -> {
+            if (endpoint.isConnected())
+                endpoint.close();
+            discard();
+        });
+    }
+
+    /**
+     * Releases the messages that could not be written before the connection
+     * was closed.
+     */
+    void discard() {
+        outbound.close();
+    }
+}
@@ -0,0 +1,23 @@
+package skloibi.broker;
+
+/**
+ * Decides what happens to the messages of a client that exceeds its rate
+ * limit (or the limit of the topic it publishes to), see {@link Admission}.
+ */
+public enum LimitPolicy {
+    /**
+     * Drop the message (QoS 1/2 messages are still acknowledged, so the
+     * client does not retransmit them).
+     */
+    DROP,
+    /**
+     * Accept the message but stop reading from the connection of the client
+     * until it is within its limit again, i.e. slow the client down by TCP
+     * back pressure.
+     */
+    DELAY,
+    /**
+     * Close the connection of the client.
+     */
+    DISCONNECT
+}
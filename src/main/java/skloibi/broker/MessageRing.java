@@ -0,0 +1,207 @@
+package skloibi.broker;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.reactivex.core.buffer.Buffer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bounded queue of messages that is stored in a single circular byte array.
+ * Each message is written as a compact record
+ * {@code [length:int][qos:byte][topic length:short][topic][payload]}, so a
+ * queue does not hold any per-message objects.
+ * The array starts small and grows up to the configured maximum; if the
+ * maximum is reached, the oldest messages are dropped.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class MessageRing {
+
+    /**
+     * Size of the record header (without the length field itself).
+     */
+    private static final int HEADER = 1 + 2;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int maxBytes;
+
+    private byte[] buffer;
+    private int    head    = 0;
+    private int    size    = 0;
+    private int    count   = 0;
+    private long   dropped = 0;
+
+    /**
+     * @param maxBytes The maximum size of the queue in bytes
+     */
+    public MessageRing(int maxBytes) {
+        this.maxBytes = maxBytes;
+        this.buffer = new byte[Math.min(INITIAL_CAPACITY, maxBytes)];
+    }
+
+    /**
+     * Appends the given message, dropping the oldest messages if necessary.
+     *
+     * @param topic   The topic name
+     * @param payload The payload
+     * @param qos     The Quality-of-Service of the delivery
+     * @return {@code true} if the message was queued; {@code false} if it
+     * exceeds the maximum size of the queue
+     */
+    public boolean offer(String topic, Buffer payload, MqttQoS qos) {
+        var topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        var payloadBytes = payload.getDelegate().getBytes();
+        var length = HEADER + topicBytes.length + payloadBytes.length;
+
+        if (Integer.BYTES + length > maxBytes || topicBytes.length > Short.MAX_VALUE) {
+            dropped++;
+            return false;
+        }
+
+        reserve(Integer.BYTES + length);
+
+        putInt(length);
+        put((byte) qos.value());
+        put((byte) (topicBytes.length >> 8));
+        put((byte) topicBytes.length);
+        put(topicBytes);
+        put(payloadBytes);
+        count++;
+
+        return true;
+    }
+
+    /**
+     * Removes all messages from the queue and passes them (in order) to the
+     * given consumer.
+     *
+     * @param consumer The consumer of the messages
+     */
+    public void drain(Consumer consumer) {
+        while (poll(consumer)) ;
+    }
+
+    /**
+     * Removes the oldest message from the queue and passes it to the given
+     * consumer.
+     *
+     * @param consumer The consumer of the message
+     * @return {@code true} if a message was removed; {@code false} if the
+     * queue is empty
+     */
+    public boolean poll(Consumer consumer) {
+        if (count == 0)
+            return false;
+
+        var length = getInt();
+        var qos = MqttQoS.valueOf(get());
+        var topicLength = ((get() & 0xFF) << 8) | (get() & 0xFF);
+        var topic = new String(get(topicLength), StandardCharsets.UTF_8);
+        var payload = Buffer.newInstance(io.vertx.core.buffer.Buffer.buffer(get(length - HEADER - topicLength)));
+        count--;
+
+        consumer.accept(topic, payload, qos);
+        return true;
+    }
+
+    /**
+     * @return the number of queued messages
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @return the number of bytes that are occupied by the queued messages
+     */
+    public int bytes() {
+        return size;
+    }
+
+    /**
+     * @return the number of messages that were dropped so far
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    /**
+     * Ensures that the given number of bytes can be appended, by growing the
+     * buffer or (if that is not possible) dropping the oldest records.
+     */
+    private void reserve(int bytes) {
+        if (size + bytes > buffer.length && buffer.length < maxBytes) {
+            var capacity = buffer.length;
+            while (capacity < size + bytes && capacity < maxBytes)
+                capacity = (int) Math.min((long) capacity * 2, maxBytes);
+            grow(capacity);
+        }
+
+        while (buffer.length - size < bytes) {
+            var length = getInt();
+            head = (head + length) % buffer.length;
+            size -= length;
+            count--;
+            dropped++;
+        }
+    }
+
+    private void grow(int capacity) {
+        var next = new byte[capacity];
+        var first = Math.min(size, buffer.length - head);
+        System.arraycopy(buffer, head, next, 0, first);
+        System.arraycopy(buffer, 0, next, first, size - first);
+        buffer = next;
+        head = 0;
+    }
+
+    private void put(byte b) {
+        buffer[(head + size) % buffer.length] = b;
+        size++;
+    }
+
+    private void put(byte[] src) {
+        var tail = (head + size) % buffer.length;
+        var first = Math.min(src.length, buffer.length - tail);
+        System.arraycopy(src, 0, buffer, tail, first);
+        System.arraycopy(src, first, buffer, 0, src.length - first);
+        size += src.length;
+    }
+
+    private void putInt(int value) {
+        put((byte) (value >> 24));
+        put((byte) (value >> 16));
+        put((byte) (value >> 8));
+        put((byte) value);
+    }
+
+    private byte get() {
+        var b = buffer[head];
+        head = (head + 1) % buffer.length;
+        size--;
+        return b;
+    }
+
+    private byte[] get(int length) {
+        var dst = new byte[length];
+        var first = Math.min(length, buffer.length - head);
+        System.arraycopy(buffer, head, dst, 0, first);
+        System.arraycopy(buffer, 0, dst, first, length - first);
+        head = (head + length) % buffer.length;
+        size -= length;
+        return dst;
+    }
+
+    private int getInt() {
+        return ((get() & 0xFF) << 24) | ((get() & 0xFF) << 16) | ((get() & 0xFF) << 8) | (get() & 0xFF);
+    }
+
+    /**
+     * Consumer of drained messages.
+     */
+    @FunctionalInterface
+    public interface Consumer {
+        void accept(String topic, Buffer payload, MqttQoS qos);
+    }
+}
@@ -0,0 +1,210 @@
+package skloibi.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.impl.NetSocketInternal;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded outbound queue of a single connection.
+ * <p>
+ * Packets are written to the socket as long as the underlying Netty channel
+ * is writable (i.e. its own buffer did not exceed the high water mark).
+ * Afterwards, they are queued here until the channel becomes writable again
+ * (which is signalled by the drain handler of the socket). If the client
+ * still does not keep up and the queue exceeds its limit, the
+ * {@link OverflowPolicy} decides whether further messages are dropped,
+ * spilled to disk or the client is disconnected.
+ * This keeps the memory of a slow consumer bounded, so it cannot affect the
+ * other clients of its event loop.
+ * <p>
+ * Not thread-safe, only used on the context of its connection.
+ */
+class OutboundQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(OutboundQueue.class.getName());
+
+    /**
+     * The size of the chunks that are read back from the spill file.
+     */
+    private static final int SPILL_CHUNK = 16 * 1024;
+
+    private final NetSocketInternal          socket;
+    private final Supplier<Session.Settings> settings;
+    private final BrokerMetrics              metrics;
+
+    /**
+     * Closes the connection (if the client is too slow).
+     */
+    private final Runnable disconnect;
+
+    private final ArrayDeque<ByteBuf> packets = new ArrayDeque<>();
+
+    /**
+     * The size of all queued packets (in bytes).
+     */
+    private long bytes = 0;
+
+    /**
+     * The overflow of the queue; only created if the policy is
+     * {@link OverflowPolicy#SPILL}.
+     */
+    private SpillFile spill;
+
+    private boolean closed = false;
+
+    OutboundQueue(NetSocketInternal socket, Supplier<Session.Settings> settings, BrokerMetrics metrics,
+                  Runnable disconnect) {
+        this.socket = socket;
+        this.settings = settings;
+        this.metrics = metrics;
+        this.disconnect = disconnect;
+
+        socket.drainHandler(__ -> drain());
+    }
+
+    /**
+     * Writes the given packet or queues it if the client does not keep up.
+     *
+     * @param packet The encoded packet (which is released eventually)
+     * @param qos    The Quality-of-Service of the packet
+     */
+    void write(ByteBuf packet, MqttQoS qos) {
+        if (closed) {
+            packet.release();
+            return;
+        }
+
+        // the common case: the client keeps up
+        if (packets.isEmpty() && !hasSpilled() && !socket.writeQueueFull()) {
+            socket.writeMessage(packet);
+            return;
+        }
+
+        var limits = settings.get();
+
+        // once spilled, the order requires that everything is spilled until
+        // the client caught up
+        if (!hasSpilled() && bytes + packet.readableBytes() <= limits.outboundLimit) {
+            offer(packet);
+            return;
+        }
+
+        switch (limits.overflowPolicy) {
+            case DROP:
+                // QoS 1/2 messages are bounded by the in-flight window
+                if (qos == MqttQoS.AT_MOST_ONCE) {
+                    packet.release();
+                    metrics.dropped();
+                } else
+                    offer(packet);
+                break;
+            case SPILL:
+                spill(packet, limits.spillLimit);
+                break;
+            case DISCONNECT:
+            default:
+                packet.release();
+                overflow();
+                break;
+        }
+    }
+
+    private boolean hasSpilled() {
+        return spill != null && spill.size() > 0;
+    }
+
+    private void offer(ByteBuf packet) {
+        packets.add(packet);
+        bytes += packet.readableBytes();
+
+        metrics.queued(packet.readableBytes());
+        metrics.outboundDepth(packets.size());
+    }
+
+    private void spill(ByteBuf packet, long limit) {
+        var size = packet.readableBytes();
+
+        try {
+            if (spill == null)
+                spill = new SpillFile();
+
+            if (spill.size() + size > limit) {
+                packet.release();
+                overflow();
+                return;
+            }
+
+            spill.append(packet);
+            metrics.spilled(size);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not spill the outbound queue to disk", e);
+            overflow();
+        }
+    }
+
+    /**
+     * Disconnects the slow client.
+     */
+    private void overflow() {
+        metrics.slowConsumerDisconnected();
+        close();
+        disconnect.run();
+    }
+
+    /**
+     * Writes the queued packets (and afterwards the spilled ones) until the
+     * channel is not writable any more.
+     */
+    private void drain() {
+        try {
+            while (!closed && !socket.writeQueueFull()) {
+                var packet = packets.poll();
+
+                if (packet != null) {
+                    bytes -= packet.readableBytes();
+                    metrics.queued(-packet.readableBytes());
+                } else if (hasSpilled() && (packet = spill.read(SPILL_CHUNK)) != null)
+                    metrics.spilled(-packet.readableBytes());
+                else
+                    break;
+
+                socket.writeMessage(packet);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read the spilled outbound queue", e);
+            overflow();
+        }
+    }
+
+    /**
+     * Releases all queued packets.
+     */
+    void close() {
+        if (closed)
+            return;
+
+        closed = true;
+
+        packets.forEach(ByteBuf::release);
+        packets.clear();
+        metrics.queued(-bytes);
+        bytes = 0;
+
+        Optional.ofNullable(spill).ifPresent(s -> {
+            metrics.spilled(-s.size());
+            try {
+                s.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not delete the spill file", e);
+            }
+        });
+        spill = null;
+    }
+}
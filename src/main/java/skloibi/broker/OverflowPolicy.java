@@ -0,0 +1,25 @@
+package skloibi.broker;
+
+/**
+ * Decides what happens to the messages of a slow consumer, i.e. a client
+ * that does not read as fast as messages are sent to it, as soon as its
+ * outbound queue is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * Drop further QoS 0 messages (QoS 1/2 messages are still queued, as
+     * they are already bounded by the in-flight window).
+     */
+    DROP,
+    /**
+     * Close the connection of the client (a persistent session keeps its
+     * QoS 1/2 messages until the client reconnects).
+     */
+    DISCONNECT,
+    /**
+     * Write further messages to a temporary file and send them as soon as
+     * the client catches up; the client is disconnected if the file exceeds
+     * its limit as well.
+     */
+    SPILL
+}
@@ -0,0 +1,298 @@
+package skloibi.broker;
+
+import io.netty.util.collection.IntObjectHashMap;
+import skloibi.props.Messages;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+/**
+ * The members of each channel, i.e. the connected users that are subscribed
+ * to it.
+ * <p>
+ * Users are interned to small integer ids, so a channel only holds a sorted
+ * array of ids (four bytes per member) and each user name is stored once,
+ * regardless of the number of channels. The id of a user is released (and
+ * reused) as soon as it is not referenced anymore.
+ * <p>
+ * The changes of a channel are not announced one by one but collected until
+ * the next {@link #flush(BiConsumer)}, which reports all of them in a single
+ * notification. A user that joins and leaves in the meantime does not show
+ * up at all.
+ * <p>
+ * All operations are thread-safe; the updates of a channel are atomic (within
+ * the lock of its map entry).
+ */
+public class Presence {
+
+    private final UserIds                       users    = new UserIds();
+    private final ConcurrentMap<String, Members> channels = new ConcurrentHashMap<>();
+
+    /**
+     * The channels with unreported changes.
+     */
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Adds a member to a channel (if it is not a member yet).
+     *
+     * @param channel The channel name
+     * @param user    The user name
+     */
+    public void join(String channel, String user) {
+        var id = users.acquire(user);
+
+        channels.compute(channel, (name, members) -> {
+            if (members == null)
+                members = new Members();
+
+            if (members.add(id))
+                change(name, members, id, true);
+            else
+                users.release(id);
+
+            return members;
+        });
+    }
+
+    /**
+     * Removes a member from a channel (if it is a member).
+     *
+     * @param channel The channel name
+     * @param user    The user name
+     */
+    public void leave(String channel, String user) {
+        var id = users.find(user);
+
+        if (id < 0)
+            return;
+
+        channels.computeIfPresent(channel, (name, members) -> {
+            if (members.remove(id)) {
+                change(name, members, id, false);
+                users.release(id);
+            }
+
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    /**
+     * @param channel The channel name
+     * @return the current members of the channel (sorted by their ids, i.e.
+     * roughly by the time they were first seen)
+     */
+    public List<String> members(String channel) {
+        var names = new ArrayList<String>();
+
+        channels.computeIfPresent(channel, (name, members) -> {
+            for (var i = 0; i < members.size; i++)
+                names.add(users.name(members.ids[i]));
+            return members;
+        });
+
+        return names;
+    }
+
+    /**
+     * Reports the collected changes of every channel, e.g.
+     * {@code ":joined alice bob\n:left carol"} (see {@link Messages#JOINED}
+     * and {@link Messages#LEFT}).
+     *
+     * @param consumer Receives the channel name and the notification
+     */
+    public void flush(BiConsumer<String, String> consumer) {
+        for (var channel : changed) {
+            changed.remove(channel);
+
+            var notification = new String[1];
+
+            channels.computeIfPresent(channel, (name, members) -> {
+                notification[0] = members.report(users);
+                return members.isEmpty() ? null : members;
+            });
+
+            if (notification[0] != null)
+                consumer.accept(channel, notification[0]);
+        }
+    }
+
+    /**
+     * Records a changed membership; reverting an unreported change simply
+     * drops it. A pending change holds a reference to the user id, so the
+     * name can still be reported after the user left.
+     */
+    private void change(String channel, Members members, int id, boolean joined) {
+        if (members.changes == null)
+            members.changes = new IntObjectHashMap<>(4);
+
+        if (members.changes.remove(id) != null) {
+            users.release(id);
+
+            if (members.changes.isEmpty())
+                members.changes = null;
+            return;
+        }
+
+        users.retain(id);
+        members.changes.put(id, Boolean.valueOf(joined));
+        changed.add(channel);
+    }
+
+    /**
+     * The members of a single channel (only accessed within the lock of its
+     * map entry).
+     */
+    private static final class Members {
+        private static final int[] EMPTY = new int[0];
+
+        int[] ids = EMPTY;
+        int   size;
+
+        /**
+         * The unreported changes (joined or left) by user id; {@code null}
+         * if there are none.
+         */
+        IntObjectHashMap<Boolean> changes;
+
+        boolean add(int id) {
+            var index = Arrays.binarySearch(ids, 0, size, id);
+
+            if (index >= 0)
+                return false;
+
+            index = -index - 1;
+
+            if (size == ids.length)
+                ids = Arrays.copyOf(ids, Math.max(4, size * 2));
+
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            ids[index] = id;
+            size++;
+            return true;
+        }
+
+        boolean remove(int id) {
+            var index = Arrays.binarySearch(ids, 0, size, id);
+
+            if (index < 0)
+                return false;
+
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            size--;
+
+            // shrink channels that lost most of their members
+            if (size < ids.length / 4)
+                ids = size == 0 ? EMPTY : Arrays.copyOf(ids, ids.length / 2);
+
+            return true;
+        }
+
+        boolean isEmpty() {
+            return size == 0 && changes == null;
+        }
+
+        /**
+         * @return the notification of the unreported changes; {@code null}
+         * if there are none
+         */
+        String report(UserIds users) {
+            if (changes == null || changes.isEmpty()) {
+                changes = null;
+                return null;
+            }
+
+            var joined = new StringBuilder(Messages.JOINED);
+            var left = new StringBuilder(Messages.LEFT);
+
+            changes.forEach((id, join) -> {
+                (join ? joined : left).append(' ').append(users.name(id));
+                users.release(id);
+            });
+
+            changes = null;
+
+            if (joined.length() == Messages.JOINED.length())
+                return left.toString();
+            if (left.length() == Messages.LEFT.length())
+                return joined.toString();
+            return joined.append('\n').append(left).toString();
+        }
+    }
+
+    /**
+     * Interns the user names to small ids (with reference counting).
+     */
+    private static final class UserIds {
+        private final Map<String, Integer> ids = new HashMap<>();
+
+        private String[] names      = new String[16];
+        private int[]    references = new int[16];
+
+        /**
+         * The released ids (a stack), which are reused first.
+         */
+        private int[] free = new int[16];
+        private int   freeCount;
+        private int   next;
+
+        /**
+         * @return the id of the user (which is referenced once more)
+         */
+        synchronized int acquire(String name) {
+            var id = ids.get(name);
+
+            if (id != null) {
+                references[id]++;
+                return id;
+            }
+
+            int next = freeCount > 0 ? free[--freeCount] : this.next++;
+
+            if (next == names.length) {
+                names = Arrays.copyOf(names, next * 2);
+                references = Arrays.copyOf(references, next * 2);
+            }
+
+            names[next] = name;
+            references[next] = 1;
+            ids.put(name, next);
+            return next;
+        }
+
+        /**
+         * @return the id of the user; {@code -1} if it is unknown
+         */
+        synchronized int find(String name) {
+            return ids.getOrDefault(name, -1);
+        }
+
+        synchronized void retain(int id) {
+            references[id]++;
+        }
+
+        synchronized void release(int id) {
+            if (--references[id] > 0)
+                return;
+
+            ids.remove(names[id]);
+            names[id] = null;
+
+            if (freeCount == free.length)
+                free = Arrays.copyOf(free, freeCount * 2);
+
+            free[freeCount++] = id;
+        }
+
+        synchronized String name(int id) {
+            return names[id];
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package skloibi.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.reactivex.core.buffer.Buffer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A PUBLISH packet that is encoded once and shared by all of its deliveries.
+ * <p>
+ * Netty's MQTT encoder allocates a new buffer for every PUBLISH packet and
+ * copies the topic and the payload into it, i.e. a message that is forwarded
+ * to n subscribers would be copied n times. Instead, a frame encodes the
+ * fixed header and the topic once (per combination of flags) and every
+ * delivery only consists of a composite buffer of shared, reference-counted
+ * slices of this prefix and the payload. Only the (2 byte) message id of a
+ * QoS 1/2 delivery is allocated per subscriber.
+ * <p>
+ * Frames are immutable (apart from the lazily encoded prefixes) and may be
+ * used by any event loop.
+ */
+public final class PublishFrame {
+
+    public final String topic;
+    public final Buffer payload;
+
+    /**
+     * The shared payload (the encoded packets only hold retained duplicates).
+     */
+    private final ByteBuf content;
+
+    /**
+     * The encoded topic name (without the length prefix).
+     */
+    private final byte[] topicBytes;
+
+    /**
+     * The encoded fixed header and topic per combination of QoS, DUP and
+     * RETAIN flags.
+     */
+    private final AtomicReferenceArray<ByteBuf> prefixes = new AtomicReferenceArray<>(12);
+
+    /**
+     * @param topic   The topic name of the message
+     * @param payload The message payload
+     */
+    public PublishFrame(String topic, Buffer payload) {
+        this.topic = topic;
+        this.payload = payload;
+        this.content = payload.getDelegate().getByteBuf();
+        this.topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates a PUBLISH packet that shares the encoded topic and the payload
+     * with all other packets of this frame.
+     * The returned buffer must be written (or released) by the caller.
+     *
+     * @param qos       The Quality-of-Service of the delivery
+     * @param dup       Whether the packet is a retransmission
+     * @param retain    Whether the message is a retained one
+     * @param messageId The message id (ignored for QoS 0)
+     * @return the encoded packet
+     */
+    public ByteBuf encode(MqttQoS qos, boolean dup, boolean retain, int messageId) {
+        var prefix = prefix(qos, dup, retain).retainedDuplicate();
+        var body = content.retainedDuplicate();
+
+        // a fixed (read-only) composite is much lighter than a regular one
+        if (qos == MqttQoS.AT_MOST_ONCE)
+            return Unpooled.unmodifiableBuffer(prefix, body);
+
+        var id = Unpooled.wrappedBuffer(new byte[]{(byte) (messageId >> 8), (byte) messageId});
+        return Unpooled.unmodifiableBuffer(prefix, id, body);
+    }
+
+    private ByteBuf prefix(MqttQoS qos, boolean dup, boolean retain) {
+        var index = qos.value() * 4 + (dup ? 2 : 0) + (retain ? 1 : 0);
+        var prefix = prefixes.get(index);
+
+        if (prefix == null) {
+            // concurrent encodings are equivalent, so any of them may win
+            prefixes.compareAndSet(index, null, encodePrefix(qos, dup, retain));
+            prefix = prefixes.get(index);
+        }
+
+        return prefix;
+    }
+
+    private ByteBuf encodePrefix(MqttQoS qos, boolean dup, boolean retain) {
+        var remaining = 2 + topicBytes.length
+                + (qos == MqttQoS.AT_MOST_ONCE ? 0 : 2)
+                + content.readableBytes();
+
+        // wrapped (instead of allocated) buffers are simply garbage collected
+        var prefix = Unpooled.wrappedBuffer(new byte[1 + lengthBytes(remaining) + 2 + topicBytes.length]);
+        prefix.writerIndex(0);
+
+        prefix.writeByte(MqttMessageType.PUBLISH.value() << 4
+                | (dup ? 0x08 : 0)
+                | qos.value() << 1
+                | (retain ? 0x01 : 0));
+
+        // variable length encoding of the remaining length
+        do {
+            var digit = remaining % 128;
+            remaining /= 128;
+            prefix.writeByte(remaining > 0 ? digit | 0x80 : digit);
+        } while (remaining > 0);
+
+        prefix.writeShort(topicBytes.length);
+        prefix.writeBytes(topicBytes);
+
+        return prefix;
+    }
+
+    private static int lengthBytes(int remaining) {
+        var bytes = 1;
+
+        while (remaining >= 128) {
+            remaining /= 128;
+            bytes++;
+        }
+
+        return bytes;
+    }
+}
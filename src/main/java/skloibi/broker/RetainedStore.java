@@ -0,0 +1,191 @@
+package skloibi.broker;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.reactivex.core.buffer.Buffer;
+import skloibi.utils.Topics;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+import static skloibi.broker.SubscriptionTrie.MULTI_LEVEL;
+import static skloibi.broker.SubscriptionTrie.SINGLE_LEVEL;
+
+/**
+ * Store of the last retained message of every topic.
+ * The messages are kept in a tree of topic levels, so a (wildcard)
+ * subscription only visits the branches that match its filter instead of
+ * scanning all retained topics.
+ * <p>
+ * The store is limited to a maximum number of bytes. If the limit is
+ * exceeded, the least recently updated topics are evicted first.
+ * Lookups are lock-free; modifications are serialized.
+ */
+public class RetainedStore {
+
+    /**
+     * Estimated overhead of a single entry (objects, map and tree nodes).
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final long maxBytes;
+
+    private final Node root = new Node();
+
+    /**
+     * All retained messages in the order of their last update
+     * (used for the eviction).
+     */
+    private final LinkedHashMap<String, Retained> messages = new LinkedHashMap<>();
+
+    private long bytes = 0;
+
+    /**
+     * @param maxBytes The maximum (estimated) memory of all retained messages
+     */
+    public RetainedStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Retains the given message, replacing the previous one of the topic.
+     * As defined by MQTT, an empty payload removes the retained message.
+     *
+     * @param topic   The topic name
+     * @param payload The payload
+     * @param qos     The Quality-of-Service the message was published with
+     */
+    public synchronized void put(String topic, Buffer payload, MqttQoS qos) {
+        remove(topic);
+
+        if (payload.length() == 0)
+            return;
+
+        var retained = new Retained(topic, payload.copy(), qos);
+
+        if (retained.size > maxBytes)
+            return;
+
+        var node = root;
+        for (var level : Topics.levels(topic))
+            node = node.children.computeIfAbsent(level, __ -> new Node());
+        node.message = retained;
+
+        messages.put(topic, retained);
+        bytes += retained.size;
+
+        // evict the oldest messages until the limit is met again
+        var it = messages.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            var eldest = it.next();
+            it.remove();
+            bytes -= eldest.size;
+            unlink(root, Topics.levels(eldest.topic), 0);
+        }
+    }
+
+    private void remove(String topic) {
+        var previous = messages.remove(topic);
+
+        if (previous != null) {
+            bytes -= previous.size;
+            unlink(root, Topics.levels(topic), 0);
+        }
+    }
+
+    private void unlink(Node node, String[] levels, int i) {
+        if (i == levels.length) {
+            node.message = null;
+            return;
+        }
+
+        var child = node.children.get(levels[i]);
+
+        if (child == null)
+            return;
+
+        unlink(child, levels, i + 1);
+
+        // prune branches without messages
+        if (child.message == null && child.children.isEmpty())
+            node.children.remove(levels[i], child);
+    }
+
+    /**
+     * Passes all retained messages whose topic matches the given filter to
+     * the consumer.
+     *
+     * @param filter   The topic filter (may contain wildcards)
+     * @param consumer The consumer of the matching messages
+     */
+    public void match(String filter, Consumer<Retained> consumer) {
+        match(root, Topics.levels(filter), 0, consumer);
+    }
+
+    private void match(Node node, String[] levels, int i, Consumer<Retained> consumer) {
+        if (i == levels.length) {
+            var message = node.message;
+            if (message != null)
+                consumer.accept(message);
+            return;
+        }
+
+        switch (levels[i]) {
+            case MULTI_LEVEL:
+                // "#" also matches the parent level itself
+                collect(node, consumer);
+                break;
+            case SINGLE_LEVEL:
+                node.children.values().forEach(child -> match(child, levels, i + 1, consumer));
+                break;
+            default:
+                var child = node.children.get(levels[i]);
+                if (child != null)
+                    match(child, levels, i + 1, consumer);
+                break;
+        }
+    }
+
+    private void collect(Node node, Consumer<Retained> consumer) {
+        var message = node.message;
+        if (message != null)
+            consumer.accept(message);
+
+        node.children.values().forEach(child -> collect(child, consumer));
+    }
+
+    /**
+     * @return the estimated memory of all retained messages
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * A single retained message.
+     */
+    public static final class Retained {
+        public final String  topic;
+        public final Buffer  payload;
+        public final MqttQoS qos;
+
+        final int size;
+
+        Retained(String topic, Buffer payload, MqttQoS qos) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+            this.size = ENTRY_OVERHEAD + 2 * topic.length() + payload.length();
+        }
+    }
+
+    /**
+     * A single level in the topic tree.
+     */
+    private static final class Node {
+        final ConcurrentMap<String, Node> children = new ConcurrentHashMap<>();
+
+        volatile Retained message;
+    }
+}
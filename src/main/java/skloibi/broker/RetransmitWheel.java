@@ -0,0 +1,96 @@
+package skloibi.broker;
+
+import java.util.ArrayDeque;
+
+/**
+ * Hashed timer wheel that schedules the retransmissions of all sessions on a
+ * single event loop.
+ * Instead of starting one timer per unacknowledged message, every task is put
+ * into the slot of the wheel that corresponds to its deadline and the wheel
+ * is advanced by a single periodic timer. Scheduling and cancelling are
+ * therefore O(1) (tasks are cancelled lazily, i.e. they check on their own
+ * whether they are still relevant when they are run).
+ * <p>
+ * This class is not thread-safe and must only be used on its event loop.
+ */
+public class RetransmitWheel {
+
+    private final ArrayDeque<Entry>[] slots;
+    private final long                tick;
+
+    private int cursor = 0;
+    private int size   = 0;
+
+    /**
+     * @param slots The number of slots of the wheel
+     * @param tick  The duration of a single tick (in milliseconds)
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RetransmitWheel(int slots, long tick) {
+        this.slots = new ArrayDeque[slots];
+        this.tick = tick;
+
+        for (var i = 0; i < slots; i++)
+            this.slots[i] = new ArrayDeque<>();
+    }
+
+    /**
+     * @return the duration of a single tick (in milliseconds)
+     */
+    public long tickMillis() {
+        return tick;
+    }
+
+    /**
+     * Schedules the given task.
+     *
+     * @param delay The delay (in milliseconds), rounded up to full ticks
+     * @param task  The task
+     */
+    public void schedule(long delay, Runnable task) {
+        var ticks = Math.max(1, (delay + tick - 1) / tick);
+
+        slots[(int) ((cursor + ticks) % slots.length)].add(new Entry((ticks - 1) / slots.length, task));
+        size++;
+    }
+
+    /**
+     * Advances the wheel by one tick and runs all tasks that are due.
+     */
+    public void tick() {
+        cursor = (cursor + 1) % slots.length;
+
+        var slot = slots[cursor];
+
+        // only process the entries that were present before, as the tasks
+        // may schedule new entries into the same slot
+        for (var i = slot.size(); i > 0; i--) {
+            var entry = slot.poll();
+
+            if (entry.rounds-- > 0)
+                slot.add(entry);
+            else {
+                size--;
+                entry.task.run();
+            }
+        }
+    }
+
+    /**
+     * @return the number of scheduled tasks
+     */
+    public int size() {
+        return size;
+    }
+
+    private static final class Entry {
+        long rounds;
+
+        final Runnable task;
+
+        Entry(long rounds, Runnable task) {
+            this.rounds = rounds;
+            this.task = task;
+        }
+    }
+}
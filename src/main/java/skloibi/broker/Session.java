@@ -0,0 +1,480 @@
+package skloibi.broker;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.collection.IntObjectHashMap;
+import io.vertx.reactivex.core.Context;
+import io.vertx.reactivex.mqtt.MqttEndpoint;
+
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Broker-side state of a single client, identified by its client identifier.
+ * <p>
+ * While connected, a session is bound to the event loop (context) of the
+ * server instance that accepted the connection. Every interaction with the
+ * underlying endpoint is executed on that context, which allows other event
+ * loops to deliver messages without any shared lock.
+ * <p>
+ * Outgoing QoS 1/2 messages are tracked in a bounded in-flight window until
+ * they are acknowledged and are retransmitted (through the
+ * {@link RetransmitWheel} of the event loop) if the acknowledgement does not
+ * arrive in time. Messages that do not fit into the window are queued in a
+ * bounded {@link MessageRing}.
+ * <p>
+ * A persistent session (i.e. one that was not requested with a clean session)
+ * outlives its connection: its subscriptions stay active, QoS 1/2 messages
+ * are queued until the client reconnects or the session expires and
+ * unacknowledged messages are sent again after the reconnect.
+ */
+public class Session {
+
+    /**
+     * The highest valid message id.
+     */
+    private static final int MAX_MESSAGE_ID = 0xFFFF;
+
+    /**
+     * The MQTT client identifier.
+     */
+    public final String clientId;
+
+    /**
+     * Whether the session outlives its connection.
+     */
+    public final boolean persistent;
+
+    /**
+     * The current limits of the session.
+     */
+    private final Supplier<Settings> settings;
+
+    /**
+     * The topic filters of this session.
+     */
+    private final Set<String> filters = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The chat user of this session, i.e. the owner of the first "personal"
+     * channel it subscribed to; {@code null} until then.
+     */
+    private volatile String user;
+
+    /**
+     * Ids of the received QoS 2 messages that were not released yet
+     * (guarded by this, as a reconnect may move the session to another
+     * event loop).
+     */
+    private IntObjectHashMap<Boolean> received;
+
+    /**
+     * The current connection; {@code null} while the client is offline.
+     */
+    private volatile Connection connection;
+
+    /**
+     * Sent QoS 1/2 messages that were not acknowledged yet by their message
+     * id (guarded by this).
+     */
+    private IntObjectHashMap<Pending> inflight;
+
+    /**
+     * The last used message id (guarded by this).
+     */
+    private int messageId = 0;
+
+    /**
+     * QoS 1/2 messages that arrived while the client was offline or the
+     * in-flight window was full (guarded by this).
+     */
+    private MessageRing queue;
+
+    /**
+     * Time of the last disconnect (guarded by this).
+     */
+    private long disconnectedAt;
+
+    /**
+     * @param clientId   The MQTT client identifier
+     * @param persistent Whether the session outlives its connection
+     * @param settings   The (current) limits of the session
+     */
+    public Session(String clientId, boolean persistent, Supplier<Settings> settings) {
+        this.clientId = clientId;
+        this.persistent = persistent;
+        this.settings = settings;
+    }
+
+    public Set<String> getFilters() {
+        return filters;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * Identifies the session as the given chat user (once).
+     *
+     * @param user The user of a subscribed "personal" channel
+     * @return {@code true} if the session was not identified yet;
+     * {@code false} otherwise
+     */
+    synchronized boolean identify(String user) {
+        if (this.user != null)
+            return false;
+
+        this.user = user;
+        return true;
+    }
+
+    /**
+     * Binds the session to a new connection.
+     * A previous connection of the session is closed.
+     *
+     * @param endpoint The endpoint of the new connection
+     * @param context  The context (event loop) of the endpoint
+     * @param wheel    The retransmit scheduler of the event loop
+     * @param metrics  The instrumentation of the broker
+     */
+    synchronized void attach(MqttEndpoint endpoint, Context context, RetransmitWheel wheel, BrokerMetrics metrics) {
+        Optional.ofNullable(connection).ifPresent(Connection::close);
+        connection = new Connection(endpoint, context, wheel, settings, metrics);
+    }
+
+    /**
+     * Releases the binding to the given endpoint, e.g. after its connection
+     * was closed.
+     *
+     * @param endpoint The endpoint whose connection was closed
+     * @return {@code true} if the session was bound to this endpoint;
+     * {@code false} if it was already taken over by another connection
+     */
+    synchronized boolean detach(MqttEndpoint endpoint) {
+        if (connection == null || connection.endpoint != endpoint)
+            return false;
+
+        connection.discard();
+        connection = null;
+        disconnectedAt = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Closes the current connection (if any).
+     */
+    synchronized void close() {
+        Optional.ofNullable(connection).ifPresent(Connection::close);
+    }
+
+    /**
+     * Checks whether the client has been offline for longer than the given
+     * time.
+     *
+     * @param now    The current time (in milliseconds)
+     * @param expiry The expiry time (in milliseconds)
+     * @return {@code true} if the session is expired; {@code false} otherwise
+     */
+    synchronized boolean isExpired(long now, long expiry) {
+        return connection == null && now - disconnectedAt > expiry;
+    }
+
+    /**
+     * Sends all unacknowledged messages of a previous connection again and
+     * afterwards the messages that were queued in the meantime.
+     * Must be called on the context of the current connection, after the
+     * connection was accepted.
+     */
+    public synchronized void resume() {
+        var current = connection;
+
+        if (current == null)
+            return;
+
+        if (inflight != null)
+            for (var entry : inflight.entries()) {
+                var id = entry.key();
+                var pending = entry.value();
+
+                transmit(current, id, pending, true);
+                schedule(current, id, pending);
+            }
+
+        pump(current);
+    }
+
+    /**
+     * Records the receipt of a QoS 2 message.
+     *
+     * @param messageId The message id
+     * @return {@code true} if the message is new; {@code false} if it was
+     * already received (i.e. it is a retransmission)
+     */
+    public synchronized boolean receive(int messageId) {
+        if (received == null)
+            received = new IntObjectHashMap<>(4);
+
+        return received.put(messageId, Boolean.TRUE) == null;
+    }
+
+    /**
+     * Releases a received QoS 2 message.
+     *
+     * @param messageId The message id
+     */
+    public synchronized void release(int messageId) {
+        if (received != null)
+            received.remove(messageId);
+    }
+
+    /**
+     * Handles the PUBACK (QoS 1) or PUBCOMP (QoS 2) of a sent message, which
+     * completes its delivery and frees a slot of the in-flight window.
+     * Must be called on the context of the current connection.
+     *
+     * @param messageId The message id
+     */
+    public synchronized void acknowledge(int messageId) {
+        if (inflight == null || inflight.remove(messageId) == null)
+            return;
+
+        Optional.ofNullable(connection).ifPresent(this::pump);
+    }
+
+    /**
+     * Handles the PUBREC of a sent QoS 2 message.
+     * From now on, only the PUBREL is retransmitted (which has to be sent by
+     * the caller).
+     * Must be called on the context of the current connection.
+     *
+     * @param messageId The message id
+     */
+    public synchronized void received(int messageId) {
+        Optional.ofNullable(inflight)
+                .map(i -> i.get(messageId))
+                .ifPresent(Pending::released);
+    }
+
+    /**
+     * @return the number of unacknowledged messages
+     */
+    public synchronized int inflight() {
+        return inflight == null ? 0 : inflight.size();
+    }
+
+    /**
+     * Sends the given message to the client.
+     * If called from a foreign event loop, the message is handed over to the
+     * session's own event loop instead of being written directly.
+     * If the client is offline, QoS 1/2 messages of a persistent session are
+     * queued.
+     *
+     * @param frame   The message (shared by all of its deliveries)
+     * @param qos     The Quality-of-Service of the delivery
+     * @param retain  Whether the message is a retained one
+     * @param ingress The arrival time of the message at the broker
+     *                ({@link System#nanoTime()}); {@code 0} if the routing
+     *                latency should not be measured
+     */
+    public void deliver(PublishFrame frame, MqttQoS qos, boolean retain, long ingress) {
+        var current = connection;
+
+        if (current == null)
+            enqueue(null, frame, qos);
+        else if (current.isCurrentContext())
+            write(current, frame, qos, retain, ingress);
+        else
+            current.context.runOnContext(__ -> write(current, frame, qos, retain, ingress));
+    }
+
+    private void write(Connection target, PublishFrame frame, MqttQoS qos, boolean retain, long ingress) {
+        if (!target.isConnected()) {
+            enqueue(target, frame, qos);
+            return;
+        }
+
+        if (qos == MqttQoS.AT_MOST_ONCE)
+            target.publish(frame, qos, false, retain, 0);
+        else
+            synchronized (this) {
+                // keep the order if messages are already waiting for the window
+                if (inflight() >= settings.get().inflightLimit || (queue != null && queue.count() > 0)) {
+                    queue().offer(frame.topic, frame.payload, qos);
+                    return;
+                }
+
+                send(target, new Pending(frame, qos, retain));
+            }
+
+        if (ingress != 0)
+            target.metrics.written(ingress);
+    }
+
+    private void enqueue(Connection failed, PublishFrame frame, MqttQoS qos) {
+        if (!persistent || qos == MqttQoS.AT_MOST_ONCE)
+            return;
+
+        Connection current;
+
+        synchronized (this) {
+            current = connection;
+
+            if (current == null || current == failed) {
+                queue().offer(frame.topic, frame.payload, qos);
+                return;
+            }
+        }
+
+        // the client has reconnected in the meantime
+        current.context.runOnContext(__ -> write(current, frame, qos, false, 0));
+    }
+
+    /**
+     * Moves queued messages into the in-flight window as far as possible.
+     */
+    private void pump(Connection target) {
+        while (queue != null && inflight() < settings.get().inflightLimit && target.isConnected())
+            if (!queue.poll((topic, payload, qos) -> send(target, new Pending(new PublishFrame(topic, payload), qos, false))))
+                queue = null;
+    }
+
+    private void send(Connection target, Pending pending) {
+        if (inflight == null)
+            inflight = new IntObjectHashMap<>(Math.min(settings.get().inflightLimit, 16));
+
+        var id = nextMessageId();
+
+        // every message id is in use (only possible with a huge window)
+        if (id == 0) {
+            queue().offer(pending.frame.topic, pending.frame.payload, pending.qos);
+            return;
+        }
+
+        inflight.put(id, pending);
+        target.metrics.inflight(inflight.size());
+
+        transmit(target, id, pending, false);
+        schedule(target, id, pending);
+    }
+
+    private void transmit(Connection target, int id, Pending pending, boolean dup) {
+        if (pending.isReleased())
+            target.release(id);
+        else
+            target.publish(pending.frame, pending.qos, dup, pending.retain, id);
+    }
+
+    private void schedule(Connection target, int id, Pending pending) {
+        target.wheel.schedule(settings.get().retransmitTimeout, () -> retransmit(target, id, pending));
+    }
+
+    private synchronized void retransmit(Connection target, int id, Pending pending) {
+        // the message was acknowledged or the connection was replaced
+        // (the new connection retransmits on its own)
+        if (connection != target || inflight == null || inflight.get(id) != pending || !target.isConnected())
+            return;
+
+        transmit(target, id, pending, true);
+        schedule(target, id, pending);
+    }
+
+    /**
+     * @return the next free message id; {@code 0} if all ids are in flight
+     */
+    private int nextMessageId() {
+        for (var i = 0; i < MAX_MESSAGE_ID; i++) {
+            messageId = messageId % MAX_MESSAGE_ID + 1;
+
+            if (!inflight.containsKey(messageId))
+                return messageId;
+        }
+
+        return 0;
+    }
+
+    private MessageRing queue() {
+        if (queue == null)
+            queue = new MessageRing(settings.get().queueLimit);
+
+        return queue;
+    }
+
+    /**
+     * The limits of a session.
+     */
+    public static final class Settings {
+
+        /**
+         * The maximum number of unacknowledged QoS 1/2 messages.
+         */
+        public final int inflightLimit;
+
+        /**
+         * The maximum size of the message queue (in bytes).
+         */
+        public final int queueLimit;
+
+        /**
+         * The time after which an unacknowledged message is sent again
+         * (in milliseconds).
+         */
+        public final long retransmitTimeout;
+
+        /**
+         * The maximum size of the outbound queue of a connection (in bytes),
+         * i.e. of the messages that could not be written yet because the
+         * client does not keep up.
+         */
+        public final int outboundLimit;
+
+        /**
+         * What happens if the outbound queue is full.
+         */
+        public final OverflowPolicy overflowPolicy;
+
+        /**
+         * The maximum size of the spill file of a connection (in bytes).
+         */
+        public final long spillLimit;
+
+        public Settings(int inflightLimit, int queueLimit, long retransmitTimeout,
+                        int outboundLimit, OverflowPolicy overflowPolicy, long spillLimit) {
+            this.inflightLimit = inflightLimit;
+            this.queueLimit = queueLimit;
+            this.retransmitTimeout = retransmitTimeout;
+            this.outboundLimit = outboundLimit;
+            this.overflowPolicy = overflowPolicy;
+            this.spillLimit = spillLimit;
+        }
+    }
+
+    /**
+     * An unacknowledged QoS 1/2 message.
+     */
+    private static final class Pending {
+        final MqttQoS qos;
+        final boolean retain;
+
+        /**
+         * The message; {@code null} as soon as a QoS 2 message was received
+         * by the client (only the PUBREL is retransmitted afterwards).
+         */
+        PublishFrame frame;
+
+        Pending(PublishFrame frame, MqttQoS qos, boolean retain) {
+            this.frame = frame;
+            this.qos = qos;
+            this.retain = retain;
+        }
+
+        void released() {
+            frame = null;
+        }
+
+        boolean isReleased() {
+            return frame == null;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package skloibi.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Temporary file that holds the overflow of an {@link OutboundQueue}.
+ * The file simply contains the encoded packets in the order they have to be
+ * sent, i.e. it is read back as a plain byte stream (in chunks) without
+ * caring about packet boundaries.
+ * The file is deleted when it is closed.
+ * <p>
+ * Not thread-safe, only used on the context of its connection.
+ */
+class SpillFile implements Closeable {
+
+    private final FileChannel channel;
+
+    private long writePosition = 0;
+    private long readPosition  = 0;
+
+    SpillFile() throws IOException {
+        this.channel = FileChannel.open(
+                Files.createTempFile("mqtt-chat-", ".spill"),
+                READ, WRITE, DELETE_ON_CLOSE
+        );
+    }
+
+    /**
+     * @return the number of bytes that were not read yet
+     */
+    long size() {
+        return writePosition - readPosition;
+    }
+
+    /**
+     * Appends (and releases) the given packet.
+     *
+     * @param packet The encoded packet
+     * @throws IOException if the packet could not be written
+     */
+    void append(ByteBuf packet) throws IOException {
+        try {
+            while (packet.isReadable())
+                writePosition += packet.readBytes(channel, writePosition, packet.readableBytes());
+        } finally {
+            packet.release();
+        }
+    }
+
+    /**
+     * Reads the next chunk of the file.
+     *
+     * @param maxBytes The maximum size of the chunk
+     * @return the chunk; {@code null} if everything was read
+     * @throws IOException if the file could not be read
+     */
+    ByteBuf read(int maxBytes) throws IOException {
+        if (size() == 0)
+            return null;
+
+        var chunk = Unpooled.buffer((int) Math.min(maxBytes, size()));
+
+        while (chunk.isWritable()) {
+            var read = chunk.writeBytes(channel, readPosition, chunk.writableBytes());
+
+            if (read < 0) {
+                chunk.release();
+                throw new EOFException("spill file is shorter than expected");
+            }
+
+            readPosition += read;
+        }
+
+        // start from the beginning again, so the file does not grow
+        // while the client keeps up
+        if (size() == 0) {
+            writePosition = readPosition = 0;
+            channel.truncate(0);
+        }
+
+        return chunk;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
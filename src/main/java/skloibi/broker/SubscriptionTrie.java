@@ -0,0 +1,138 @@
+package skloibi.broker;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import skloibi.utils.Topics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Index of all topic subscriptions of the broker.
+ * Each topic filter is split into its levels (see {@link Topics#SEPARATOR})
+ * and stored as a path in a trie where the wildcards {@code +} and {@code #}
+ * are simply nodes of their own.
+ * Matching a published topic therefore only visits the exact, the {@code +}
+ * and the {@code #} branch of every level, so the cost of a lookup grows with
+ * the number of matching subscribers and not with the total number of
+ * subscriptions.
+ * <p>
+ * Lookups are lock-free and may run concurrently on any event loop.
+ * Modifications are serialized, which allows to prune empty branches safely
+ * (a lookup that still walks a pruned branch simply finds no subscribers).
+ *
+ * @param <S> The type of the subscribers
+ */
+public class SubscriptionTrie<S> {
+
+    /**
+     * Wildcard that matches exactly one topic level.
+     */
+    public static final String SINGLE_LEVEL = "+";
+
+    /**
+     * Wildcard that matches any number of (trailing) topic levels.
+     */
+    public static final String MULTI_LEVEL = "#";
+
+    private final Node<S> root = new Node<>();
+
+    /**
+     * Adds (or updates) the subscription of the given subscriber.
+     *
+     * @param filter     The topic filter (may contain wildcards)
+     * @param subscriber The subscriber
+     * @param qos        The granted Quality-of-Service
+     */
+    public synchronized void subscribe(String filter, S subscriber, MqttQoS qos) {
+        var node = root;
+
+        for (var level : Topics.levels(filter))
+            node = node.children.computeIfAbsent(level, __ -> new Node<>());
+
+        node.subscribers.put(subscriber, qos);
+    }
+
+    /**
+     * Removes the subscription of the given subscriber.
+     *
+     * @param filter     The topic filter that was used to subscribe
+     * @param subscriber The subscriber
+     * @return {@code true} if the subscription existed; {@code false} otherwise
+     */
+    public synchronized boolean unsubscribe(String filter, S subscriber) {
+        return unsubscribe(root, Topics.levels(filter), 0, subscriber);
+    }
+
+    private boolean unsubscribe(Node<S> node, String[] levels, int i, S subscriber) {
+        if (i == levels.length)
+            return node.subscribers.remove(subscriber) != null;
+
+        var child = node.children.get(levels[i]);
+
+        if (child == null)
+            return false;
+
+        var removed = unsubscribe(child, levels, i + 1, subscriber);
+
+        // prune the branch as soon as it does not hold any subscriptions
+        if (child.isEmpty())
+            node.children.remove(levels[i], child);
+
+        return removed;
+    }
+
+    /**
+     * Retrieves all subscribers whose filters match the given topic.
+     * If a subscriber matches with multiple filters, it is only returned once
+     * with the maximum Quality-of-Service of those subscriptions.
+     *
+     * @param topic The topic name of a published message (without wildcards)
+     * @return the matching subscribers and their granted Quality-of-Service
+     */
+    public Map<S, MqttQoS> match(String topic) {
+        var result = new HashMap<S, MqttQoS>();
+
+        match(root, Topics.levels(topic), 0, result);
+
+        return result;
+    }
+
+    private void match(Node<S> node, String[] levels, int i, Map<S, MqttQoS> result) {
+        // "#" also matches the parent level itself
+        var multi = node.children.get(MULTI_LEVEL);
+        if (multi != null)
+            collect(multi, result);
+
+        if (i == levels.length) {
+            collect(node, result);
+            return;
+        }
+
+        var exact = node.children.get(levels[i]);
+        if (exact != null)
+            match(exact, levels, i + 1, result);
+
+        var single = node.children.get(SINGLE_LEVEL);
+        if (single != null)
+            match(single, levels, i + 1, result);
+    }
+
+    private void collect(Node<S> node, Map<S, MqttQoS> result) {
+        node.subscribers.forEach((subscriber, qos) ->
+                result.merge(subscriber, qos, (a, b) -> a.value() >= b.value() ? a : b));
+    }
+
+    /**
+     * A single level in the trie.
+     */
+    private static final class Node<S> {
+        final ConcurrentMap<String, Node<S>> children    = new ConcurrentHashMap<>();
+        final ConcurrentMap<S, MqttQoS>      subscribers = new ConcurrentHashMap<>();
+
+        boolean isEmpty() {
+            return children.isEmpty() && subscribers.isEmpty();
+        }
+    }
+}
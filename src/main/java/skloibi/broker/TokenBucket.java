@@ -0,0 +1,70 @@
+package skloibi.broker;
+
+/**
+ * The state of a token bucket: the bucket holds up to {@code burst} tokens,
+ * which are refilled continuously at {@code rate} tokens per second, and
+ * every admitted operation takes one token.
+ * <p>
+ * Only the state is kept here (two fields), the rate and burst size are
+ * passed on every call, so the limits can be changed at runtime without
+ * touching the buckets. A rate of zero (or less) disables the limit.
+ * <p>
+ * Not thread-safe; a bucket must only be used by a single event loop (or
+ * under a lock).
+ */
+final class TokenBucket {
+
+    private static final double NANOS = 1e9;
+
+    /**
+     * The available tokens; a new bucket is full.
+     */
+    private double tokens = Double.NaN;
+
+    /**
+     * The time of the last refill ({@link System#nanoTime()}).
+     */
+    private long last;
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @param now   The current time ({@link System#nanoTime()})
+     * @param rate  The number of tokens per second
+     * @param burst The maximum number of tokens
+     * @return {@code true} if a token was taken; {@code false} otherwise
+     */
+    boolean tryTake(long now, double rate, double burst) {
+        if (delay(now, rate, burst) > 0)
+            return false;
+
+        if (rate > 0)
+            tokens--;
+        return true;
+    }
+
+    /**
+     * @param now   The current time ({@link System#nanoTime()})
+     * @param rate  The number of tokens per second
+     * @param burst The maximum number of tokens
+     * @return the time (in nanoseconds) until a token is available; {@code 0}
+     * if one is available now
+     */
+    long delay(long now, double rate, double burst) {
+        if (rate <= 0)
+            return 0;
+
+        refill(now, rate, burst);
+
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / rate * NANOS);
+    }
+
+    private void refill(long now, double rate, double burst) {
+        if (Double.isNaN(tokens))
+            tokens = burst;
+        else
+            tokens = Math.min(burst, tokens + (now - last) * rate / NANOS);
+
+        last = now;
+    }
+}
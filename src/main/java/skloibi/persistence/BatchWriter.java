@@ -0,0 +1,328 @@
+package skloibi.persistence;
+
+import com.github.davidmoten.rx.jdbc.ConnectionProvider;
+import com.github.davidmoten.rx.jdbc.Database;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import skloibi.utils.BlockingExecutor;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind buffer that persists logged messages in batches.
+ * Messages are collected in a bounded queue and written as a single
+ * parameterized JDBC batch as soon as either the batch size is reached or the
+ * linger time has passed since the last flush.
+ * <p>
+ * The queue is only accessed on the event loop of the owning verticle.
+ * The actual database work runs on a {@link BlockingExecutor} (which bounds
+ * the concurrency toward the database) and at most one batch is written at
+ * any time, with a connection of the given provider (e.g. a
+ * {@link ConnectionPool}).
+ * <p>
+ * If a batch fails because the database is unavailable (see
+ * {@link ConnectionPool#isConnectionError(SQLException)}), its messages are
+ * put back at the head of the queue and retried with the next periodic flush
+ * (until then, full batches are not written eagerly), so an outage only fills
+ * the (bounded) queue and costs one attempt per linger time. Batches that
+ * fail otherwise are dropped.
+ */
+public class BatchWriter implements MessageStore {
+
+    private static final Logger logger = Logger.getLogger(BatchWriter.class.getName());
+
+    private static final String INSERT = "INSERT INTO messages (username, channel, date, payload) VALUES (?, ?, ?, ?)";
+
+    private final Vertx              vertx;
+    private final Context            context;
+    private final BlockingExecutor   blocking;
+    private final ConnectionProvider connectionProvider;
+    private final int                batchSize;
+    private final int                capacity;
+
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final long              timer;
+
+    /**
+     * Whether a batch is currently written (only accessed on the event loop).
+     */
+    private boolean flushing = false;
+
+    /**
+     * Whether the last write failed; until the next periodic flush, no batch
+     * is written eagerly (only accessed on the event loop).
+     */
+    private boolean failed = false;
+
+    /**
+     * Number of messages that were rejected as the queue was full.
+     */
+    private long rejected = 0;
+
+    /**
+     * Whether the database is currently unavailable (only accessed on the
+     * event loop).
+     */
+    private boolean unavailable = false;
+
+    /**
+     * @param vertx              The Vert.x instance (of the owning verticle)
+     * @param blocking           Runs the database work
+     * @param connectionProvider The provider of the database connections
+     * @param batchSize          The maximum number of messages per batch
+     * @param lingerMillis       The maximum time a message is buffered
+     * @param capacity           The maximum number of buffered messages
+     *                           (including the ones kept during an outage)
+     */
+    public BatchWriter(Vertx vertx, BlockingExecutor blocking, ConnectionProvider connectionProvider,
+                       int batchSize, long lingerMillis, int capacity) {
+        this.vertx = vertx;
+        this.context = vertx.getDelegate().getOrCreateContext();
+        this.blocking = blocking;
+        this.connectionProvider = connectionProvider;
+        this.batchSize = batchSize;
+        this.capacity = capacity;
+        this.timer = vertx.setPeriodic(lingerMillis, __ -> {
+            // retry after a failure (at most once per linger time)
+            failed = false;
+            flush();
+        });
+    }
+
+    /**
+     * Buffers the given message.
+     * If the queue is full, the message is rejected so that a stalled
+     * database cannot exhaust the heap.
+     *
+     * @param user    The user that sent the message
+     * @param channel The channel of the message; {@code null} for a whisper
+     * @param date    The time the message was received
+     * @param message The actual message (possibly compressed, stored as it is)
+     * @return {@code true} if the message was accepted; {@code false} otherwise
+     */
+    @Override
+    public boolean add(String user, String channel, Instant date, Buffer message) {
+        if (queue.size() >= capacity) {
+            // only log the first rejection of every overflow period
+            if (rejected++ == 0)
+                logger.warning("message queue is full, rejecting messages");
+            if (!failed)
+                flush();
+            return false;
+        }
+
+        queue.add(new Entry(user, channel, date, message));
+
+        // during an outage, full batches wait for the periodic flush
+        if (queue.size() >= batchSize && !failed)
+            flush();
+
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * The aggregation is done by the database, so only one row per user is
+     * transferred.
+     */
+    @Override
+    public void counts(BiConsumer<String, Long> consumer) {
+        Database.from(connectionProvider)
+                .select("SELECT username, COUNT(*) FROM messages GROUP BY username")
+                .getAs(String.class, Long.class)
+                .toBlocking()
+                .forEach(t -> consumer.accept(t._1(), t._2()));
+    }
+
+    /**
+     * @return the number of buffered messages
+     */
+    public int pending() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of messages that were rejected so far
+     */
+    public long rejected() {
+        return rejected;
+    }
+
+    /**
+     * @return whether the database is currently unavailable (i.e. the
+     * messages are kept in the queue)
+     */
+    public boolean unavailable() {
+        return unavailable;
+    }
+
+    /**
+     * Stops the periodic flush and writes all buffered messages.
+     * If the database is unavailable, the remaining messages are dropped.
+     *
+     * @param done Completed as soon as all messages were written
+     */
+    @Override
+    public void close(Future<Void> done) {
+        vertx.cancelTimer(timer);
+        drain(done);
+    }
+
+    private void drain(Future<Void> done) {
+        if (queue.isEmpty() && !flushing) {
+            done.complete();
+            return;
+        }
+
+        // wait for the current batch (if any), then write the next one
+        if (flushing)
+            vertx.setTimer(10, __ -> drain(done));
+        else
+            write(written -> {
+                if (written)
+                    drain(done);
+                else {
+                    logger.severe(queue.size() + " messages could not be saved");
+                    queue.clear();
+                    done.complete();
+                }
+            });
+    }
+
+    private void flush() {
+        if (!flushing && !queue.isEmpty())
+            write(written -> {
+                // keep flushing as long as full batches are waiting
+                // (after a failure, only the periodic flush retries)
+                if (written && queue.size() >= batchSize)
+                    flush();
+            });
+    }
+
+    /**
+     * Writes the next batch.
+     *
+     * @param next Receives whether the batch was written
+     */
+    private void write(Handler<Boolean> next) {
+        flushing = true;
+
+        var batch = new ArrayList<Entry>(Math.min(queue.size(), batchSize));
+        while (batch.size() < batchSize && !queue.isEmpty())
+            batch.add(queue.poll());
+
+        blocking.<Integer>submit(context, () -> insert(batch), result -> {
+            flushing = false;
+            failed = result.failed();
+
+            if (result.succeeded()) {
+                logger.fine(result.result() + " messages saved");
+                if (unavailable) {
+                    logger.info("database available again, " + queue.size() + " messages pending");
+                    unavailable = false;
+                }
+                if (rejected > 0) {
+                    logger.warning(rejected + " messages were rejected");
+                    rejected = 0;
+                }
+            } else if (isOutage(result.cause())) {
+                // only log the first failure of every outage
+                if (!unavailable)
+                    logger.log(Level.WARNING, "database unavailable, buffering messages", result.cause());
+                unavailable = true;
+                requeue(batch);
+            } else if (result.cause() instanceof RejectedExecutionException)
+                // the blocking executor is busy (e.g. with history requests)
+                requeue(batch);
+            else
+                logger.log(Level.SEVERE, "logging failed", result.cause());
+
+            next.handle(result.succeeded());
+        });
+    }
+
+    /**
+     * Puts a failed batch back at the head of the queue; the newest messages
+     * are rejected if the queue would exceed its capacity.
+     */
+    private void requeue(List<Entry> batch) {
+        for (var i = batch.size() - 1; i >= 0; i--)
+            queue.addFirst(batch.get(i));
+
+        while (queue.size() > capacity) {
+            queue.pollLast();
+            if (rejected++ == 0)
+                logger.warning("message queue is full, rejecting messages");
+        }
+    }
+
+    private int insert(List<Entry> batch) throws SQLException {
+        try (var connection = connectionProvider.get()) {
+            connection.setAutoCommit(false);
+
+            try (var stmt = connection.prepareStatement(INSERT)) {
+                for (var entry : batch) {
+                    stmt.setString(1, entry.user);
+                    stmt.setString(2, entry.channel);
+                    stmt.setTimestamp(3, Timestamp.from(entry.date));
+                    // compressed messages are stored as they are
+                    // (and only decompressed when they are read)
+                    stmt.setBytes(4, entry.message.getDelegate().getBytes());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                // not every driver reports a lost connection as such
+                if (!ConnectionPool.isConnectionError(e) && !connection.isValid(1))
+                    throw new SQLRecoverableException("connection lost", e);
+                throw e;
+            }
+        }
+
+        return batch.size();
+    }
+
+    /**
+     * @return whether the failure (or one of its causes) indicates that the
+     * database is unavailable, rather than a problem of the batch
+     */
+    private static boolean isOutage(Throwable failure) {
+        for (var cause = failure; cause != null; cause = cause.getCause())
+            if (cause instanceof SQLTimeoutException
+                    || cause instanceof SQLException && ConnectionPool.isConnectionError((SQLException) cause))
+                return true;
+        return false;
+    }
+
+    /**
+     * A single buffered message.
+     */
+    private static final class Entry {
+        final String  user;
+        final String  channel;
+        final Instant date;
+        final Buffer  message;
+
+        Entry(String user, String channel, Instant date, Buffer message) {
+            this.user = user;
+            this.channel = channel;
+            this.date = date;
+            this.message = message;
+        }
+    }
+}
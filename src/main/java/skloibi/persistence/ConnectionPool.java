@@ -0,0 +1,492 @@
+package skloibi.persistence;
+
+import com.github.davidmoten.rx.jdbc.ConnectionProvider;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of JDBC connections (for any driver, e.g. PostgreSQL or an embedded
+ * database for local tests).
+ * <p>
+ * At most the configured number of connections is opened (lazily) and a
+ * caller waits at most the acquire timeout for a free one. Closing a borrowed
+ * connection returns it to the pool, after its transaction state was reset.
+ * Each connection caches its prepared statements (closing them only clears
+ * their parameters), and every statement has the configured query timeout.
+ * <p>
+ * A connection that failed with a connection error is discarded, one that
+ * failed otherwise or was idle for a while is validated before it is used
+ * again. If the
+ * database cannot be reached, new connections are only attempted after an
+ * exponentially growing backoff; until then, borrowing fails fast.
+ */
+public class ConnectionPool implements ConnectionProvider {
+
+    private static final Logger logger = Logger.getLogger(ConnectionPool.class.getName());
+
+    /**
+     * The time a waiting caller checks whether it may open a connection
+     * (as another one was discarded).
+     */
+    private static final long POLL_MILLIS = 100;
+
+    private final Settings                settings;
+    private final BlockingQueue<Pooled>   idle;
+    private final AtomicInteger           open = new AtomicInteger();
+
+    /**
+     * The current backoff (in milliseconds) and the time of the next attempt
+     * to connect (guarded by this pool).
+     */
+    private long backoff = 0;
+    private long retryAt = 0;
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param settings The connection and pool settings
+     */
+    public ConnectionPool(Settings settings) {
+        this.settings = settings;
+        this.idle = new ArrayBlockingQueue<>(settings.size);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws RuntimeException if no connection is available (see
+     *                          {@link #borrow()})
+     */
+    @Override
+    public Connection get() {
+        try {
+            return borrow();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Borrows a connection, which is returned by closing it.
+     *
+     * @return a (valid) connection
+     * @throws SQLTimeoutException             if no connection became free in time
+     * @throws SQLTransientConnectionException if the database was not
+     *                                         reachable recently
+     * @throws SQLException                    if the connection could not be opened
+     */
+    public Connection borrow() throws SQLException {
+        var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.acquireTimeout);
+
+        while (!closed) {
+            var pooled = idle.poll();
+
+            if (pooled == null && open.incrementAndGet() <= settings.size) {
+                try {
+                    return connect().borrow();
+                } catch (SQLException e) {
+                    open.decrementAndGet();
+                    throw e;
+                }
+            } else if (pooled == null) {
+                open.decrementAndGet();
+
+                var remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    throw new SQLTimeoutException(
+                            "no database connection available within " + settings.acquireTimeout + " ms");
+
+                try {
+                    pooled = idle.poll(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(POLL_MILLIS)),
+                            TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("interrupted while waiting for a connection", e);
+                }
+            }
+
+            if (pooled != null) {
+                if (valid(pooled))
+                    return pooled.borrow();
+                discard(pooled);
+            }
+        }
+
+        throw new SQLException("connection pool is closed");
+    }
+
+    /**
+     * @return the number of open connections (idle or borrowed)
+     */
+    public int size() {
+        return open.get();
+    }
+
+    /**
+     * Closes all idle connections; borrowed ones are closed as soon as they
+     * are returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        Pooled pooled;
+        while ((pooled = idle.poll()) != null)
+            discard(pooled);
+    }
+
+    /**
+     * Opens a new connection, unless the backoff after a failed attempt has
+     * not passed yet.
+     */
+    private Pooled connect() throws SQLException {
+        synchronized (this) {
+            var wait = retryAt - System.currentTimeMillis();
+            if (wait > 0)
+                throw new SQLTransientConnectionException(
+                        "database unavailable, next attempt in " + wait + " ms");
+        }
+
+        try {
+            var connection = DriverManager.getConnection(settings.url, settings.user, settings.pass);
+
+            synchronized (this) {
+                if (backoff > 0)
+                    logger.info("database connection established again");
+                backoff = 0;
+                retryAt = 0;
+            }
+
+            return new Pooled(connection);
+        } catch (SQLException e) {
+            synchronized (this) {
+                backoff = backoff == 0
+                        ? settings.backoffMin
+                        : Math.min(settings.backoffMax, backoff * 2);
+                retryAt = System.currentTimeMillis() + backoff;
+
+                logger.warning("could not connect to the database (next attempt in " + backoff + " ms): "
+                        + e.getMessage());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Checks a connection that was idle for a while.
+     */
+    private boolean valid(Pooled pooled) {
+        if (pooled.broken)
+            return false;
+        if (System.currentTimeMillis() - pooled.lastUsed < settings.validateAfter)
+            return true;
+
+        try {
+            return pooled.connection.isValid(Math.max(1, settings.statementTimeout));
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Takes back a borrowed connection.
+     */
+    private void release(Pooled pooled) {
+        if (closed || pooled.broken) {
+            discard(pooled);
+            return;
+        }
+
+        try {
+            // any other failure may also have been caused by a lost connection
+            if (pooled.failed) {
+                pooled.failed = false;
+                if (!pooled.connection.isValid(Math.max(1, settings.statementTimeout))) {
+                    discard(pooled);
+                    return;
+                }
+            }
+
+            // the next borrower gets a fresh transaction state
+            if (!pooled.connection.getAutoCommit()) {
+                pooled.connection.rollback();
+                pooled.connection.setAutoCommit(true);
+            }
+            if (pooled.connection.isReadOnly())
+                pooled.connection.setReadOnly(false);
+        } catch (SQLException e) {
+            discard(pooled);
+            return;
+        }
+
+        pooled.lastUsed = System.currentTimeMillis();
+
+        if (!idle.offer(pooled))
+            discard(pooled);
+    }
+
+    private void discard(Pooled pooled) {
+        open.decrementAndGet();
+
+        try {
+            pooled.connection.close();
+        } catch (SQLException e) {
+            logger.log(Level.FINE, "could not close connection", e);
+        }
+    }
+
+    /**
+     * @param e An exception of a JDBC call
+     * @return whether the exception indicates a lost connection (SQL state
+     * class {@code 08} or a corresponding exception type)
+     */
+    public static boolean isConnectionError(SQLException e) {
+        return e instanceof SQLNonTransientConnectionException
+                || e instanceof SQLTransientConnectionException
+                || e instanceof SQLRecoverableException
+                || (e.getSQLState() != null && e.getSQLState().startsWith("08"));
+    }
+
+    /**
+     * A physical connection of the pool with its statement cache.
+     */
+    private final class Pooled {
+        final Connection connection;
+
+        /**
+         * The prepared statements by their SQL, the least recently used one
+         * is closed if the cache is full (only accessed by the borrower).
+         */
+        final Map<String, PreparedStatement> statements;
+
+        /**
+         * Whether the connection failed with a connection error, or with
+         * any other error (then it is validated when it is returned).
+         */
+        volatile boolean broken   = false;
+        volatile boolean failed   = false;
+        volatile long    lastUsed = System.currentTimeMillis();
+
+        Pooled(Connection connection) {
+            this.connection = connection;
+            this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= settings.statementCache)
+                        return false;
+
+                    try {
+                        eldest.getValue().close();
+                    } catch (SQLException e) {
+                        logger.log(Level.FINE, "could not close statement", e);
+                    }
+                    return true;
+                }
+            };
+        }
+
+        /**
+         * @return a view of the connection that returns it to the pool when
+         * it is closed
+         */
+        Connection borrow() {
+            var returned = new boolean[1];
+            var view = new Connection[1];
+
+            view[0] = (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "close":
+                                if (!returned[0]) {
+                                    returned[0] = true;
+                                    release(this);
+                                }
+                                return null;
+                            case "isClosed":
+                                return returned[0] || connection.isClosed();
+                            default:
+                                break;
+                        }
+
+                        if (returned[0])
+                            throw new SQLException("connection was returned to the pool");
+
+                        if (method.getName().equals("prepareStatement") && args.length == 1)
+                            return prepare((String) args[0], view[0], returned);
+
+                        var result = invoke(connection, method, args);
+
+                        if (result instanceof Statement) {
+                            if (settings.statementTimeout > 0)
+                                ((Statement) result).setQueryTimeout(settings.statementTimeout);
+
+                            return statement((Statement) result, method.getReturnType(), false, view[0], returned);
+                        }
+
+                        return result;
+                    });
+
+            return view[0];
+        }
+
+        /**
+         * @return the cached statement of the SQL; closing it only clears
+         * its parameters
+         */
+        private PreparedStatement prepare(String sql, Connection view, boolean[] returned) throws Throwable {
+            var statement = statements.get(sql);
+
+            if (statement == null || statement.isClosed()) {
+                statement = (PreparedStatement) invoke(connection,
+                        Connection.class.getMethod("prepareStatement", String.class), new Object[]{sql});
+
+                if (settings.statementTimeout > 0)
+                    statement.setQueryTimeout(settings.statementTimeout);
+
+                if (settings.statementCache <= 0)
+                    return (PreparedStatement) statement(statement, PreparedStatement.class, false, view, returned);
+
+                statements.put(sql, statement);
+            }
+
+            return (PreparedStatement) statement(statement, PreparedStatement.class, true, view, returned);
+        }
+
+        /**
+         * Wraps a statement, so it cannot be used to get around the pool:
+         * it refers to the view of the connection and cannot be used after
+         * the connection was returned.
+         *
+         * @param target   The actual statement
+         * @param type     The interface of the statement
+         * @param cached   Whether the statement is cached (closing it only
+         *                 clears its parameters)
+         * @param view     The borrowed connection
+         * @param returned Whether the borrowed connection was returned
+         */
+        private Statement statement(Statement target, Class<?> type, boolean cached, Connection view,
+                                    boolean[] returned) {
+            return (Statement) Proxy.newProxyInstance(
+                    type.getClassLoader(),
+                    new Class<?>[]{type},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "close":
+                                if (!cached)
+                                    target.close();
+                                else if (!returned[0]) {
+                                    ((PreparedStatement) target).clearParameters();
+                                    target.clearBatch();
+                                }
+                                return null;
+                            case "getConnection":
+                                return view;
+                            default:
+                                break;
+                        }
+
+                        if (returned[0])
+                            throw new SQLException("connection was returned to the pool");
+
+                        return invoke(target, method, args);
+                    });
+        }
+
+        /**
+         * Invokes a JDBC method and marks the connection as broken (or
+         * failed) if the call fails.
+         */
+        private Object invoke(Object target, Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof SQLException) {
+                    if (isConnectionError((SQLException) e.getCause()))
+                        broken = true;
+                    else
+                        failed = true;
+                }
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * The settings of the pool.
+     */
+    public static final class Settings {
+
+        /**
+         * The JDBC URL and credentials of the database.
+         */
+        public final String url, user, pass;
+
+        /**
+         * The maximum number of connections.
+         */
+        public final int size;
+
+        /**
+         * The maximum time (in milliseconds) to wait for a free connection.
+         */
+        public final long acquireTimeout;
+
+        /**
+         * The query timeout of every statement (in seconds); {@code 0} for
+         * none.
+         */
+        public final int statementTimeout;
+
+        /**
+         * The maximum number of cached statements per connection.
+         */
+        public final int statementCache;
+
+        /**
+         * The idle time (in milliseconds) after which a connection is
+         * validated before it is used again.
+         */
+        public final long validateAfter;
+
+        /**
+         * The first and the maximum backoff (in milliseconds) after a failed
+         * attempt to connect.
+         */
+        public final long backoffMin, backoffMax;
+
+        public Settings(String url, String user, String pass, int size, long acquireTimeout, int statementTimeout,
+                        int statementCache, long validateAfter, long backoffMin, long backoffMax) {
+            this.url = url;
+            this.user = user;
+            this.pass = pass;
+            this.size = size;
+            this.acquireTimeout = acquireTimeout;
+            this.statementTimeout = statementTimeout;
+            this.statementCache = statementCache;
+            this.validateAfter = validateAfter;
+            this.backoffMin = backoffMin;
+            this.backoffMax = backoffMax;
+        }
+    }
+}
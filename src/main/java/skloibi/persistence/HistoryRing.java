@@ -0,0 +1,242 @@
+package skloibi.persistence;
+
+import io.netty.buffer.ByteBuf;
+import io.vertx.reactivex.core.buffer.Buffer;
+import skloibi.utils.Envelope;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bounded history of a single channel that is stored in a circular byte
+ * array.
+ * Each message is written as a compact record
+ * {@code [length:int][timestamp:long][user length:short][user][payload]}, so
+ * a history does not hold any per-message objects and a replay is a
+ * sequential copy of the newest records.
+ * <p>
+ * The history keeps at most the configured number of messages that are not
+ * older than the configured age. The array starts small and grows up to the
+ * configured maximum (if it is reached, the oldest messages are dropped), so
+ * thousands of quiet channels only need a few hundred bytes each.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class HistoryRing {
+
+    /**
+     * Size of the record header (without the length field itself).
+     */
+    private static final int HEADER = 8 + 2;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int  maxMessages;
+    private final long maxAge;
+    private final int  maxBytes;
+
+    private byte[] buffer;
+    private int    head  = 0;
+    private int    size  = 0;
+    private int    count = 0;
+
+    /**
+     * @param maxMessages The maximum number of messages
+     * @param maxAge      The maximum age of the messages (in milliseconds)
+     * @param maxBytes    The maximum size of the history in bytes
+     */
+    public HistoryRing(int maxMessages, long maxAge, int maxBytes) {
+        this.maxMessages = maxMessages;
+        this.maxAge = maxAge;
+        this.maxBytes = maxBytes;
+        this.buffer = new byte[Math.min(INITIAL_CAPACITY, maxBytes)];
+    }
+
+    /**
+     * Appends the given message, dropping the oldest messages if necessary.
+     *
+     * @param user      The user that sent the message
+     * @param timestamp The time the message was received (in epoch milliseconds)
+     * @param payload   The message (its readable bytes are copied)
+     * @return {@code true} if the message was added; {@code false} if it
+     * exceeds the maximum size of the history
+     */
+    public boolean add(String user, long timestamp, ByteBuf payload) {
+        var userBytes = user.getBytes(StandardCharsets.UTF_8);
+        var length = HEADER + userBytes.length + payload.readableBytes();
+
+        if (Integer.BYTES + length > maxBytes || userBytes.length > Short.MAX_VALUE)
+            return false;
+
+        expire(timestamp);
+
+        while (count >= maxMessages)
+            drop();
+
+        reserve(Integer.BYTES + length);
+
+        var tail = offset(size);
+        putInt(tail, length);
+        putLong(offset(size + 4), timestamp);
+        buffer[offset(size + 12)] = (byte) (userBytes.length >> 8);
+        buffer[offset(size + 13)] = (byte) userBytes.length;
+        put(offset(size + 14), userBytes);
+
+        var payloadTail = offset(size + 14 + userBytes.length);
+        var first = Math.min(payload.readableBytes(), buffer.length - payloadTail);
+        payload.getBytes(payload.readerIndex(), buffer, payloadTail, first);
+        payload.getBytes(payload.readerIndex() + first, buffer, 0, payload.readableBytes() - first);
+
+        size += Integer.BYTES + length;
+        count++;
+
+        return true;
+    }
+
+    /**
+     * Copies the newest records that are not expired yet.
+     * They can be read with {@link #read}.
+     *
+     * @param messages The maximum number of messages (none if it is not
+     *                 positive)
+     * @param now      The current time (in epoch milliseconds)
+     * @return the records (in the order they were added)
+     */
+    public byte[] last(int messages, long now) {
+        expire(now);
+
+        var skip = Math.max(0, count - Math.max(0, messages));
+        var start = 0;
+        for (var i = 0; i < skip; i++)
+            start += Integer.BYTES + getInt(offset(start));
+
+        var records = new byte[size - start];
+        var from = offset(start);
+        var first = Math.min(records.length, buffer.length - from);
+        System.arraycopy(buffer, from, records, 0, first);
+        System.arraycopy(buffer, 0, records, first, records.length - first);
+
+        return records;
+    }
+
+    /**
+     * Reads the records that were copied by {@link #last}.
+     *
+     * @param records  The buffer that contains the records
+     * @param offset   The position of the first record
+     * @param consumer Receives the messages
+     */
+    public static void read(Buffer records, int offset, Consumer consumer) {
+        var position = offset;
+
+        while (position + Integer.BYTES + HEADER <= records.length()) {
+            var length = records.getInt(position);
+            var timestamp = records.getLong(position + 4);
+            var userLength = records.getShort(position + 12) & 0xFFFF;
+            var user = records.getString(position + 14, position + 14 + userLength);
+            // messages are kept as they were received, i.e. possibly compressed
+            var message = Envelope.text(records.slice(position + 14 + userLength, position + Integer.BYTES + length));
+
+            consumer.accept(user, timestamp, message);
+            position += Integer.BYTES + length;
+        }
+    }
+
+    /**
+     * @return the number of messages in the history
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @return the number of bytes that are occupied by the messages
+     */
+    public int bytes() {
+        return size;
+    }
+
+    /**
+     * Drops the messages that are older than the maximum age.
+     */
+    private void expire(long now) {
+        while (count > 0 && getLong(offset(4)) < now - maxAge)
+            drop();
+    }
+
+    private void drop() {
+        var length = Integer.BYTES + getInt(head);
+        head = offset(length);
+        size -= length;
+        count--;
+    }
+
+    /**
+     * Ensures that the given number of bytes can be appended, by growing the
+     * buffer or (if that is not possible) dropping the oldest records.
+     */
+    private void reserve(int bytes) {
+        if (size + bytes > buffer.length && buffer.length < maxBytes) {
+            var capacity = buffer.length;
+            while (capacity < size + bytes && capacity < maxBytes)
+                capacity = (int) Math.min((long) capacity * 2, maxBytes);
+            grow(capacity);
+        }
+
+        while (buffer.length - size < bytes)
+            drop();
+    }
+
+    private void grow(int capacity) {
+        var next = new byte[capacity];
+        var first = Math.min(size, buffer.length - head);
+        System.arraycopy(buffer, head, next, 0, first);
+        System.arraycopy(buffer, 0, next, first, size - first);
+        buffer = next;
+        head = 0;
+    }
+
+    /**
+     * @return the index of the byte at the given distance from the head
+     */
+    private int offset(int distance) {
+        return (head + distance) % buffer.length;
+    }
+
+    private void put(int index, byte[] src) {
+        var first = Math.min(src.length, buffer.length - index);
+        System.arraycopy(src, 0, buffer, index, first);
+        System.arraycopy(src, first, buffer, 0, src.length - first);
+    }
+
+    private void putInt(int index, int value) {
+        for (var i = 3; i >= 0; i--, value >>= 8)
+            buffer[(index + i) % buffer.length] = (byte) value;
+    }
+
+    private void putLong(int index, long value) {
+        for (var i = 7; i >= 0; i--, value >>= 8)
+            buffer[(index + i) % buffer.length] = (byte) value;
+    }
+
+    private int getInt(int index) {
+        var value = 0;
+        for (var i = 0; i < 4; i++)
+            value = (value << 8) | (buffer[(index + i) % buffer.length] & 0xFF);
+        return value;
+    }
+
+    private long getLong(int index) {
+        var value = 0L;
+        for (var i = 0; i < 8; i++)
+            value = (value << 8) | (buffer[(index + i) % buffer.length] & 0xFF);
+        return value;
+    }
+
+    /**
+     * Consumer of replayed messages.
+     */
+    @FunctionalInterface
+    public interface Consumer {
+        void accept(String user, long timestamp, String message);
+    }
+}
@@ -0,0 +1,386 @@
+package skloibi.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+
+/**
+ * Segmented, append-only journal of logged messages.
+ * <p>
+ * The records are appended to memory-mapped segment files of a fixed size
+ * (a new segment is started as soon as the current one is full), so an
+ * append is a plain memory copy and the page cache does the actual I/O.
+ * {@link #flush()} forces the written pages to the disk.
+ * <p>
+ * Every record is framed as
+ * {@code [int length][int crc][long timestamp][short user length][user][short channel length][channel][payload]}
+ * where the length and the CRC-32C cover everything after the CRC.
+ * A zero length marks the end of a segment (the files are preallocated with
+ * zeros). On opening, the last segment is scanned up to the first record
+ * that is incomplete or does not match its checksum (e.g. after a crash), and
+ * appending continues there.
+ * <p>
+ * Every segment keeps a sparse in-memory index (one timestamp every
+ * {@code indexInterval} bytes), so a time-range scan skips whole segments and
+ * starts close to the first matching record. The timestamps of the records
+ * never decrease (a clock that goes backwards is clamped).
+ * <p>
+ * There must only be one writer thread; readers may run concurrently and see
+ * every record that was completely appended.
+ */
+public class Journal implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(Journal.class.getName());
+
+    private static final String SUFFIX = ".journal";
+
+    /**
+     * The length and the CRC of a record.
+     */
+    private static final int FRAME = 8;
+
+    /**
+     * The timestamp and the lengths of the username and the channel.
+     */
+    private static final int HEADER = 12;
+
+    private final Path dir;
+    private final int  segmentSize;
+    private final int  indexInterval;
+
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+
+    /**
+     * The segment that is appended to.
+     */
+    private volatile Segment head;
+
+    /**
+     * The timestamp of the last record (only accessed by the writer).
+     */
+    private long last = Long.MIN_VALUE;
+
+    private final CRC32C crc = new CRC32C();
+
+    /**
+     * Receives the records of a scan.
+     */
+    @FunctionalInterface
+    public interface Visitor {
+
+        /**
+         * @param user      The user that sent the message
+         * @param channel   The channel of the message; {@code null} for a whisper
+         * @param timestamp The time the message was received (in epoch milliseconds)
+         * @param payload   The message itself; a view of the mapped segment
+         *                  that is only valid during the call
+         */
+        void visit(String user, String channel, long timestamp, ByteBuffer payload);
+    }
+
+    private Journal(Path dir, int segmentSize, int indexInterval) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.indexInterval = indexInterval;
+    }
+
+    /**
+     * Opens (or creates) the journal in the given directory.
+     *
+     * @param dir           The directory of the segment files
+     * @param segmentSize   The size of every segment (in bytes)
+     * @param indexInterval The (minimum) distance between two index entries (in bytes)
+     * @return the journal, ready for appending
+     * @throws IOException if the segments could not be opened
+     */
+    public static Journal open(Path dir, int segmentSize, int indexInterval) throws IOException {
+        var journal = new Journal(dir, segmentSize, indexInterval);
+
+        Files.createDirectories(dir);
+
+        List<Path> files;
+        try (var list = Files.list(dir)) {
+            files = list
+                    .filter(p -> p.getFileName().toString().endsWith(SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        for (var file : files)
+            journal.recover(file);
+
+        if (journal.segments.isEmpty())
+            journal.roll();
+        else
+            journal.head = journal.segments.get(journal.segments.size() - 1);
+
+        return journal;
+    }
+
+    /**
+     * Maps the given segment and rebuilds its index.
+     */
+    private void recover(Path file) throws IOException {
+        var name = file.getFileName().toString();
+        var segment = new Segment(file, Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+        var buffer = segment.writer;
+        var position = 0;
+
+        while (position + FRAME + HEADER <= buffer.capacity()) {
+            var length = buffer.getInt(position);
+
+            if (length < HEADER || position + FRAME + length > buffer.capacity())
+                break;
+
+            if (checksum(buffer, position + FRAME, length) != buffer.getInt(position + 4))
+                break;
+
+            segment.indexed(position, buffer.getLong(position + FRAME));
+            position += FRAME + length;
+        }
+
+        // a torn record is overwritten by the next append, its remains must
+        // not be mistaken for records though
+        if (position + 4 <= buffer.capacity() && buffer.getInt(position) != 0) {
+            logger.warning("discarding the incomplete records at the end of " + file);
+            for (var i = position; i < buffer.capacity(); i++)
+                buffer.put(i, (byte) 0);
+        }
+
+        segment.limit = position;
+        segment.forced = position;
+        last = Math.max(last, segment.last);
+        segments.add(segment);
+    }
+
+    /**
+     * Starts a new segment.
+     */
+    private void roll() throws IOException {
+        var id = head == null ? 0 : head.id + 1;
+        var segment = new Segment(dir.resolve(String.format("%016d%s", id, SUFFIX)), id);
+
+        segments.add(segment);
+        head = segment;
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param user      The user that sent the message
+     * @param channel   The channel of the message; {@code null} for a whisper
+     * @param timestamp The time the message was received (in epoch milliseconds)
+     * @param payload   The message itself (its remaining bytes are copied)
+     * @throws IOException              if a new segment could not be created
+     * @throws IllegalArgumentException if the record does not fit in a segment
+     */
+    public void append(String user, String channel, long timestamp, ByteBuffer payload) throws IOException {
+        var userBytes = user.getBytes(StandardCharsets.UTF_8);
+        var channelBytes = channel == null ? new byte[0] : channel.getBytes(StandardCharsets.UTF_8);
+        var length = HEADER + userBytes.length + channelBytes.length + payload.remaining();
+
+        if (FRAME + length > segmentSize || userBytes.length > Short.MAX_VALUE || channelBytes.length > Short.MAX_VALUE)
+            throw new IllegalArgumentException("record too large: " + length + " bytes");
+
+        if (head.limit + FRAME + length > segmentSize)
+            roll();
+
+        last = Math.max(last, timestamp);
+
+        var segment = head;
+        var position = segment.limit;
+        var out = segment.writer;
+
+        out.limit(position + FRAME + length).position(position + FRAME);
+        out.putLong(last)
+                .putShort((short) userBytes.length)
+                .put(userBytes)
+                .putShort((short) channelBytes.length)
+                .put(channelBytes)
+                .put(payload.duplicate());
+
+        out.putInt(position + 4, checksum(out, position + FRAME, length));
+        out.putInt(position, length);
+
+        segment.indexed(position, last);
+        // publishes the record to the readers
+        segment.limit = position + FRAME + length;
+    }
+
+    /**
+     * Calculates the CRC of the given range (which resets the position of
+     * the buffer).
+     */
+    private int checksum(ByteBuffer buffer, int offset, int length) {
+        buffer.limit(offset + length).position(offset);
+
+        crc.reset();
+        crc.update(buffer);
+        buffer.clear();
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Forces all appended records to the disk.
+     * May be called concurrently to the writer.
+     */
+    public void flush() {
+        for (var segment : segments) {
+            var limit = segment.limit;
+
+            if (segment.forced < limit) {
+                segment.buffer.force();
+                segment.forced = limit;
+            }
+        }
+    }
+
+    /**
+     * Visits all records in the order they were appended.
+     *
+     * @param visitor Receives the records
+     */
+    public void replay(Visitor visitor) {
+        scan(Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Visits all records in the given time range in the order they were
+     * appended.
+     *
+     * @param from    The start of the range (inclusive, in epoch milliseconds)
+     * @param to      The end of the range (inclusive, in epoch milliseconds)
+     * @param visitor Receives the records
+     */
+    public void scan(long from, long to, Visitor visitor) {
+        for (var segment : segments) {
+            var limit = segment.limit;
+
+            if (limit == 0 || segment.last < from)
+                continue;
+            if (segment.first > to)
+                return;
+
+            // the records before the entry all have an earlier timestamp
+            var start = segment.index.lowerEntry(from);
+            var position = start == null ? 0 : start.getValue();
+
+            var view = segment.buffer.duplicate();
+            var payload = segment.buffer.duplicate();
+
+            while (position < limit) {
+                var length = view.getInt(position);
+                var timestamp = view.getLong(position + FRAME);
+
+                if (timestamp > to)
+                    return;
+
+                if (timestamp >= from) {
+                    view.position(position + FRAME + 8);
+                    var user = string(view);
+                    var channel = string(view);
+
+                    payload.limit(position + FRAME + length).position(view.position());
+                    visitor.visit(user, channel.isEmpty() ? null : channel, timestamp, payload);
+                }
+
+                position += FRAME + length;
+            }
+        }
+    }
+
+    /**
+     * Reads a string that is prefixed with its length.
+     */
+    private static String string(ByteBuffer buffer) {
+        var bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the number of segments
+     */
+    public int segments() {
+        return segments.size();
+    }
+
+    /**
+     * Forces all records to the disk.
+     * The segments stay mapped until they are garbage collected.
+     */
+    @Override
+    public void close() {
+        flush();
+    }
+
+    /**
+     * A single segment file, mapped completely.
+     */
+    private final class Segment {
+        final long             id;
+        final MappedByteBuffer buffer;
+
+        /**
+         * The view of the writer.
+         */
+        final ByteBuffer writer;
+
+        /**
+         * The sparse index: the position of the first record per timestamp,
+         * at most one entry every index interval.
+         */
+        final ConcurrentNavigableMap<Long, Integer> index = new ConcurrentSkipListMap<>();
+
+        /**
+         * The end of the last complete record.
+         */
+        volatile int limit = 0;
+
+        /**
+         * The end of the records that were forced to the disk.
+         */
+        volatile int forced = 0;
+
+        volatile long first = Long.MAX_VALUE;
+        volatile long last  = Long.MIN_VALUE;
+
+        private int indexed = -1;
+
+        Segment(Path file, long id) throws IOException {
+            this.id = id;
+
+            try (var channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // the mapping stays valid after the channel is closed
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), segmentSize));
+            }
+
+            this.writer = buffer.duplicate();
+        }
+
+        void indexed(int position, long timestamp) {
+            if (indexed < 0 || position - indexed >= indexInterval) {
+                index.putIfAbsent(timestamp, position);
+                indexed = position;
+            }
+
+            if (first == Long.MAX_VALUE)
+                first = timestamp;
+            last = timestamp;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package skloibi.persistence;
+
+import io.vertx.core.Future;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores the logged messages in a local {@link Journal} instead of a
+ * database.
+ * <p>
+ * Messages are appended directly on the event loop (which only copies them
+ * into the mapped segment), the pages are forced to the disk periodically on
+ * a worker thread. So a crash of the machine loses at most the messages of
+ * the last flush interval, a crash of the process none.
+ */
+public class JournalStore implements MessageStore {
+
+    private static final Logger logger = Logger.getLogger(JournalStore.class.getName());
+
+    private final Vertx   vertx;
+    private final Journal journal;
+    private final long    timer;
+
+    /**
+     * Number of messages that could not be appended.
+     */
+    private long rejected = 0;
+
+    /**
+     * @param vertx       The Vert.x instance (of the owning verticle)
+     * @param journal     The opened journal (see {@link Journal#open})
+     * @param flushMillis The time after which appended messages are forced to the disk
+     */
+    public JournalStore(Vertx vertx, Journal journal, long flushMillis) {
+        this.vertx = vertx;
+        this.journal = journal;
+        this.timer = vertx.setPeriodic(flushMillis, __ ->
+                vertx.<Void>executeBlocking(f -> {
+                    journal.flush();
+                    f.complete();
+                }, false, done -> {
+                }));
+    }
+
+    /**
+     * {@inheritDoc}
+     * The message is appended as it is, so compressed messages are stored
+     * compressed (and only decompressed by a reader that needs the text).
+     */
+    @Override
+    public boolean add(String user, String channel, Instant date, Buffer message) {
+        try {
+            journal.append(user, channel, date.toEpochMilli(), message.getDelegate().getByteBuf().nioBuffer());
+
+            if (rejected > 0) {
+                logger.warning(rejected + " messages were rejected");
+                rejected = 0;
+            }
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            // only log the first failure of every failure period
+            if (rejected++ == 0)
+                logger.log(Level.SEVERE, "logging failed", e);
+            return false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Replays the whole journal.
+     */
+    @Override
+    public void counts(BiConsumer<String, Long> consumer) {
+        var counts = new HashMap<String, Long>();
+        journal.replay((user, channel, timestamp, payload) -> counts.merge(user, 1L, Long::sum));
+        counts.forEach(consumer);
+    }
+
+    /**
+     * @return the journal, e.g. for time-range scans
+     */
+    public Journal journal() {
+        return journal;
+    }
+
+    @Override
+    public void close(Future<Void> done) {
+        vertx.cancelTimer(timer);
+        vertx.<Void>executeBlocking(f -> {
+            journal.close();
+            f.complete();
+        }, __ -> done.complete());
+    }
+}
@@ -0,0 +1,125 @@
+package skloibi.persistence;
+
+import com.github.davidmoten.rx.jdbc.ConnectionProvider;
+import com.github.davidmoten.rx.jdbc.Database;
+import io.vertx.reactivex.core.buffer.Buffer;
+import rx.Observable;
+import skloibi.MessageLog;
+import skloibi.utils.Envelope;
+import skloibi.utils.T;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+
+/**
+ * Queries on the message log (see {@link MessageSchema}).
+ * <p>
+ * The rows are streamed with a bounded fetch size, so even a large time
+ * window does not have to fit into memory at once, and they are mapped to
+ * typed {@link MessageLog}s (decompressing the stored messages).
+ * The queries are blocking as soon as they are subscribed to, so they must be
+ * run on a worker thread.
+ */
+public class MessageQueries {
+
+    private static final String COLUMNS = "SELECT username, channel, date, message, payload FROM messages ";
+
+    private final Database db;
+    private final int      fetchSize;
+
+    /**
+     * @param connectionProvider The provider of the database connections
+     * @param fetchSize          The maximum number of rows that are fetched at once
+     */
+    public MessageQueries(ConnectionProvider connectionProvider, int fetchSize) {
+        this.db = Database.from(new ReadOnly(connectionProvider));
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * @param user  The username
+     * @param limit The maximum number of messages
+     * @return the most recent messages of the given user (newest first)
+     */
+    public Observable<MessageLog> recent(String user, int limit) {
+        return db
+                .select(COLUMNS + "WHERE username = ? ORDER BY date DESC LIMIT ?")
+                .parameters(user, limit)
+                .fetchSize(Math.min(limit, fetchSize))
+                .get(MessageQueries::map);
+    }
+
+    /**
+     * @param from The start of the window (inclusive)
+     * @param to   The end of the window (exclusive)
+     * @return all messages in the given time window (oldest first)
+     */
+    public Observable<MessageLog> between(Instant from, Instant to) {
+        return db
+                .select(COLUMNS + "WHERE date >= ? AND date < ? ORDER BY date")
+                .parameters(Timestamp.from(from), Timestamp.from(to))
+                .fetchSize(fetchSize)
+                .get(MessageQueries::map);
+    }
+
+    /**
+     * @param from The start of the window (inclusive)
+     * @param to   The end of the window (exclusive)
+     * @return the number of messages per channel in the given time window
+     * (whispers are not counted)
+     */
+    public Observable<T._2<String, Long>> channelCounts(Instant from, Instant to) {
+        return db
+                .select("SELECT channel, COUNT(*) FROM messages " +
+                        "WHERE channel IS NOT NULL AND date >= ? AND date < ? GROUP BY channel")
+                .parameters(Timestamp.from(from), Timestamp.from(to))
+                .fetchSize(fetchSize)
+                .get(rs -> T.of(rs.getString(1), rs.getLong(2)));
+    }
+
+    private static MessageLog map(ResultSet rs) throws SQLException {
+        var payload = rs.getBytes(5);
+
+        return new MessageLog(
+                rs.getString(1),
+                rs.getString(2),
+                rs.getTimestamp(3).toInstant(),
+                // the rows of earlier versions only have the text
+                payload == null
+                        ? rs.getString(4)
+                        : Envelope.text(Buffer.newInstance(io.vertx.core.buffer.Buffer.buffer(payload))));
+    }
+
+    /**
+     * Provides read-only connections outside of the auto-commit mode, as
+     * PostgreSQL only uses the fetch size (i.e. a cursor) within a
+     * transaction.
+     */
+    private static final class ReadOnly implements ConnectionProvider {
+        private final ConnectionProvider delegate;
+
+        ReadOnly(ConnectionProvider delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Connection get() {
+            var connection = delegate.get();
+            try {
+                connection.setAutoCommit(false);
+                connection.setReadOnly(true);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return connection;
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+}
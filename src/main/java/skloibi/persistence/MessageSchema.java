@@ -0,0 +1,134 @@
+package skloibi.persistence;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.logging.Logger;
+
+/**
+ * Bootstraps the schema of the message log (PostgreSQL 11 or newer).
+ * <p>
+ * The {@code messages} table is partitioned by month on its (typed)
+ * timestamp, so queries on a time window only touch the corresponding
+ * partitions and old months can simply be detached or dropped. The
+ * partitions are created ahead of time; a default partition catches
+ * everything else, so an insert never fails for lack of a partition.
+ * The indexes on (username, date) and (channel, date) serve the queries of
+ * {@link MessageQueries} without full scans.
+ * <p>
+ * Messages are stored in the {@code payload} column as they were received
+ * (i.e. possibly compressed, see {@link skloibi.utils.Envelope}) and only
+ * decoded when they are read; the text column {@code message} only holds the
+ * rows of earlier versions.
+ * <p>
+ * A table of an earlier version (which is not partitioned) is only extended
+ * by the new columns and the indexes; it has to be migrated manually.
+ */
+public final class MessageSchema {
+
+    private static final Logger logger = Logger.getLogger(MessageSchema.class.getName());
+
+    private static final String CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS messages (" +
+                    "id BIGINT GENERATED BY DEFAULT AS IDENTITY, " +
+                    "username TEXT NOT NULL, " +
+                    "channel TEXT, " +
+                    "date TIMESTAMPTZ NOT NULL, " +
+                    "message TEXT, " +
+                    "payload BYTEA, " +
+                    "PRIMARY KEY (date, id)" +
+                    ") PARTITION BY RANGE (date)";
+
+    private static final String CREATE_DEFAULT_PARTITION =
+            "CREATE TABLE IF NOT EXISTS messages_default PARTITION OF messages DEFAULT";
+
+    private static final String ADD_CHANNEL =
+            "ALTER TABLE messages ADD COLUMN IF NOT EXISTS channel TEXT";
+
+    private static final String[] ADD_PAYLOAD = {
+            "ALTER TABLE messages ADD COLUMN IF NOT EXISTS payload BYTEA",
+            // new rows only have a payload
+            "ALTER TABLE messages ALTER COLUMN message DROP NOT NULL"
+    };
+
+    private static final String[] CREATE_INDEXES = {
+            "CREATE INDEX IF NOT EXISTS messages_username_date ON messages (username, date)",
+            "CREATE INDEX IF NOT EXISTS messages_channel_date ON messages (channel, date)"
+    };
+
+    private static final String IS_PARTITIONED =
+            "SELECT relkind = 'p' FROM pg_class WHERE oid = to_regclass('messages')";
+
+    private MessageSchema() {
+    }
+
+    /**
+     * Creates the table, its indexes and the partitions (if they do not exist
+     * yet).
+     *
+     * @param connection  The connection (in auto-commit mode)
+     * @param today       The current date
+     * @param monthsAhead The number of months after the current one to create
+     *                    partitions for
+     * @throws SQLException if the schema could not be created
+     */
+    public static void bootstrap(Connection connection, LocalDate today, int monthsAhead) throws SQLException {
+        try (var stmt = connection.createStatement()) {
+            stmt.execute(CREATE_TABLE);
+            stmt.execute(ADD_CHANNEL);
+
+            for (var column : ADD_PAYLOAD)
+                stmt.execute(column);
+
+            for (var index : CREATE_INDEXES)
+                stmt.execute(index);
+        }
+
+        if (!isPartitioned(connection)) {
+            logger.warning("the messages table is not partitioned, it has to be migrated manually");
+            return;
+        }
+
+        try (var stmt = connection.createStatement()) {
+            stmt.execute(CREATE_DEFAULT_PARTITION);
+        }
+
+        createPartitions(connection, today, monthsAhead);
+    }
+
+    /**
+     * Creates the partitions of the current month and the given number of
+     * following months (if they do not exist yet).
+     * Has to be run at least once a month, as the messages of months without
+     * partition end up in the default partition.
+     *
+     * @param connection  The connection (in auto-commit mode)
+     * @param today       The current date
+     * @param monthsAhead The number of months after the current one
+     * @throws SQLException if a partition could not be created
+     */
+    public static void createPartitions(Connection connection, LocalDate today, int monthsAhead) throws SQLException {
+        if (!isPartitioned(connection))
+            return;
+
+        var month = today.withDayOfMonth(1);
+
+        try (var stmt = connection.createStatement()) {
+            for (var i = 0; i <= monthsAhead; i++, month = month.plusMonths(1))
+                stmt.execute(String.format(
+                        "CREATE TABLE IF NOT EXISTS messages_y%dm%02d PARTITION OF messages " +
+                                "FOR VALUES FROM ('%s') TO ('%s')",
+                        month.getYear(), month.getMonthValue(),
+                        month.atStartOfDay().atOffset(ZoneOffset.UTC),
+                        month.plusMonths(1).atStartOfDay().atOffset(ZoneOffset.UTC)));
+        }
+    }
+
+    private static boolean isPartitioned(Connection connection) throws SQLException {
+        try (var stmt = connection.createStatement();
+             var result = stmt.executeQuery(IS_PARTITIONED)) {
+            return result.next() && result.getBoolean(1);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package skloibi.persistence;
+
+import io.vertx.core.Future;
+import io.vertx.reactivex.core.buffer.Buffer;
+import skloibi.utils.Envelope;
+
+import java.time.Instant;
+import java.util.function.BiConsumer;
+
+/**
+ * Storage backend of the logged messages.
+ * <p>
+ * Messages are added on the event loop of the owning verticle, so an
+ * implementation must not block there (e.g. by buffering them and writing
+ * them on a worker thread).
+ */
+public interface MessageStore {
+
+    /**
+     * Stores the given message (possibly asynchronously).
+     *
+     * @param user    The user that sent the message
+     * @param channel The channel of the message; {@code null} for a whisper
+     * @param date    The time the message was received
+     * @param message The actual message as it was received, i.e. possibly
+     *                compressed (see {@link Envelope#text})
+     * @return {@code true} if the message was accepted; {@code false} otherwise
+     */
+    boolean add(String user, String channel, Instant date, Buffer message);
+
+    /**
+     * Counts the stored messages per user.
+     * Blocking, so it must be called on a worker thread.
+     *
+     * @param consumer Receives every user and his number of messages
+     */
+    void counts(BiConsumer<String, Long> consumer);
+
+    /**
+     * Writes all pending messages and releases the storage.
+     *
+     * @param done Completed as soon as all messages were written
+     */
+    void close(Future<Void> done);
+}
@@ -7,5 +7,9 @@ public enum Command {
     /* switch to target channel */
     GOTO,
     /* whisper to target user */
-    TO
+    TO,
+    /* replay the last messages of the current channel */
+    HISTORY,
+    /* list the members of the current (or target) channel */
+    WHO
 }
@@ -0,0 +1,397 @@
+package skloibi.props;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import skloibi.broker.Admission;
+import skloibi.broker.LimitPolicy;
+import skloibi.broker.OverflowPolicy;
+import skloibi.broker.Session;
+import skloibi.persistence.ConnectionPool;
+import skloibi.utils.BlockingExecutor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import static skloibi.props.Properties.*;
+
+/**
+ * Immutable snapshot of the runtime configuration.
+ * <p>
+ * Every setting is looked up (in this order) in the options of the command
+ * line, the environment (e.g. {@code MQTT_CHAT_INFLIGHT_MAX} for
+ * {@code inflight.max}) and a properties file; the constants of
+ * {@link Properties} are the defaults.
+ * <p>
+ * The current snapshot is held in a volatile field, so components on the hot
+ * path read the configuration with a single volatile read (and no lookups).
+ * If the file changes at runtime (see {@link ConfigWatcher}), a new snapshot
+ * replaces it. Only the settings that can change safely are taken over, all
+ * others (e.g. ports and database connections) keep their values until the
+ * next restart.
+ */
+public final class Config {
+
+    private static final Logger LOGGER = Logger.getLogger(Config.class.getName());
+
+    /**
+     * Prefix of the environment variables.
+     */
+    public static final String ENV_PREFIX          = "MQTT_CHAT_";
+
+    /**
+     * The environment variable with the path of the configuration file.
+     */
+    public static final String ENV_FILE = ENV_PREFIX + "CONFIG";
+
+    public static final String BROKER_HOST_KEY     = "broker.host";
+    public static final String MQTT_PORT_KEY       = "mqtt.port";
+    public static final String EVENT_LOOPS_KEY     = "event.loops";
+    public static final String RETAINED_MAX_KEY    = "retained.max.bytes";
+    public static final String INFLIGHT_MAX_KEY    = "inflight.max";
+    public static final String OFFLINE_MAX_KEY     = "offline.max.bytes";
+    public static final String SESSION_EXPIRY_KEY  = "session.expiry";
+    public static final String RETRANSMIT_KEY      = "retransmit.timeout";
+    public static final String OUTBOUND_MAX_KEY    = "outbound.max.bytes";
+    public static final String OUTBOUND_POLICY_KEY = "outbound.policy";
+    public static final String SPILL_MAX_KEY       = "spill.max.bytes";
+    public static final String CONNECTIONS_MAX_KEY = "limit.connections";
+    public static final String CONNECT_RATE_KEY    = "limit.connect.rate";
+    public static final String CLIENT_RATE_KEY     = "limit.client.rate";
+    public static final String CLIENT_BURST_KEY    = "limit.client.burst";
+    public static final String TOPIC_RATE_KEY      = "limit.topic.rate";
+    public static final String TOPIC_BURST_KEY     = "limit.topic.burst";
+    public static final String LIMIT_POLICY_KEY    = "limit.policy";
+    public static final String QOS_MESSAGE_KEY     = "qos.message";
+    public static final String QOS_SYSTEM_KEY      = "qos.system";
+    public static final String QOS_WHISPER_KEY     = "qos.whisper";
+    public static final String QOS_PRESENCE_KEY    = "qos.presence";
+    public static final String PRESENCE_LINGER_KEY = "presence.linger";
+    public static final String BATCH_BYTES_KEY     = "batch.max.bytes";
+    public static final String BATCH_LINGER_KEY    = "batch.linger";
+    public static final String COMPRESS_KEY        = "compress.threshold";
+    public static final String DB_URL_KEY          = "db.url";
+    public static final String DB_USER_KEY         = "db.user";
+    public static final String DB_PASS_KEY         = "db.pass";
+    public static final String DB_BATCH_KEY        = "db.batch.size";
+    public static final String DB_LINGER_KEY       = "db.batch.linger";
+    public static final String DB_QUEUE_KEY        = "db.queue.capacity";
+    public static final String DB_FETCH_KEY        = "db.fetch.size";
+    public static final String DB_CONCURRENCY_KEY  = "db.concurrency";
+    public static final String DB_POOL_KEY         = "db.pool.size";
+    public static final String DB_POOL_TIMEOUT_KEY = "db.pool.timeout";
+    public static final String DB_TIMEOUT_KEY      = "db.statement.timeout";
+    public static final String DB_CACHE_KEY        = "db.statement.cache";
+    public static final String DB_VALIDATE_KEY     = "db.validate.after";
+    public static final String DB_BACKOFF_KEY      = "db.backoff.max";
+    public static final String BLOCKING_MODE_KEY   = "blocking.mode";
+    public static final String METRICS_PORT_KEY    = "metrics.port";
+    public static final String CLUSTER_PORT_KEY    = "cluster.port";
+    public static final String CLUSTER_NODES_KEY   = "cluster.nodes";
+
+    /**
+     * The settings that can be changed at runtime.
+     */
+    private static final Set<String> RELOADABLE = Set.of(
+            INFLIGHT_MAX_KEY, OFFLINE_MAX_KEY, SESSION_EXPIRY_KEY, RETRANSMIT_KEY,
+            OUTBOUND_MAX_KEY, OUTBOUND_POLICY_KEY, SPILL_MAX_KEY,
+            CONNECTIONS_MAX_KEY, CONNECT_RATE_KEY, CLIENT_RATE_KEY, CLIENT_BURST_KEY, TOPIC_RATE_KEY, TOPIC_BURST_KEY,
+            LIMIT_POLICY_KEY,
+            QOS_MESSAGE_KEY, QOS_SYSTEM_KEY, QOS_WHISPER_KEY, QOS_PRESENCE_KEY
+    );
+
+    private static volatile Config current = new Config(Map.of());
+
+    public final String         brokerHost;
+    public final int            mqttPort;
+    public final int            eventLoops;
+    public final long           retainedMaxBytes;
+    public final int            inflightMax;
+    public final int            offlineMaxBytes;
+    public final long           sessionExpiry;
+    public final long           retransmitTimeout;
+    public final int            outboundMaxBytes;
+    public final OverflowPolicy outboundPolicy;
+    public final long           spillMaxBytes;
+    public final int            maxConnections;
+    public final double         connectRate;
+    public final double         clientRate;
+    public final double         clientBurst;
+    public final double         topicRate;
+    public final double         topicBurst;
+    public final LimitPolicy    limitPolicy;
+    public final MqttQoS        qosMessage;
+    public final MqttQoS        qosSystem;
+    public final MqttQoS        qosWhisper;
+    public final MqttQoS        qosPresence;
+    public final long           presenceLinger;
+    public final int            batchMaxBytes;
+    public final long           batchLinger;
+    public final int            compressThreshold;
+    public final String         dbUrl;
+    public final String         dbUser;
+    public final String         dbPass;
+    public final int            dbBatchSize;
+    public final long           dbBatchLinger;
+    public final int            dbQueueCapacity;
+    public final int            dbFetchSize;
+    public final int            dbConcurrency;
+    public final int            dbPoolSize;
+    public final long           dbPoolTimeout;
+    public final int            dbStatementTimeout;
+    public final int            dbStatementCache;
+    public final long           dbValidateAfter;
+    public final long           dbBackoffMax;
+    public final BlockingExecutor.Mode blockingMode;
+    public final int            metricsPort;
+    public final int            clusterPort;
+    public final List<String>   clusterNodes;
+
+    /**
+     * The values that were configured explicitly.
+     */
+    private final Map<String, String> values;
+
+    /**
+     * @param values The configured values (all others are defaults)
+     * @throws IllegalArgumentException if a value is invalid
+     */
+    private Config(Map<String, String> values) {
+        this.values = Collections.unmodifiableMap(new HashMap<>(values));
+
+        brokerHost = get(BROKER_HOST_KEY, Function.identity(), BROKER);
+        mqttPort = get(MQTT_PORT_KEY, Integer::parseInt, MQTT_PORT);
+        eventLoops = positive(EVENT_LOOPS_KEY,
+                get(EVENT_LOOPS_KEY, Integer::parseInt, Runtime.getRuntime().availableProcessors()));
+        retainedMaxBytes = get(RETAINED_MAX_KEY, Long::parseLong, RETAINED_MAX_BYTES);
+        // message ids are 16 bit, so the window has to leave spare ids
+        inflightMax = atMost(INFLIGHT_MAX_KEY, INFLIGHT_LIMIT,
+                positive(INFLIGHT_MAX_KEY, get(INFLIGHT_MAX_KEY, Integer::parseInt, INFLIGHT_MAX)));
+        offlineMaxBytes = get(OFFLINE_MAX_KEY, Integer::parseInt, OFFLINE_MAX_BYTES);
+        sessionExpiry = positive(SESSION_EXPIRY_KEY, get(SESSION_EXPIRY_KEY, Long::parseLong, SESSION_EXPIRY));
+        retransmitTimeout = positive(RETRANSMIT_KEY, get(RETRANSMIT_KEY, Long::parseLong, RETRANSMIT_TIMEOUT));
+        outboundMaxBytes = positive(OUTBOUND_MAX_KEY, get(OUTBOUND_MAX_KEY, Integer::parseInt, OUTBOUND_MAX_BYTES));
+        outboundPolicy = get(OUTBOUND_POLICY_KEY, v -> OverflowPolicy.valueOf(v.toUpperCase()), OUTBOUND_POLICY);
+        spillMaxBytes = get(SPILL_MAX_KEY, Long::parseLong, SPILL_MAX_BYTES);
+        maxConnections = get(CONNECTIONS_MAX_KEY, Integer::parseInt, MAX_CONNECTIONS);
+        connectRate = get(CONNECT_RATE_KEY, Double::parseDouble, CONNECT_RATE);
+        clientRate = get(CLIENT_RATE_KEY, Double::parseDouble, CLIENT_RATE);
+        clientBurst = get(CLIENT_BURST_KEY, Double::parseDouble, CLIENT_BURST);
+        topicRate = get(TOPIC_RATE_KEY, Double::parseDouble, TOPIC_RATE);
+        topicBurst = get(TOPIC_BURST_KEY, Double::parseDouble, TOPIC_BURST);
+        limitPolicy = get(LIMIT_POLICY_KEY, v -> LimitPolicy.valueOf(v.toUpperCase()), LIMIT_POLICY);
+        qosMessage = get(QOS_MESSAGE_KEY, Config::qos, QOS_MESSAGE);
+        qosSystem = get(QOS_SYSTEM_KEY, Config::qos, QOS_SYSTEM);
+        qosWhisper = get(QOS_WHISPER_KEY, Config::qos, QOS_WHISPER);
+        qosPresence = get(QOS_PRESENCE_KEY, Config::qos, QOS_PRESENCE);
+        presenceLinger = positive(PRESENCE_LINGER_KEY, get(PRESENCE_LINGER_KEY, Long::parseLong, PRESENCE_LINGER));
+        batchMaxBytes = positive(BATCH_BYTES_KEY, get(BATCH_BYTES_KEY, Integer::parseInt, BATCH_MAX_BYTES));
+        batchLinger = get(BATCH_LINGER_KEY, Long::parseLong, BATCH_LINGER);
+        compressThreshold = get(COMPRESS_KEY, Integer::parseInt, COMPRESS_THRESHOLD);
+        dbUrl = get(DB_URL_KEY, Function.identity(), DB_URL);
+        dbUser = get(DB_USER_KEY, Function.identity(), DB_USER);
+        dbPass = get(DB_PASS_KEY, Function.identity(), DB_PASS);
+        dbBatchSize = positive(DB_BATCH_KEY, get(DB_BATCH_KEY, Integer::parseInt, DB_BATCH_SIZE));
+        dbBatchLinger = positive(DB_LINGER_KEY, get(DB_LINGER_KEY, Long::parseLong, DB_BATCH_LINGER));
+        dbQueueCapacity = positive(DB_QUEUE_KEY, get(DB_QUEUE_KEY, Integer::parseInt, DB_QUEUE_CAPACITY));
+        dbFetchSize = positive(DB_FETCH_KEY, get(DB_FETCH_KEY, Integer::parseInt, DB_FETCH_SIZE));
+        dbConcurrency = positive(DB_CONCURRENCY_KEY, get(DB_CONCURRENCY_KEY, Integer::parseInt, DB_CONCURRENCY));
+        dbPoolSize = positive(DB_POOL_KEY, get(DB_POOL_KEY, Integer::parseInt, DB_POOL_SIZE));
+        dbPoolTimeout = positive(DB_POOL_TIMEOUT_KEY, get(DB_POOL_TIMEOUT_KEY, Long::parseLong, DB_POOL_TIMEOUT));
+        dbStatementTimeout = get(DB_TIMEOUT_KEY, Integer::parseInt, DB_STATEMENT_TIMEOUT);
+        dbStatementCache = get(DB_CACHE_KEY, Integer::parseInt, DB_STATEMENT_CACHE);
+        dbValidateAfter = get(DB_VALIDATE_KEY, Long::parseLong, DB_VALIDATE_AFTER);
+        dbBackoffMax = positive(DB_BACKOFF_KEY, get(DB_BACKOFF_KEY, Long::parseLong, DB_BACKOFF_MAX));
+        blockingMode = get(BLOCKING_MODE_KEY, v -> BlockingExecutor.Mode.valueOf(v.toUpperCase()), BLOCKING_MODE);
+        metricsPort = get(METRICS_PORT_KEY, Integer::parseInt, METRICS_PORT);
+        clusterPort = get(CLUSTER_PORT_KEY, Integer::parseInt, 0);
+        clusterNodes = get(CLUSTER_NODES_KEY, Config::list, List.of());
+    }
+
+    /**
+     * @return the current configuration
+     */
+    public static Config current() {
+        return current;
+    }
+
+    /**
+     * Replaces the current configuration.
+     *
+     * @param config The new configuration
+     */
+    public static void apply(Config config) {
+        current = config;
+    }
+
+    /**
+     * Loads the configuration from the given file (or the one in
+     * {@link #ENV_FILE}), the environment and the command line and makes it
+     * the current one.
+     *
+     * @param file      The properties file; {@code null} for the one in the
+     *                  environment (if any)
+     * @param overrides The options of the command line (by setting name)
+     * @return the configuration
+     * @throws IOException              if the file could not be read
+     * @throws IllegalArgumentException if a value is invalid
+     */
+    public static Config init(Path file, Map<String, String> overrides) throws IOException {
+        var config = load(file(file), System.getenv(), overrides);
+        apply(config);
+        return config;
+    }
+
+    /**
+     * @param file The configured file; {@code null} if none was given
+     * @return the given file or the one in the environment; {@code null} if
+     * there is none at all
+     */
+    public static Path file(Path file) {
+        return Optional.ofNullable(file)
+                .or(() -> Optional.ofNullable(System.getenv(ENV_FILE)).map(Paths::get))
+                .orElse(null);
+    }
+
+    /**
+     * Loads the configuration.
+     *
+     * @param file      The properties file; {@code null} if there is none
+     * @param env       The environment variables
+     * @param overrides The options of the command line (by setting name)
+     * @return the configuration
+     * @throws IOException              if the file could not be read
+     * @throws IllegalArgumentException if a value is invalid
+     */
+    public static Config load(Path file, Map<String, String> env, Map<String, String> overrides) throws IOException {
+        var values = new HashMap<String, String>();
+
+        if (file != null) {
+            var properties = new java.util.Properties();
+            try (Reader reader = Files.newBufferedReader(file)) {
+                properties.load(reader);
+            }
+            properties.stringPropertyNames().forEach(key -> values.put(key, properties.getProperty(key).trim()));
+        }
+
+        env.forEach((name, value) -> {
+            if (name.startsWith(ENV_PREFIX) && !name.equals(ENV_FILE))
+                values.put(name.substring(ENV_PREFIX.length()).toLowerCase().replace('_', '.'), value.trim());
+        });
+
+        values.putAll(overrides);
+
+        return new Config(values);
+    }
+
+    /**
+     * Takes over the settings of the given configuration that can be changed
+     * at runtime.
+     *
+     * @param next The newly loaded configuration
+     * @return the configuration with the changed settings
+     */
+    public Config reload(Config next) {
+        var values = new HashMap<>(next.values);
+
+        for (var key : keys(next)) {
+            if (RELOADABLE.contains(key) || Objects.equals(this.values.get(key), next.values.get(key)))
+                continue;
+
+            LOGGER.warning("'" + key + "' cannot be changed at runtime, it only takes effect after a restart");
+
+            if (this.values.containsKey(key))
+                values.put(key, this.values.get(key));
+            else
+                values.remove(key);
+        }
+
+        return new Config(values);
+    }
+
+    /**
+     * @param other Another configuration
+     * @return whether the other configuration has the same values
+     */
+    public boolean sameAs(Config other) {
+        return values.equals(other.values);
+    }
+
+    /**
+     * @return the limits of each broker session
+     */
+    public Session.Settings sessionSettings() {
+        return new Session.Settings(
+                inflightMax, offlineMaxBytes, retransmitTimeout, outboundMaxBytes, outboundPolicy, spillMaxBytes);
+    }
+
+    /**
+     * @return the admission limits of the broker
+     */
+    public Admission.Settings admissionSettings() {
+        return new Admission.Settings(
+                maxConnections, connectRate, clientRate, clientBurst, topicRate, topicBurst, limitPolicy);
+    }
+
+    /**
+     * @return the settings of the database connection pool
+     */
+    public ConnectionPool.Settings poolSettings() {
+        return new ConnectionPool.Settings(dbUrl, dbUser, dbPass, dbPoolSize, dbPoolTimeout, dbStatementTimeout,
+                dbStatementCache, dbValidateAfter, Math.min(DB_BACKOFF_MIN, dbBackoffMax), dbBackoffMax);
+    }
+
+    private Set<String> keys(Config next) {
+        var keys = new java.util.HashSet<>(values.keySet());
+        keys.addAll(next.values.keySet());
+        return keys;
+    }
+
+    private <V> V get(String key, Function<String, V> parse, V defaultValue) {
+        var value = values.get(key);
+
+        if (value == null || value.isEmpty())
+            return defaultValue;
+
+        try {
+            return parse.apply(value);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("invalid value for '" + key + "': " + value, e);
+        }
+    }
+
+    private static <N extends Number> N positive(String key, N value) {
+        if (value.longValue() <= 0)
+            throw new IllegalArgumentException("'" + key + "' has to be positive: " + value);
+        return value;
+    }
+
+    private static <N extends Number> N atMost(String key, long max, N value) {
+        if (value.longValue() > max)
+            throw new IllegalArgumentException("'" + key + "' has to be at most " + max + ": " + value);
+        return value;
+    }
+
+    private static MqttQoS qos(String value) {
+        return MqttQoS.valueOf(Integer.parseInt(value));
+    }
+
+    private static List<String> list(String value) {
+        return Arrays.stream(value.split(","))
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .collect(Collectors.toList());
+    }
+}
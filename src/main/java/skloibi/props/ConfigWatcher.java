@@ -0,0 +1,121 @@
+package skloibi.props;
+
+import io.vertx.reactivex.core.Vertx;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically checks the configuration file for changes and applies the
+ * settings that can be changed at runtime (see {@link Config#reload(Config)}).
+ * <p>
+ * The file is only read (on a worker thread) if its modification time
+ * changed. An invalid file is logged and ignored, i.e. the previous
+ * configuration stays in place.
+ */
+public class ConfigWatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(ConfigWatcher.class.getName());
+
+    private final Vertx               vertx;
+    private final Path                file;
+    private final Map<String, String> env;
+    private final Map<String, String> overrides;
+    private final Consumer<Config>    listener;
+
+    /**
+     * The modification time of the last read file (only accessed by the
+     * worker, one check at a time).
+     */
+    private FileTime modified;
+
+    private long timer = -1;
+
+    /**
+     * @param vertx     The Vert.x instance that runs the checks
+     * @param file      The configuration file
+     * @param env       The environment variables
+     * @param overrides The options of the command line (which always take
+     *                  precedence over the file)
+     * @param listener  Called with the new configuration after it was applied
+     */
+    public ConfigWatcher(Vertx vertx, Path file, Map<String, String> env, Map<String, String> overrides,
+                         Consumer<Config> listener) {
+        this.vertx = vertx;
+        this.file = file;
+        this.env = env;
+        this.overrides = overrides;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts watching the file.
+     *
+     * @param interval The time between two checks (in milliseconds)
+     * @return this watcher
+     */
+    public ConfigWatcher start(long interval) {
+        modified = lastModified();
+        timer = vertx.setPeriodic(interval, __ -> vertx.<Config>executeBlocking(f -> f.complete(check()), false, done -> {
+            if (done.failed())
+                LOGGER.log(Level.WARNING, "could not reload the configuration", done.cause());
+            else if (done.result() != null)
+                listener.accept(done.result());
+        }));
+        return this;
+    }
+
+    /**
+     * Stops watching the file.
+     */
+    public void stop() {
+        if (timer >= 0)
+            vertx.cancelTimer(timer);
+    }
+
+    /**
+     * Reloads the configuration if the file was modified.
+     *
+     * @return the applied configuration; {@code null} if nothing changed
+     */
+    private Config check() {
+        var time = lastModified();
+
+        if (time == null || time.equals(modified))
+            return null;
+
+        modified = time;
+
+        Config next;
+        try {
+            next = Config.load(file, env, overrides);
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.warning("ignoring the changed configuration: " + e.getMessage());
+            return null;
+        }
+
+        var current = Config.current();
+        var reloaded = current.reload(next);
+
+        if (reloaded.sameAs(current))
+            return null;
+
+        Config.apply(reloaded);
+        LOGGER.info("reloaded the configuration from " + file);
+        return reloaded;
+    }
+
+    private FileTime lastModified() {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -9,12 +9,12 @@ import skloibi.utils.T;
 public class Messages {
 
     /**
-     * Notification when user has left a channel.
+     * Notification when users have left a channel (followed by their names).
      */
     public static final String LEFT = ":left";
 
     /**
-     * Notification when user enters a channel.
+     * Notification when users enter a channel (followed by their names).
      */
     public static final String JOINED = ":joined";
 
@@ -62,6 +62,7 @@ public class Messages {
                 // split into command and parameter string
                 .map(m -> m.split(" ", 2))
                 // map to pair and retrieve actual command
-                .map(ms -> T.of(Command.valueOf(ms[0].toUpperCase()), ms[1]));
+                // (the parameters are optional)
+                .map(ms -> T.of(Command.valueOf(ms[0].toUpperCase()), ms.length > 1 ? ms[1] : ""));
     }
 }
@@ -1,6 +1,9 @@
 package skloibi.props;
 
 import io.netty.handler.codec.mqtt.MqttQoS;
+import skloibi.broker.LimitPolicy;
+import skloibi.broker.OverflowPolicy;
+import skloibi.utils.BlockingExecutor;
 
 /**
  * Holds application wide properties and constants.
@@ -10,10 +13,78 @@ public class Properties {
     public static final String DB_USER = "logbot";
     public static final String DB_PASS = "logpass";
 
-    public static final String  BROKER      = "localhost";
-    public static final int     MQTT_PORT   = 1883;
-    public static final MqttQoS QOS_MESSAGE = MqttQoS.AT_MOST_ONCE;
-    public static final MqttQoS QOS_SYSTEM  = MqttQoS.EXACTLY_ONCE;
+    public static final int  DB_BATCH_SIZE     = 500;
+    public static final long DB_BATCH_LINGER   = 100;
+    public static final int  DB_QUEUE_CAPACITY = 50_000;
+    public static final int  DB_FETCH_SIZE     = 1000;
+    public static final int  DB_CONCURRENCY    = 4;
+
+    public static final int  DB_POOL_SIZE         = 4;
+    public static final long DB_POOL_TIMEOUT      = 5000;
+    public static final int  DB_STATEMENT_TIMEOUT = 10;
+    public static final int  DB_STATEMENT_CACHE   = 16;
+    public static final long DB_VALIDATE_AFTER    = 30_000;
+    public static final long DB_BACKOFF_MIN       = 100;
+    public static final long DB_BACKOFF_MAX       = 30_000;
+
+    public static final BlockingExecutor.Mode BLOCKING_MODE     = BlockingExecutor.Mode.PLATFORM;
+    public static final int                   BLOCKING_CAPACITY = 1024;
+
+    public static final int  DB_PARTITIONS_AHEAD   = 2;
+    public static final long DB_PARTITION_INTERVAL = 24 * 60 * 60 * 1000;
+
+    public static final int  JOURNAL_SEGMENT_SIZE   = 64 * 1024 * 1024;
+    public static final int  JOURNAL_INDEX_INTERVAL = 4 * 1024;
+    public static final long JOURNAL_FLUSH_INTERVAL = 1000;
+
+    public static final int  HISTORY_MAX_MESSAGES = 100;
+    public static final long HISTORY_MAX_AGE      = 30 * 60 * 1000;
+    public static final int  HISTORY_MAX_BYTES    = 32 * 1024;
+
+    public static final String  BROKER            = "localhost";
+    public static final int     MQTT_PORT         = 1883;
+    public static final MqttQoS QOS_MESSAGE       = MqttQoS.AT_MOST_ONCE;
+    public static final MqttQoS QOS_SYSTEM        = MqttQoS.EXACTLY_ONCE;
+    public static final MqttQoS QOS_WHISPER       = MqttQoS.AT_LEAST_ONCE;
+    public static final MqttQoS QOS_PRESENCE      = MqttQoS.AT_MOST_ONCE;
+    public static final int     MESSAGE_MAX_BYTES = 64 * 1024;
+
+    public static final int  BATCH_MAX_BYTES = 16 * 1024;
+    public static final long BATCH_LINGER    = 0;
+
+    public static final int COMPRESS_THRESHOLD = 1024;
+
+    public static final int CONSOLE_CAPACITY = 4096;
+    public static final int CONSOLE_SCREEN   = 50;
+
+    public static final long RETAINED_MAX_BYTES = 16 * 1024 * 1024;
+    public static final int  OFFLINE_MAX_BYTES  = 64 * 1024;
+    public static final long SESSION_EXPIRY     = 5 * 60 * 1000;
+    public static final long PRESENCE_LINGER    = 500;
+
+    public static final int  INFLIGHT_MAX       = 32;
+    public static final int  INFLIGHT_LIMIT     = 0xFFFF - 1024;
+    public static final long RETRANSMIT_TIMEOUT = 10 * 1000;
+    public static final long RETRANSMIT_TICK    = 250;
+    public static final int  RETRANSMIT_SLOTS   = 64;
+
+    public static final int            OUTBOUND_MAX_BYTES = 256 * 1024;
+    public static final OverflowPolicy OUTBOUND_POLICY    = OverflowPolicy.DROP;
+    public static final long           SPILL_MAX_BYTES    = 64 * 1024 * 1024;
+
+    public static final int         MAX_CONNECTIONS = 100_000;
+    public static final double      CONNECT_RATE    = 1000;
+    public static final double      CLIENT_RATE     = 100;
+    public static final double      CLIENT_BURST    = 200;
+    public static final double      TOPIC_RATE      = 10_000;
+    public static final double      TOPIC_BURST     = 20_000;
+    public static final LimitPolicy LIMIT_POLICY    = LimitPolicy.DELAY;
+
+    public static final String CLUSTER_HOST      = "localhost";
+    public static final long   CLUSTER_RECONNECT = 1000;
+
+    public static final String METRICS_HOST = "127.0.0.1";
+    public static final int    METRICS_PORT = 9883;
 
     public static final String SERVER_COMMAND = "chatserver";
 }
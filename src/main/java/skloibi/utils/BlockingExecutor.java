@@ -0,0 +1,184 @@
+package skloibi.utils;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Runs blocking work (e.g. JDBC calls or console input) off the event loop,
+ * with an explicit bound on the number of tasks that run at the same time.
+ * <p>
+ * In the {@link Mode#PLATFORM} mode the tasks run on a fixed pool of (named,
+ * daemon) platform threads, one per permit. In the {@link Mode#VIRTUAL} mode
+ * every task gets its own virtual thread (Java 21 or later; older runtimes
+ * fall back to platform threads), which waits for a permit instead of
+ * occupying a pooled thread. In both modes, a semaphore limits the
+ * concurrency, e.g. toward the database, and at most a fixed number of tasks
+ * may wait for a permit; further ones are rejected (instead of growing the
+ * queue of the pool, or the number of parked virtual threads, without bound).
+ * <p>
+ * The virtual threads are created reflectively, so the code still builds for
+ * older releases.
+ */
+public final class BlockingExecutor implements Executor {
+
+    private static final Logger logger = Logger.getLogger(BlockingExecutor.class.getName());
+
+    /**
+     * The execution modes.
+     */
+    public enum Mode {
+        /**
+         * A fixed pool of platform threads.
+         */
+        PLATFORM,
+        /**
+         * A virtual thread per task.
+         */
+        VIRTUAL
+    }
+
+    private final ExecutorService executor;
+    private final Semaphore       permits;
+    private final int             capacity;
+    private final Mode            mode;
+
+    /**
+     * The number of tasks that wait for a permit.
+     */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * @param name        The name (prefix) of the threads
+     * @param concurrency The maximum number of concurrently running tasks
+     * @param capacity    The maximum number of tasks that wait for a permit
+     * @param mode        The requested execution mode
+     */
+    public BlockingExecutor(String name, int concurrency, int capacity, Mode mode) {
+        this.permits = new Semaphore(concurrency);
+        this.capacity = capacity;
+
+        var virtual = mode == Mode.VIRTUAL ? virtualThreads() : null;
+
+        if (virtual != null) {
+            this.executor = virtual;
+            this.mode = Mode.VIRTUAL;
+        } else {
+            var count = new AtomicInteger();
+            // the (unbounded) queue of the pool never holds more than the
+            // waiting tasks (see execute)
+            this.executor = Executors.newFixedThreadPool(concurrency, task -> {
+                var thread = new Thread(task, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.mode = Mode.PLATFORM;
+        }
+    }
+
+    /**
+     * @return the actual execution mode
+     */
+    public Mode mode() {
+        return mode;
+    }
+
+    /**
+     * Runs the given task as soon as a permit is available.
+     *
+     * @param task The blocking task
+     * @throws RejectedExecutionException if too many tasks are waiting or the
+     *                                    executor was closed
+     */
+    @Override
+    public void execute(Runnable task) {
+        if (waiting.incrementAndGet() > capacity) {
+            waiting.decrementAndGet();
+            throw new RejectedExecutionException(capacity + " tasks are waiting already");
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    waiting.decrementAndGet();
+                }
+
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            waiting.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the given task and passes its result back to the context (like
+     * {@code executeBlocking}, but without the shared worker pool).
+     * The handler is called in any case, also if the task threw an error or
+     * was rejected (see {@link #execute(Runnable)}).
+     *
+     * @param context The context that receives the result
+     * @param task    The blocking task
+     * @param result  Receives the result (or the failure) on the context
+     * @param <T>     The type of the result
+     */
+    public <T> void submit(Context context, Callable<T> task, Handler<AsyncResult<T>> result) {
+        try {
+            execute(() -> {
+                Future<T> future;
+                try {
+                    future = Future.succeededFuture(task.call());
+                } catch (Throwable e) {
+                    // errors as well, the caller may wait for the result
+                    future = Future.failedFuture(e);
+                }
+
+                var done = future;
+                context.runOnContext(__ -> result.handle(done));
+            });
+        } catch (RejectedExecutionException e) {
+            context.runOnContext(__ -> result.handle(Future.failedFuture(e)));
+        }
+    }
+
+    /**
+     * Stops accepting tasks; the running ones are finished.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * @return an executor that starts a virtual thread per task; {@code null}
+     * if the runtime does not support virtual threads
+     */
+    private static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.warning("virtual threads are not supported by this runtime, using platform threads");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package skloibi.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw Deflate with a preset dictionary of common chat phrases, so even
+ * messages of a few hundred bytes compress well.
+ * The deflaters and inflaters are expensive to create and are therefore
+ * reused per thread.
+ * <p>
+ * {@link Envelope} provides the public API (with the header of compressed
+ * messages) and delegates to this class.
+ */
+final class Compression {
+
+    /**
+     * The maximum size of a decompressed message, so a small malicious
+     * message cannot exhaust the heap of the receivers.
+     */
+    static final int MAX_LENGTH = 1024 * 1024;
+
+    /**
+     * The preset dictionary. Deflate prefers close matches, so the most
+     * common strings are at the end.
+     */
+    private static final byte[] DICTIONARY = (
+            "https://www. .com/ .org/ github.com stackoverflow.com youtube.com " +
+            "Exception in thread at java. Caused by: error: warning: null " +
+            "function return const var let if else for while import public class " +
+            "because actually probably already anyway something everything nothing " +
+            "tomorrow tonight today yesterday morning evening weekend " +
+            "please thanks thank you sorry welcome congrats good luck " +
+            "what do you think? I don't know I'm not sure I think so " +
+            "could you would you can you have you did you are you " +
+            "that's this is there is it's I'll I've I'd we're they're don't can't " +
+            "haha lol ok okay yes yeah no nope sure maybe hello hi hey " +
+            " the and to of a in is it you that for on with was this be are " +
+            "have not but at they we he she his her my your me so just like ")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() ->
+            new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() ->
+            new Inflater(true));
+
+    private Compression() {
+    }
+
+    /**
+     * @param data The data to compress
+     * @return the compressed data
+     */
+    static byte[] deflate(byte[] data) {
+        var deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(data);
+        deflater.finish();
+
+        var out = new ByteArrayOutputStream(data.length / 2 + 16);
+        var chunk = new byte[Math.min(data.length + 16, 8 * 1024)];
+
+        while (!deflater.finished())
+            out.write(chunk, 0, deflater.deflate(chunk));
+
+        return out.toByteArray();
+    }
+
+    /**
+     * @param data   The compressed data
+     * @param length The size of the decompressed data
+     * @return the decompressed data
+     * @throws DataFormatException if the data is invalid or does not have
+     *                             the given size
+     */
+    static byte[] inflate(byte[] data, int length) throws DataFormatException {
+        if (length < 0 || length > MAX_LENGTH)
+            throw new DataFormatException("invalid length " + length);
+
+        var inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(data);
+
+        var result = new byte[length];
+        var position = 0;
+
+        while (position < length) {
+            var inflated = inflater.inflate(result, position, length - position);
+
+            if (inflated == 0 && (inflater.finished() || inflater.needsInput()))
+                break;
+
+            position += inflated;
+        }
+
+        if (position < length)
+            throw new DataFormatException("truncated data");
+
+        return result;
+    }
+}
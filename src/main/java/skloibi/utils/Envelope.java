@@ -0,0 +1,262 @@
+package skloibi.utils;
+
+import io.vertx.reactivex.core.buffer.Buffer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+
+/**
+ * Binary envelope that carries several chat messages in a single payload,
+ * so high-rate publishers (e.g. bots or bridges) do not pay the overhead of
+ * one MQTT message per chat line, or a single compressed message.
+ * <p>
+ * An envelope starts with the (otherwise invalid) text byte {@code 0} and a
+ * byte of flags:
+ * <ul>
+ * <li>{@link #BATCH}: followed by the records
+ * {@code [length:int][timestamp:long][sender length:short][sender][text]}
+ * (the same layout as the records of a
+ * {@link skloibi.persistence.HistoryRing})</li>
+ * <li>{@link #COMPRESSED}: followed by {@code [length:int]} and the Deflate
+ * compressed text of a single message (which may also be the text of a
+ * record)</li>
+ * </ul>
+ * Any other payload is a plain message, so receivers can handle all of them
+ * transparently with {@link #read(Buffer, String, long, Record)} and
+ * {@link #text(Buffer)}.
+ * <p>
+ * Reading an envelope does not copy it; the text of each record is a slice
+ * of the payload. Compressed texts are only decompressed by
+ * {@link #text(Buffer)}, so they can be forwarded and stored as they are.
+ */
+public final class Envelope {
+
+    private static final Logger logger = Logger.getLogger(Envelope.class.getName());
+
+    /**
+     * The first byte of every envelope.
+     */
+    public static final byte MAGIC = 0;
+
+    /**
+     * Flag of an envelope that contains records.
+     */
+    public static final int BATCH = 1;
+
+    /**
+     * Flag of a compressed message.
+     */
+    public static final int COMPRESSED = 2;
+
+    /**
+     * Size of the envelope header (magic and flags).
+     */
+    public static final int HEADER = 2;
+
+    /**
+     * Size of the record header (without the length field itself).
+     */
+    private static final int RECORD_HEADER = 8 + 2;
+
+    private Envelope() {
+    }
+
+    /**
+     * @param payload The payload of a received message
+     * @return {@code true} if the payload is an envelope; {@code false} if it
+     * is a plain message
+     */
+    public static boolean isEnvelope(Buffer payload) {
+        return payload.length() >= HEADER && payload.getByte(0) == MAGIC;
+    }
+
+    /**
+     * @param message The text of a message (a payload or the text of a record)
+     * @return {@code true} if the message is compressed
+     */
+    public static boolean isCompressed(Buffer message) {
+        return message.length() >= HEADER + Integer.BYTES && message.getByte(0) == MAGIC
+                && (message.getByte(1) & COMPRESSED) != 0;
+    }
+
+    /**
+     * Compresses a message if it is at least as large as the threshold (and
+     * compression actually saves space).
+     *
+     * @param text      The message
+     * @param threshold The minimum size (in bytes) of compressed messages;
+     *                  {@code 0} to never compress
+     * @return the compressed message or the plain text
+     */
+    public static Buffer compress(String text, int threshold) {
+        var bytes = text.getBytes(StandardCharsets.UTF_8);
+
+        if (threshold <= 0 || bytes.length < threshold)
+            return Buffer.newInstance(io.vertx.core.buffer.Buffer.buffer(bytes));
+
+        var compressed = Compression.deflate(bytes);
+
+        if (HEADER + Integer.BYTES + compressed.length >= bytes.length)
+            return Buffer.newInstance(io.vertx.core.buffer.Buffer.buffer(bytes));
+
+        return Buffer.newInstance(io.vertx.core.buffer.Buffer.buffer(HEADER + Integer.BYTES + compressed.length)
+                .appendByte(MAGIC)
+                .appendByte((byte) COMPRESSED)
+                .appendInt(bytes.length)
+                .appendBytes(compressed));
+    }
+
+    /**
+     * Decodes the text of a message, decompressing it if necessary.
+     *
+     * @param message The text of a message (a payload or the text of a record)
+     * @return the message; an empty string if it cannot be decompressed
+     * (which is logged)
+     */
+    public static String text(Buffer message) {
+        if (!isCompressed(message))
+            return message.toString();
+
+        try {
+            return new String(Compression.inflate(
+                    message.getDelegate().getBytes(HEADER + Integer.BYTES, message.length()),
+                    message.getInt(HEADER)), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            logger.log(Level.WARNING, "could not decompress a message of " + message.length() + " bytes", e);
+            return "";
+        }
+    }
+
+    /**
+     * Reads all messages of a payload, i.e. the records of an envelope or the
+     * (possibly compressed) message itself.
+     * <p>
+     * A client may only publish its own messages, so the records of any other
+     * sender than the given one (the user of the topic) are skipped.
+     *
+     * @param payload  The payload of a received message
+     * @param sender   The sender of the message (the user of the topic)
+     * @param received The timestamp of a plain message (in epoch milliseconds)
+     * @param consumer Receives the messages
+     */
+    public static void read(Buffer payload, String sender, long received, Record consumer) {
+        if (!isEnvelope(payload) || (payload.getByte(1) & BATCH) == 0) {
+            consumer.accept(sender, received, payload);
+            return;
+        }
+
+        var position = HEADER;
+
+        while (position + Integer.BYTES + RECORD_HEADER <= payload.length()) {
+            var end = position + Integer.BYTES + payload.getInt(position);
+            var senderLength = payload.getShort(position + 12) & 0xFFFF;
+
+            // a truncated record ends the envelope
+            if (end > payload.length() || position + 14 + senderLength > end)
+                return;
+
+            var recordSender = payload.getString(position + 14, position + 14 + senderLength);
+
+            // a spoofed sender does not get through
+            if (recordSender.equals(sender))
+                consumer.accept(
+                        recordSender,
+                        payload.getLong(position + 4),
+                        payload.slice(position + 14 + senderLength, end));
+
+            position = end;
+        }
+    }
+
+    /**
+     * Collects the records of a single envelope.
+     * Not thread-safe.
+     */
+    public static final class Batch {
+        private final int maxBytes;
+
+        private io.vertx.core.buffer.Buffer buffer;
+        private int                         count = 0;
+
+        /**
+         * @param maxBytes The maximum size of the envelope (a single larger
+         *                 message is still accepted)
+         */
+        public Batch(int maxBytes) {
+            this.maxBytes = maxBytes;
+            this.buffer = empty();
+        }
+
+        /**
+         * Appends a message if it still fits.
+         *
+         * @param sender    The sender of the message
+         * @param timestamp The time the message was sent (in epoch milliseconds)
+         * @param text      The message (possibly compressed, see
+         *                  {@link #compress(String, int)})
+         * @return {@code true} if the message was added; {@code false} if the
+         * envelope has to be taken first
+         */
+        public boolean add(String sender, long timestamp, Buffer text) {
+            var senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+            var length = RECORD_HEADER + senderBytes.length + text.length();
+
+            if (count > 0 && buffer.length() + Integer.BYTES + length > maxBytes)
+                return false;
+
+            buffer.appendInt(length)
+                    .appendLong(timestamp)
+                    .appendShort((short) senderBytes.length)
+                    .appendBytes(senderBytes)
+                    .appendBuffer(text.getDelegate());
+            count++;
+            return true;
+        }
+
+        /**
+         * @return the number of messages
+         */
+        public int count() {
+            return count;
+        }
+
+        /**
+         * @return the current size of the envelope in bytes
+         */
+        public int bytes() {
+            return buffer.length();
+        }
+
+        /**
+         * @return the envelope; the batch is empty afterwards
+         */
+        public Buffer take() {
+            var envelope = Buffer.newInstance(buffer);
+            buffer = empty();
+            count = 0;
+            return envelope;
+        }
+
+        private io.vertx.core.buffer.Buffer empty() {
+            return io.vertx.core.buffer.Buffer.buffer(Math.min(maxBytes, 1024))
+                    .appendByte(MAGIC)
+                    .appendByte((byte) BATCH);
+        }
+    }
+
+    /**
+     * Consumer of the messages of a payload.
+     */
+    @FunctionalInterface
+    public interface Record {
+        /**
+         * @param sender    The sender of the message
+         * @param timestamp The time the message was sent (in epoch milliseconds)
+         * @param text      The message (a slice of the payload, possibly
+         *                  compressed, see {@link #text(Buffer)})
+         */
+        void accept(String sender, long timestamp, Buffer text);
+    }
+}
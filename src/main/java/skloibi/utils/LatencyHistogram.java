@@ -0,0 +1,114 @@
+package skloibi.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of (latency) values with a bounded relative error,
+ * similar to an HDR histogram.
+ * Values below {@code 2 * SUB_BUCKETS} are counted exactly; larger values
+ * are counted in logarithmic buckets that are each split into
+ * {@code SUB_BUCKETS} linear sub-buckets, which results in a relative error
+ * of at most {@code 1 / SUB_BUCKETS} (about 3%) over the whole range of
+ * {@code long}, with a fixed memory footprint of about 15 KB.
+ * <p>
+ * Recording is wait-free and may happen concurrently on any thread.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS    = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((Long.SIZE - SUB_BITS) * SUB_BUCKETS);
+    private final AtomicLong      total  = new AtomicLong();
+    private final AtomicLong      max    = new AtomicLong();
+
+    /**
+     * Records the given value.
+     *
+     * @param value The value (negative values are counted as 0)
+     */
+    public void record(long value) {
+        var v = Math.max(0, value);
+
+        counts.incrementAndGet(index(v));
+        total.incrementAndGet();
+        max.accumulateAndGet(v, Math::max);
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long count() {
+        return total.get();
+    }
+
+    /**
+     * @return the highest recorded value
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Retrieves the (approximate) value below which the given fraction of all
+     * recorded values lies.
+     *
+     * @param fraction The fraction (e.g. {@code 0.99} for the 99th percentile)
+     * @return the percentile; {@code 0} if no values were recorded
+     */
+    public long percentile(double fraction) {
+        var snapshot = new long[counts.length()];
+        var sum = 0L;
+
+        for (var i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            sum += snapshot[i];
+        }
+
+        if (sum == 0)
+            return 0;
+
+        var rank = Math.max(1, (long) Math.ceil(fraction * sum));
+        var seen = 0L;
+
+        for (var i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(highest(i), max());
+        }
+
+        return max();
+    }
+
+    /**
+     * Clears all recorded values.
+     * Values that are recorded concurrently may or may not be cleared.
+     */
+    public void reset() {
+        for (var i = 0; i < counts.length(); i++)
+            counts.set(i, 0);
+        total.set(0);
+        max.set(0);
+    }
+
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS)
+            return (int) value;
+
+        var shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the highest value that is counted in the given bucket
+     */
+    private static long highest(int index) {
+        if (index < 2 * SUB_BUCKETS)
+            return index;
+
+        var shift = index / SUB_BUCKETS - 1;
+        var sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1L) << shift) - 1;
+    }
+}
@@ -0,0 +1,92 @@
+package skloibi.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static skloibi.utils.Topics.*;
+
+/**
+ * Builds and parses the topic names of the chat without format strings,
+ * regular expressions or intermediate arrays.
+ * The constant prefixes of the topics (e.g. {@code mqtt-chat/all/} or
+ * {@code mqtt-chat/user/<name>/}) are cached per channel and user, so building
+ * a topic only requires a single concatenation.
+ * <p>
+ * {@link Topics} provides the public API and delegates to this codec.
+ */
+final class TopicCodec {
+
+    /**
+     * Maximum number of cached prefixes per cache. If it is exceeded, the
+     * cache is simply cleared, which keeps the memory bounded even if an
+     * unbounded number of channels / users is used.
+     */
+    private static final int CACHE_LIMIT = 4096;
+
+    /**
+     * Prefixes of the channel topics ({@code mqtt-chat/<channel>/}).
+     */
+    private static final ConcurrentMap<String, String> CHANNELS = new ConcurrentHashMap<>();
+
+    /**
+     * Prefixes of the personal topics ({@code mqtt-chat/user/<name>/}).
+     */
+    private static final ConcurrentMap<String, String> PERSONAL = new ConcurrentHashMap<>();
+
+    private static final char SEPARATOR_CHAR = SEPARATOR.charAt(0);
+
+    private TopicCodec() {
+    }
+
+    static String channelPrefix(String channel) {
+        var prefix = CHANNELS.get(channel);
+
+        if (prefix == null)
+            prefix = cache(CHANNELS, channel, GLOBAL + SEPARATOR + channel + SEPARATOR);
+
+        return prefix;
+    }
+
+    static String personalPrefix(String user) {
+        var prefix = PERSONAL.get(user);
+
+        if (prefix == null)
+            prefix = cache(PERSONAL, user, GLOBAL + SEPARATOR + USER + SEPARATOR + user + SEPARATOR);
+
+        return prefix;
+    }
+
+    private static String cache(ConcurrentMap<String, String> cache, String key, String prefix) {
+        if (cache.size() >= CACHE_LIMIT)
+            cache.clear();
+
+        var previous = cache.putIfAbsent(key, prefix);
+        return previous == null ? prefix : previous;
+    }
+
+    /**
+     * Retrieves the last level of the given topic.
+     *
+     * @param topic The topic name
+     * @return the last level
+     */
+    static String lastLevel(String topic) {
+        return topic.substring(topic.lastIndexOf(SEPARATOR_CHAR) + 1);
+    }
+
+    /**
+     * Retrieves the second-to-last level of the given topic.
+     *
+     * @param topic The topic name
+     * @return the second-to-last level
+     * @throws IndexOutOfBoundsException if the topic has less than two levels
+     */
+    static String secondToLastLevel(String topic) {
+        var end = topic.lastIndexOf(SEPARATOR_CHAR);
+
+        if (end < 0)
+            throw new IndexOutOfBoundsException("topic has less than two levels: " + topic);
+
+        return topic.substring(topic.lastIndexOf(SEPARATOR_CHAR, end - 1) + 1, end);
+    }
+}
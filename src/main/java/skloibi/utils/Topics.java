@@ -4,6 +4,7 @@ package skloibi.utils;
  * Utility to handle topics.
  * This provides methods to generate the required strings to maintain the chat
  * order and also append the required wildcards for open topic subscriptions.
+ * The actual encoding / decoding is done by {@link TopicCodec}.
  */
 public class Topics {
 
@@ -22,6 +23,19 @@ public class Topics {
      */
     public static final String USER = "user";
 
+    /**
+     * The pseudo user of the history service, which answers the history
+     * requests of the users on their "personal" channels.
+     */
+    public static final String HISTORY = ":history";
+
+    /**
+     * The pseudo user of the presence service (of the broker), which
+     * announces the members that joined or left a channel and answers the
+     * member requests of the users on their "personal" channels.
+     */
+    public static final String PRESENCE = ":presence";
+
     /**
      * Topic separator.
      */
@@ -30,7 +44,12 @@ public class Topics {
     /**
      * Topic descriptor to listen to all subtopics.
      */
-    public static final String LISTEN_TO_ALL = String.format("%s/#", GLOBAL);
+    public static final String LISTEN_TO_ALL = GLOBAL + SEPARATOR + "#";
+
+    /**
+     * Prefix of all "personal" channels.
+     */
+    private static final String PERSONAL = GLOBAL + SEPARATOR + USER + SEPARATOR;
 
     /**
      * Get the user from a given topic.
@@ -41,8 +60,32 @@ public class Topics {
      * @return the username that was embedded in the topic name
      */
     public static String userFromTopic(String topic) {
-        var i = topic.lastIndexOf('/');
-        return topic.substring(i + 1);
+        return TopicCodec.lastLevel(topic);
+    }
+
+    /**
+     * Splits the given topic (or topic filter) into its levels.
+     * Unlike {@link String#split(String)} this keeps empty levels
+     * (e.g. a trailing separator), as they are significant in MQTT.
+     *
+     * @param topic The full topic name
+     * @return the levels of the topic
+     */
+    public static String[] levels(String topic) {
+        var count = 1;
+        for (var i = topic.indexOf(SEPARATOR); i >= 0; i = topic.indexOf(SEPARATOR, i + 1))
+            count++;
+
+        var levels = new String[count];
+        var start = 0;
+        for (var i = 0; i < count - 1; i++) {
+            var end = topic.indexOf(SEPARATOR, start);
+            levels[i] = topic.substring(start, end);
+            start = end + 1;
+        }
+        levels[count - 1] = topic.substring(start);
+
+        return levels;
     }
 
     /**
@@ -54,9 +97,7 @@ public class Topics {
      * @return the short name that was extracted from the topic
      */
     public static String shortName(String topic) {
-        var words = topic.split(SEPARATOR);
-
-        return words[words.length - 2];
+        return TopicCodec.secondToLastLevel(topic);
     }
 
     /**
@@ -67,7 +108,7 @@ public class Topics {
      * @return the valid topic string
      */
     public static String listenToOwn(String user) {
-        return String.format("%s/%s/%s/+", GLOBAL, USER, user);
+        return TopicCodec.personalPrefix(user).concat("+");
     }
 
     /**
@@ -80,7 +121,7 @@ public class Topics {
      * @return the valid topic string
      */
     public static String listenTo(String topic) {
-        return String.format("%s/%s/+", GLOBAL, topic);
+        return TopicCodec.channelPrefix(topic).concat("+");
     }
 
     /**
@@ -92,7 +133,75 @@ public class Topics {
      * @return the valid topic string
      */
     public static String publishTo(String topic, String user) {
-        return String.format("%s/%s/%s", GLOBAL, topic, user);
+        return TopicCodec.channelPrefix(topic).concat(user);
+    }
+
+    /**
+     * Checks whether the given topic belongs to a user's "personal" channel
+     * (i.e. it is a whisper rather than a channel message).
+     *
+     * @param topic The full topic name
+     * @return {@code true} if the topic is a personal one; {@code false} otherwise
+     */
+    public static boolean isPersonal(String topic) {
+        return topic.startsWith(PERSONAL);
+    }
+
+    /**
+     * Checks whether the given topic belongs to the "personal" channel of the
+     * given user, e.g. a request to a pseudo user such as {@link #PRESENCE}.
+     *
+     * @param topic The full topic name
+     * @param user  The username
+     * @return {@code true} if the topic is a personal one of the user;
+     * {@code false} otherwise
+     */
+    public static boolean isPersonalTo(String topic, String user) {
+        return topic.startsWith(TopicCodec.personalPrefix(user));
+    }
+
+    /**
+     * Retrieves the channel of a topic filter that listens to a channel
+     * (see {@link #listenTo(String)}).
+     *
+     * @param filter The topic filter
+     * @return the short name of the channel; {@code null} if the filter does
+     * not listen to a (single) channel
+     */
+    public static String channelFromFilter(String filter) {
+        var prefix = GLOBAL.length() + SEPARATOR.length();
+
+        if (!filter.startsWith(GLOBAL + SEPARATOR) || !filter.endsWith(SEPARATOR + "+"))
+            return null;
+
+        var end = filter.length() - 2;
+
+        if (end <= prefix || filter.indexOf(SEPARATOR, prefix) != end)
+            return null;
+
+        var channel = filter.substring(prefix, end);
+        return channel.equals(USER) || channel.contains("+") || channel.contains("#") ? null : channel;
+    }
+
+    /**
+     * Retrieves the user of a topic filter that listens to a "personal"
+     * channel (see {@link #listenToOwn(String)}).
+     *
+     * @param filter The topic filter
+     * @return the username; {@code null} if the filter does not listen to a
+     * (single) personal channel
+     */
+    public static String userFromFilter(String filter) {
+        if (!filter.startsWith(PERSONAL) || !filter.endsWith(SEPARATOR + "+"))
+            return null;
+
+        var end = filter.length() - 2;
+
+        if (end <= PERSONAL.length() || filter.indexOf(SEPARATOR, PERSONAL.length()) != end)
+            return null;
+
+        var user = filter.substring(PERSONAL.length(), end);
+        return user.contains("+") || user.contains("#") ? null : user;
     }
 
     /**
@@ -104,6 +213,6 @@ public class Topics {
      * @return the valid topic string
      */
     public static String publishToPersonal(String userFrom, String userTo) {
-        return String.format("%s/%s/%s/%s", GLOBAL, USER, userTo, userFrom);
+        return TopicCodec.personalPrefix(userTo).concat(userFrom);
     }
 }
@@ -0,0 +1,244 @@
+package skloibi.broker;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.mqtt.MqttClient;
+import io.vertx.mqtt.MqttClientOptions;
+import io.vertx.reactivex.core.Vertx;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import skloibi.props.Config;
+import skloibi.utils.Topics;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs a cluster of three nodes (each with its own Vert.x instance) on local
+ * ports and checks that a message is only routed to the nodes with a
+ * matching subscriber.
+ * <p>
+ * Node {@code A} and node {@code B} have a subscriber of the channel, node
+ * {@code C} does not; the messages are published on {@code B}.
+ */
+class ClusterTest {
+
+    private static final String CHANNEL = "cluster";
+    private static final String FILTER  = Topics.listenTo(CHANNEL);
+    private static final String TOPIC   = Topics.publishTo(CHANNEL, "publisher");
+
+    private static final long TIMEOUT = 10_000;
+
+    /**
+     * The time to wait for (unexpected) duplicates.
+     */
+    private static final long QUIET = 500;
+
+    private final List<Node>       nodes   = new ArrayList<>();
+    private final List<MqttClient> clients = new ArrayList<>();
+
+    private io.vertx.core.Vertx clientVertx;
+
+    private AtomicInteger receivedA;
+    private AtomicInteger receivedB;
+
+    @BeforeEach
+    void startCluster() throws Exception {
+        var mqttPorts = new int[3];
+        var clusterPorts = new int[3];
+
+        for (var i = 0; i < 3; i++) {
+            mqttPorts[i] = freePort();
+            clusterPorts[i] = freePort();
+        }
+
+        for (var i = 0; i < 3; i++) {
+            var self = i;
+            var others = new ArrayList<String>();
+            for (var j = 0; j < 3; j++)
+                if (j != self)
+                    others.add("localhost:" + clusterPorts[j]);
+
+            nodes.add(new Node(mqttPorts[i], clusterPorts[i], others));
+        }
+
+        // every node has a link to every other node
+        await(() -> nodes.stream().allMatch(node ->
+                node.cluster.peers().stream().allMatch(Cluster.Peer::isConnected)));
+
+        clientVertx = io.vertx.core.Vertx.vertx();
+
+        receivedA = subscribe(nodes.get(0), "subscriber-a");
+        receivedB = subscribe(nodes.get(1), "subscriber-b");
+
+        // the subscriptions have reached all other nodes
+        await(() -> filters(nodes.get(1)) == 1 && filters(nodes.get(2)) == 2 && filters(nodes.get(0)) == 1);
+    }
+
+    @AfterEach
+    void stopCluster() {
+        clients.forEach(client -> client.disconnect());
+        if (clientVertx != null)
+            clientVertx.close();
+        nodes.forEach(node -> node.vertx.close());
+    }
+
+    @Test
+    void deliversExactlyOnce() throws Exception {
+        publish(nodes.get(1), "hello");
+
+        await(() -> receivedA.get() > 0 && receivedB.get() > 0);
+        Thread.sleep(QUIET);
+
+        assertEquals(1, receivedA.get(), "remote subscriber");
+        assertEquals(1, receivedB.get(), "local subscriber");
+    }
+
+    @Test
+    void skipsNodesWithoutSubscribers() throws Exception {
+        publish(nodes.get(1), "hello");
+
+        await(() -> receivedA.get() > 0);
+        Thread.sleep(QUIET);
+
+        var origin = nodes.get(1).broker.metrics();
+        assertEquals(1, origin.getClusterForwarded());
+        assertEquals(1, origin.getClusterSkipped());
+        assertEquals(0, nodes.get(2).broker.metrics().getClusterReceived());
+    }
+
+    @Test
+    void doesNotForwardReceivedFrames() throws Exception {
+        publish(nodes.get(1), "hello");
+
+        await(() -> receivedA.get() > 0);
+        Thread.sleep(QUIET);
+
+        // node A has received the frame, but does not send it back to B
+        // (which also has a matching subscriber)
+        assertEquals(1, nodes.get(0).broker.metrics().getClusterReceived());
+        assertEquals(0, nodes.get(0).broker.metrics().getClusterForwarded());
+        assertEquals(0, nodes.get(1).broker.metrics().getClusterReceived());
+
+        // a frame that echoes back to its origin is only delivered locally
+        var origin = nodes.get(1);
+        var forwarded = origin.broker.metrics().getClusterForwarded();
+        origin.vertx.runOnContext(__ -> origin.broker.receive(TOPIC,
+                io.vertx.reactivex.core.buffer.Buffer.buffer("echo"), MqttQoS.AT_LEAST_ONCE, false, System.nanoTime()));
+
+        await(() -> receivedB.get() == 2);
+        Thread.sleep(QUIET);
+
+        assertEquals(forwarded, origin.broker.metrics().getClusterForwarded());
+        assertEquals(1, receivedA.get());
+        assertEquals(0, nodes.get(2).broker.metrics().getClusterReceived());
+    }
+
+    /**
+     * @return the number of topic filters the node knows of the other nodes
+     */
+    private static int filters(Node node) {
+        return node.cluster.peers().stream().mapToInt(peer -> peer.filters.size()).sum();
+    }
+
+    private AtomicInteger subscribe(Node node, String clientId) throws Exception {
+        var received = new AtomicInteger();
+        var client = connect(node, clientId);
+
+        var subscribed = new CompletableFuture<Void>();
+        client.publishHandler(message -> received.incrementAndGet())
+                .subscribeCompletionHandler(ack -> subscribed.complete(null))
+                .subscribe(FILTER, MqttQoS.AT_LEAST_ONCE.value());
+
+        subscribed.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        return received;
+    }
+
+    private void publish(Node node, String message) throws Exception {
+        var client = connect(node, "publisher");
+
+        var published = new CompletableFuture<Void>();
+        client.publishCompletionHandler(id -> published.complete(null))
+                .publish(TOPIC, Buffer.buffer(message), MqttQoS.AT_LEAST_ONCE, false, false);
+
+        published.get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private MqttClient connect(Node node, String clientId) throws Exception {
+        var client = MqttClient.create(clientVertx, new MqttClientOptions().setClientId(clientId));
+        var connected = new CompletableFuture<Void>();
+
+        client.connect(node.mqttPort, "localhost", result -> {
+            if (result.succeeded())
+                connected.complete(null);
+            else
+                connected.completeExceptionally(result.cause());
+        });
+
+        connected.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        clients.add(client);
+        return client;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * A broker with its cluster link, as started by the chat server.
+     */
+    private static final class Node {
+        final Vertx   vertx = Vertx.vertx();
+        final Broker  broker;
+        final Cluster cluster;
+        final int     mqttPort;
+
+        Node(int mqttPort, int clusterPort, List<String> others) throws Exception {
+            var config = Config.current();
+
+            this.mqttPort = mqttPort;
+            this.broker = new Broker(config.retainedMaxBytes, config.sessionSettings());
+            this.cluster = new Cluster("localhost", clusterPort, others, broker.metrics());
+            broker.join(cluster);
+
+            var admission = new Admission(config.admissionSettings(), broker.metrics());
+
+            deploy(new ClusterVerticle(cluster, broker, "localhost", clusterPort));
+            deploy(new BrokerVerticle(broker, admission, mqttPort, 1));
+        }
+
+        private void deploy(io.vertx.core.Verticle verticle) throws Exception {
+            var deployed = new CompletableFuture<String>();
+
+            vertx.getDelegate().deployVerticle(verticle, result -> {
+                if (result.succeeded())
+                    deployed.complete(result.result());
+                else
+                    deployed.completeExceptionally(result.cause());
+            });
+
+            deployed.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package skloibi.persistence;
+
+import com.github.davidmoten.rx.jdbc.ConnectionProvider;
+import io.vertx.reactivex.core.Context;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import skloibi.utils.BlockingExecutor;
+import skloibi.utils.Envelope;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs a {@link BatchWriter} with a {@link ConnectionPool} against an
+ * embedded H2 database (as a stand-in for PostgreSQL), and reads the saved
+ * messages back with {@link MessageQueries}.
+ * <p>
+ * Database outages are simulated by {@link OutageDriver}, which fails like a
+ * database server that went away (SQL state {@code 08}) while it is down.
+ */
+class BatchWriterTest {
+
+    private static final String CREATE =
+            "CREATE TABLE messages (username VARCHAR(64), channel VARCHAR(64), date TIMESTAMP, " +
+                    "message VARCHAR(4096), payload VARBINARY(4096))";
+
+    private static final long TIMEOUT = 10_000;
+
+    /**
+     * The maximum backoff of the pool (in milliseconds).
+     */
+    private static final long BACKOFF_MAX = 100;
+
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    static {
+        try {
+            DriverManager.registerDriver(new OutageDriver());
+        } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private String           database;
+    private Vertx            vertx;
+    private Context          context;
+    private BlockingExecutor blocking;
+    private ConnectionPool   pool;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        database = "batches" + databases.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+
+        try (var connection = DriverManager.getConnection("jdbc:h2:mem:" + database, "sa", "")) {
+            connection.createStatement().execute(CREATE);
+        }
+
+        OutageDriver.down = false;
+
+        vertx = Vertx.vertx();
+        context = vertx.getOrCreateContext();
+        blocking = new BlockingExecutor("test", 2, 100, BlockingExecutor.Mode.PLATFORM);
+        pool = new ConnectionPool(new ConnectionPool.Settings(
+                OutageDriver.PREFIX + database, "sa", "", 2, 1000, 5, 4, 0, 10, BACKOFF_MAX));
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.close();
+        blocking.close();
+        vertx.close();
+    }
+
+    @Test
+    void writesFullBatchesBeforeTheLingerTime() throws Exception {
+        var writer = writer(10, 60_000, 100);
+
+        add(writer, 0, 25);
+
+        await(() -> rows() == 20);
+        assertEquals(5, (int) onContext(writer::pending));
+
+        close(writer);
+        assertEquals(25, rows());
+    }
+
+    @Test
+    void writesPartialBatchesAfterTheLingerTime() throws Exception {
+        var writer = writer(10, 50, 100);
+
+        add(writer, 0, 3);
+
+        await(() -> rows() == 3);
+        close(writer);
+    }
+
+    @Test
+    void keepsMessagesDuringAnOutage() throws Exception {
+        var writer = writer(10, 50, 100);
+
+        add(writer, 0, 10);
+        await(() -> rows() == 10);
+
+        OutageDriver.down = true;
+        assertEquals(30, add(writer, 10, 40));
+
+        // the failed batches are put back (and taken again by every retry)
+        await(() -> onContext(() -> writer.unavailable() && writer.pending() == 30));
+        assertEquals(10, rows());
+
+        OutageDriver.down = false;
+
+        await(() -> rows() == 40 && !onContext(writer::unavailable));
+        assertEquals(0, (int) onContext(writer::pending));
+
+        close(writer);
+    }
+
+    @Test
+    void retriesOncePerLingerTimeDuringAnOutage() throws Exception {
+        var attempts = new AtomicInteger();
+        var writer = onContext(() -> new BatchWriter(vertx, blocking, counting(attempts), 10, 100, 1000));
+        OutageDriver.down = true;
+
+        // a full batch every 10 milliseconds
+        var start = System.currentTimeMillis();
+        for (var i = 0; i < 30; i++) {
+            add(writer, i * 10, i * 10 + 10);
+            Thread.sleep(10);
+        }
+        var elapsed = System.currentTimeMillis() - start;
+
+        // the first batch and a retry per linger time (instead of one
+        // attempt per full batch)
+        var count = attempts.get();
+        assertTrue(count <= 2 + elapsed / 100, count + " attempts in " + elapsed + " ms");
+
+        OutageDriver.down = false;
+
+        await(() -> rows() == 300);
+        close(writer);
+    }
+
+    @Test
+    void rejectsMessagesAboveTheCapacity() throws Exception {
+        // without periodic retries, only the first full batch is taken
+        // (there are no further attempts after it failed)
+        var writer = writer(10, 60_000, 20);
+        OutageDriver.down = true;
+
+        add(writer, 0, 30);
+
+        // the messages that do not fit when the batch is put back
+        await(() -> onContext(() -> writer.unavailable() && writer.pending() == 20));
+        assertEquals(10, (long) onContext(writer::rejected));
+
+        // new messages while the queue is full
+        assertFalse(onContext(() -> writer.add("late", "channel", Instant.now(), Buffer.buffer("late"))));
+        assertEquals(11, (long) onContext(writer::rejected));
+
+        OutageDriver.down = false;
+        // until the backoff of the pool has passed, closing drops the queue
+        Thread.sleep(BACKOFF_MAX * 2);
+
+        close(writer);
+        assertEquals(20, rows());
+    }
+
+    @Test
+    void storesCompressedMessagesAsTheyAre() throws Exception {
+        var writer = writer(10, 50, 100);
+        var text = String.join(" ", Collections.nCopies(20, "a message that is worth compressing"));
+        var compressed = Envelope.compress(text, 64);
+        assertTrue(Envelope.isCompressed(compressed));
+
+        assertTrue(onContext(() -> writer.add("alice", "channel", Instant.now(), compressed)));
+        await(() -> rows() == 1);
+        close(writer);
+
+        // a row of an earlier version (text only)
+        try (var connection = DriverManager.getConnection("jdbc:h2:mem:" + database, "sa", "");
+             var stmt = connection.prepareStatement(
+                     "INSERT INTO messages (username, channel, date, message) VALUES ('bob', 'channel', ?, 'old')")) {
+            stmt.setTimestamp(1, Timestamp.from(Instant.now().minusSeconds(60)));
+            stmt.executeUpdate();
+        }
+
+        try (var connection = DriverManager.getConnection("jdbc:h2:mem:" + database, "sa", "");
+             var result = connection.createStatement().executeQuery(
+                     "SELECT payload FROM messages WHERE username = 'alice'")) {
+            result.next();
+            assertArrayEquals(compressed.getDelegate().getBytes(), result.getBytes(1));
+        }
+
+        var queries = new MessageQueries(pool, 10);
+        assertEquals(text, queries.recent("alice", 1).toBlocking().single().getMessage());
+        assertEquals("old", queries.recent("bob", 1).toBlocking().single().getMessage());
+    }
+
+    private BatchWriter writer(int batchSize, long linger, int capacity) throws Exception {
+        return onContext(() -> new BatchWriter(vertx, blocking, pool, batchSize, linger, capacity));
+    }
+
+    /**
+     * @return the pool, counting the borrowed connections (i.e. the insert
+     * attempts)
+     */
+    private ConnectionProvider counting(AtomicInteger borrowed) {
+        return new ConnectionProvider() {
+            @Override
+            public Connection get() {
+                borrowed.incrementAndGet();
+                return pool.get();
+            }
+
+            @Override
+            public void close() {
+                pool.close();
+            }
+        };
+    }
+
+    /**
+     * @return the number of accepted messages
+     */
+    private int add(BatchWriter writer, int from, int to) throws Exception {
+        return onContext(() -> {
+            var accepted = 0;
+            for (var i = from; i < to; i++)
+                if (writer.add("user" + i, "channel", Instant.now(), Buffer.buffer("message " + i)))
+                    accepted++;
+            return accepted;
+        });
+    }
+
+    private void close(BatchWriter writer) throws Exception {
+        var closed = new CompletableFuture<Void>();
+
+        context.runOnContext(__ -> {
+            var done = io.vertx.core.Future.<Void>future();
+            done.setHandler(result -> closed.complete(null));
+            writer.close(done);
+        });
+
+        closed.get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the number of saved messages (bypassing the outage)
+     */
+    private long rows() throws SQLException {
+        try (var connection = DriverManager.getConnection("jdbc:h2:mem:" + database, "sa", "");
+             var result = connection.createStatement().executeQuery("SELECT COUNT(*) FROM messages")) {
+            result.next();
+            return result.getLong(1);
+        }
+    }
+
+    /**
+     * Runs the task on the event loop of the writer.
+     */
+    private <T> T onContext(Callable<T> task) throws Exception {
+        var result = new CompletableFuture<T>();
+
+        context.runOnContext(__ -> {
+            try {
+                result.complete(task.call());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+
+        return result.get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private interface Condition {
+        boolean test() throws Exception;
+    }
+
+    private static void await(Condition condition) throws Exception {
+        var deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (!condition.test()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Driver for {@code jdbc:outage:<name>} that connects to the in-memory
+     * database {@code <name>}. While it is down, new connections are refused
+     * and open ones fail with {@link SQLRecoverableException}s.
+     */
+    public static final class OutageDriver implements Driver {
+
+        static final String PREFIX = "jdbc:outage:";
+
+        static volatile boolean down = false;
+
+        @Override
+        public Connection connect(String url, Properties info) throws SQLException {
+            if (!acceptsURL(url))
+                return null;
+            if (down)
+                throw new SQLNonTransientConnectionException("connection refused", "08001");
+
+            var connection = DriverManager.getConnection("jdbc:h2:mem:" + url.substring(PREFIX.length()), info);
+
+            return (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    (proxy, method, args) -> {
+                        if (down) {
+                            switch (method.getName()) {
+                                case "close":
+                                    connection.close();
+                                    return null;
+                                case "isValid":
+                                    return false;
+                                default:
+                                    throw new SQLRecoverableException("server went away", "08006");
+                            }
+                        }
+
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    });
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith(PREFIX);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package skloibi.persistence;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs a {@link ConnectionPool} against an embedded H2 database.
+ */
+class ConnectionPoolTest {
+
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    private ConnectionPool pool;
+
+    @BeforeEach
+    void setUp() {
+        pool = new ConnectionPool(new ConnectionPool.Settings(
+                "jdbc:h2:mem:pool" + databases.incrementAndGet() + ";DB_CLOSE_DELAY=-1", "sa", "",
+                2, 200, 5, 4, 0, 10, 100));
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    void reusesReturnedConnections() throws SQLException {
+        for (var i = 0; i < 3; i++)
+            try (var connection = pool.borrow();
+                 var statement = connection.prepareStatement("SELECT 1");
+                 var result = statement.executeQuery()) {
+                assertTrue(result.next());
+            }
+
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    void timesOutIfAllConnectionsAreBorrowed() throws SQLException {
+        var first = pool.borrow();
+        var second = pool.borrow();
+
+        assertThrows(SQLTimeoutException.class, pool::borrow);
+
+        first.close();
+        second.close();
+
+        assertEquals(2, pool.size());
+    }
+
+    @Test
+    void resetsTheTransactionState() throws SQLException {
+        try (var connection = pool.borrow()) {
+            connection.setAutoCommit(false);
+            connection.setReadOnly(true);
+        }
+
+        try (var connection = pool.borrow()) {
+            assertTrue(connection.getAutoCommit());
+            assertFalse(connection.isReadOnly());
+        }
+    }
+
+    @Test
+    void statementsReferToTheBorrowedConnection() throws SQLException {
+        var connection = pool.borrow();
+        var prepared = connection.prepareStatement("SELECT 1");
+
+        assertSame(connection, prepared.getConnection());
+        assertSame(connection, connection.createStatement().getConnection());
+
+        // returns the connection instead of closing it
+        prepared.getConnection().close();
+
+        assertTrue(connection.isClosed());
+        assertThrows(SQLException.class, prepared::executeQuery);
+        assertEquals(1, pool.size());
+
+        try (var next = pool.borrow()) {
+            assertFalse(next.isClosed());
+        }
+        assertEquals(1, pool.size());
+    }
+}
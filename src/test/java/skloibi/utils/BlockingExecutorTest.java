@@ -0,0 +1,95 @@
+package skloibi.utils;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that a {@link BlockingExecutor} always hands a result back to the
+ * context, also for errors and rejected tasks.
+ */
+class BlockingExecutorTest {
+
+    private static final long TIMEOUT = 10_000;
+
+    private Vertx            vertx;
+    private Context          context;
+    private BlockingExecutor executor;
+
+    @BeforeEach
+    void setUp() {
+        vertx = Vertx.vertx();
+        context = vertx.getOrCreateContext();
+        executor = new BlockingExecutor("test", 1, 2, BlockingExecutor.Mode.PLATFORM);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.close();
+        vertx.close();
+    }
+
+    @Test
+    void passesErrorsBack() throws Exception {
+        var result = submit(() -> {
+            throw new AssertionError("broken");
+        });
+
+        assertTrue(result.failed());
+        assertTrue(result.cause() instanceof AssertionError);
+    }
+
+    @Test
+    void rejectsTasksAboveTheCapacity() throws Exception {
+        var running = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var waited = new CountDownLatch(2);
+
+        // one running task (holding the only permit) and two waiting ones
+        executor.execute(() -> {
+            running.countDown();
+            await(release);
+        });
+        running.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        executor.execute(waited::countDown);
+        executor.execute(waited::countDown);
+
+        assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> {
+        }));
+
+        var rejected = submit(() -> 1);
+        assertTrue(rejected.failed());
+        assertTrue(rejected.cause() instanceof RejectedExecutionException);
+
+        // the waiting tasks run as soon as the permit is free again
+        release.countDown();
+        assertTrue(waited.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(submit(() -> 1).succeeded());
+    }
+
+    private <T> AsyncResult<T> submit(Callable<T> task) throws Exception {
+        var result = new CompletableFuture<AsyncResult<T>>();
+        executor.submit(context, task, result::complete);
+        return result.get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
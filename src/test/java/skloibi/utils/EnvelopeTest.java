@@ -0,0 +1,58 @@
+package skloibi.utils;
+
+import io.vertx.reactivex.core.buffer.Buffer;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Reads envelopes the way the clients and the {@code LogBot} do, i.e. with
+ * the user of the topic as the sender.
+ */
+class EnvelopeTest {
+
+    private static final String TOPIC = Topics.publishTo(Topics.ALL, "alice");
+
+    @Test
+    void readsTheRecordsOfTheTopicUser() {
+        var batch = new Envelope.Batch(1024);
+        batch.add("alice", 1, Envelope.compress("hello", 0));
+        batch.add("alice", 2, Envelope.compress("world", 0));
+
+        assertEquals(List.of("alice@1: hello", "alice@2: world"), read(batch.take()));
+    }
+
+    @Test
+    void skipsTheRecordsOfSpoofedSenders() {
+        var batch = new Envelope.Batch(1024);
+        batch.add("alice", 1, Envelope.compress("hello", 0));
+        batch.add("bob", 2, Envelope.compress("I owe alice 100 euros", 0));
+        batch.add("alice", 3, Envelope.compress("bye", 0));
+
+        assertEquals(List.of("alice@1: hello", "alice@3: bye"), read(batch.take()));
+    }
+
+    @Test
+    void readsPlainAndCompressedMessages() {
+        var text = String.join(" ", Collections.nCopies(10, "a rather long message"));
+
+        assertEquals(List.of("alice@7: plain"), read(Buffer.buffer("plain")));
+        assertEquals(List.of("alice@7: " + text), read(Envelope.compress(text, 16)));
+    }
+
+    /**
+     * @return the messages of the payload as {@code sender@timestamp: text}
+     */
+    private static List<String> read(Buffer payload) {
+        var messages = new ArrayList<String>();
+
+        Envelope.read(payload, Topics.userFromTopic(TOPIC), 7, (sender, timestamp, text) ->
+                messages.add(sender + "@" + timestamp + ": " + Envelope.text(text)));
+
+        return messages;
+    }
+}